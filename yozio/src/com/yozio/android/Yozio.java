@@ -9,20 +9,29 @@
 
 package com.yozio.android;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.http.HttpResponse;
 import org.apache.http.HttpVersion;
 import org.apache.http.client.HttpClient;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
 import org.apache.http.conn.scheme.PlainSocketFactory;
 import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.HttpParams;
 import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HttpContext;
 import org.json.JSONObject;
 
 import android.content.Context;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
 import android.util.Log;
 
 /**
@@ -38,7 +47,104 @@ public final class Yozio {
   static final int E_VIEWED_LINK = 11;
   static final int E_SHARED_LINK = 12;
 
+  /**
+   * Stores collected events in a SQLite database. This is the default.
+   */
+  public static final int DATA_STORE_SQLITE = 0;
+
+  /**
+   * Stores collected events in append-only journal files. Better suited to
+   * apps that collect events at a high rate.
+   */
+  public static final int DATA_STORE_JOURNAL = 1;
+
+  /**
+   * Evict the oldest stored events first.
+   */
+  public static final int EVICT_OLDEST = 0;
+
+  /**
+   * Evict the least important stored events first, such as viral loop views,
+   * and the oldest among those.
+   */
+  public static final int EVICT_LOWEST_PRIORITY = 1;
+
+  /**
+   * Evict a random sample of the stored events.
+   */
+  public static final int EVICT_SAMPLE = 2;
+
+  /**
+   * Events are sent normally.
+   */
+  public static final int CIRCUIT_CLOSED = 0;
+
+  /**
+   * Sending events failed repeatedly. No events are sent for a while.
+   */
+  public static final int CIRCUIT_OPEN = 1;
+
+  /**
+   * A single request is being tried after the circuit was open.
+   */
+  public static final int CIRCUIT_HALF_OPEN = 2;
+
+  /**
+   * When the event buffer is full, drop the newly collected event.
+   */
+  public static final int OVERFLOW_DROP_NEWEST = 0;
+
+  /**
+   * When the event buffer is full, drop the oldest buffered event.
+   */
+  public static final int OVERFLOW_DROP_OLDEST = 1;
+
+  /**
+   * When the event buffer is full, wait for room up to a timeout, then drop
+   * the newly collected event. Blocks the thread collecting the event.
+   */
+  public static final int OVERFLOW_BLOCK = 2;
+
+  /**
+   * Send event timestamps as "yyyy-MM-dd HH:mm:ss" in UTC. This is the
+   * default.
+   */
+  public static final int TIMESTAMP_DATE_TIME = 0;
+
+  /**
+   * Send event timestamps as milliseconds since the epoch. Only use this if
+   * your Yozio server accepts it.
+   */
+  public static final int TIMESTAMP_EPOCH_MILLIS = 1;
+
+  /**
+   * Send requests with the Apache HttpClient. This is the default.
+   */
+  public static final int HTTP_TRANSPORT_APACHE = 0;
+
+  /**
+   * Send requests with HttpURLConnection, which has less overhead and better
+   * connection pooling on Android 2.3 and newer.
+   */
+  public static final int HTTP_TRANSPORT_URL_CONNECTION = 1;
+
+  // HTTP connection pool defaults.
+  private static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 4;
+  private static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 30 * 1000;
+  // As long as the server allows.
+  private static final long DEFAULT_KEEP_ALIVE_MILLIS = -1;
+  private static final int TLS_HANDSHAKE_TIMEOUT_MILLIS = 10 * 1000;
+
   private static YozioHelper helper;
+  private static YozioApiServiceImpl apiService;
+  // HTTP client configuration, applied when the transport is built.
+  private static int httpTransportType = HTTP_TRANSPORT_APACHE;
+  private static int maxConnectionsPerRoute = DEFAULT_MAX_CONNECTIONS_PER_ROUTE;
+  private static long idleTimeoutMillis = DEFAULT_IDLE_TIMEOUT_MILLIS;
+  private static long keepAliveMillis = DEFAULT_KEEP_ALIVE_MILLIS;
+  // Shared by all https connections so TLS sessions are resumed, or null if
+  // Yozio is not configured or the device is older than API 8.
+  private static YozioTlsSessions tlsSessions;
 
   /**
    * Callback for getYozioLinkAsync.
@@ -57,6 +163,16 @@ public final class Yozio {
     void onComplete();
   }
 
+  /**
+   * Generates the identifiers of collected events.
+   *
+   * Identifiers must be unique across all installs of the app, including
+   * after the app is restarted. Must be thread safe.
+   */
+  public interface EventIdGenerator {
+    String nextEventId();
+  }
+
   /**
    * Configures the Yozio SDK. Must be called when your app is launched and
    * before any other method.
@@ -66,7 +182,23 @@ public final class Yozio {
    * @param secretKey  Application specific secret key provided by Yozio.
    */
   public static void configure(Context context, String appKey, String secretKey) {
-    initializeIfNeeded(context, appKey);
+    configure(context, appKey, secretKey, DATA_STORE_SQLITE);
+  }
+
+  /**
+   * Configures the Yozio SDK. Must be called when your app is launched and
+   * before any other method.
+   *
+   * @param context Application context.
+   * @param appKey  Application specific key provided by Yozio.
+   * @param secretKey  Application specific secret key provided by Yozio.
+   * @param dataStoreType  Where collected events are stored until they are
+   *                       sent. Either DATA_STORE_SQLITE or DATA_STORE_JOURNAL.
+   *                       Only the first call to configure selects it.
+   */
+  public static void configure(Context context, String appKey, String secretKey,
+      int dataStoreType) {
+    initializeIfNeeded(context, appKey, dataStoreType);
     helper.configure(context, appKey, secretKey);
     if (!validate()) {
       return;
@@ -412,26 +544,543 @@ public final class Yozio {
     helper.collect(E_SHARED_LINK, viralLoopName, channel, properties);
   }
 
-  private static void initializeIfNeeded(Context context, String appKey) {
+  /**
+   * Limits the events Yozio stores while they cannot be sent, for example
+   * while the device is offline. By default there is no limit.
+   *
+   * When a limit is reached, stored events are evicted. The number of evicted
+   * events is reported to Yozio with the next batch of events.
+   *
+   * @param maxEvents  Maximum number of stored events, or 0 for no limit.
+   * @param maxBytes  Maximum total size of the stored events, or 0 for no
+   *                  limit.
+   * @param maxAgeMillis  Maximum age of a stored event, or 0 for no limit. Not
+   *                      supported by DATA_STORE_JOURNAL.
+   * @param evictionPolicy  Which events to evict when maxEvents or maxBytes is
+   *                        reached. One of EVICT_OLDEST, EVICT_LOWEST_PRIORITY
+   *                        or EVICT_SAMPLE. DATA_STORE_JOURNAL always evicts
+   *                        the oldest events.
+   */
+  public static void setEventStoreLimits(int maxEvents, long maxBytes, long maxAgeMillis,
+      int evictionPolicy) {
+    if (!validate()) {
+      return;
+    }
+    helper.setEventStoreLimits(maxEvents, maxBytes, maxAgeMillis, evictionPolicy);
+  }
+
+  /**
+   * Limits the events Yozio buffers in memory before storing them.
+   *
+   * Collected events are buffered briefly so they can be stored together. If
+   * storing them falls behind, for example under heavy disk I/O, the buffer
+   * fills up and overflowPolicy decides which events are dropped.
+   *
+   * @param capacity  Maximum number of buffered events, at most 1024.
+   *                  Defaults to 1024.
+   * @param overflowPolicy  One of OVERFLOW_DROP_NEWEST, OVERFLOW_DROP_OLDEST
+   *                        or OVERFLOW_BLOCK. Defaults to
+   *                        OVERFLOW_DROP_NEWEST.
+   * @param blockTimeoutMillis  How long OVERFLOW_BLOCK waits for room.
+   */
+  public static void setEventBufferLimits(int capacity, int overflowPolicy,
+      long blockTimeoutMillis) {
+    if (!validate()) {
+      return;
+    }
+    helper.getEventBuffer().configure(capacity, overflowPolicy, blockTimeoutMillis);
+  }
+
+  /**
+   * Replaces the generator of event identifiers.
+   *
+   * By default, identifiers are a random per-install prefix followed by a
+   * counter that is persisted across restarts.
+   *
+   * @param generator  The generator to use, or null to restore the default.
+   */
+  public static void setEventIdGenerator(EventIdGenerator generator) {
+    if (!validate()) {
+      return;
+    }
+    helper.setEventIdGenerator(generator);
+  }
+
+  /**
+   * Sets how event timestamps are sent.
+   *
+   * @param timestampFormat  TIMESTAMP_DATE_TIME or TIMESTAMP_EPOCH_MILLIS.
+   */
+  public static void setTimestampFormat(int timestampFormat) {
+    if (!validate()) {
+      return;
+    }
+    helper.setTimestampFormat(timestampFormat);
+  }
+
+  /**
+   * Sends the device and app fields once per session instead of with every
+   * batch of events. Later batches carry a session key and only the fields
+   * that changed. Off by default. Only enable this if your Yozio server
+   * supports session keys.
+   *
+   * @param enabled  Whether to send session scoped headers.
+   */
+  public static void setSessionHeaderEnabled(boolean enabled) {
+    if (!validate()) {
+      return;
+    }
+    helper.setSessionHeaderEnabled(enabled);
+  }
+
+  /**
+   * Sends batches of events as a JSON request body instead of a form
+   * parameter, which is smaller. Off by default. Only enable this if your
+   * Yozio server accepts JSON bodies.
+   *
+   * @param enabled  Whether to send batches as JSON bodies.
+   */
+  public static void setJsonBatchEvents(boolean enabled) {
+    // Not set if a helper was injected for testing.
+    if (!validate() || apiService == null) {
+      return;
+    }
+    apiService.setJsonBatchEvents(enabled);
+  }
+
+  /**
+   * Gzips requests that send events or create Yozio links once they reach a
+   * size. Off by default. Only enable this if your Yozio server accepts
+   * gzipped request bodies.
+   *
+   * @param thresholdBytes  Minimum size of a request body to gzip, or -1 to
+   *                        never gzip them.
+   */
+  public static void setRequestCompressionThreshold(long thresholdBytes) {
+    // Not set if a helper was injected for testing.
+    if (!validate() || apiService == null) {
+      return;
+    }
+    apiService.setCompressionThreshold(thresholdBytes);
+  }
+
+  /**
+   * Chooses the HTTP stack requests are sent with.
+   *
+   * @param transportType  {@link #HTTP_TRANSPORT_APACHE} or
+   *                       {@link #HTTP_TRANSPORT_URL_CONNECTION}.
+   */
+  public static void setHttpTransport(int transportType) {
+    // Not set if a helper was injected for testing.
+    if (!validate() || apiService == null) {
+      return;
+    }
+    httpTransportType = transportType;
+    apiService.setTransport(httpTransport());
+  }
+
+  /**
+   * Sets the time limits of the background requests that send events.
+   * Defaults to 15 seconds to connect and 30 seconds to read.
+   *
+   * @param connectTimeoutMillis  Maximum time to connect to the server,
+   *                              including waiting for a free connection.
+   * @param readTimeoutMillis  Maximum time to wait for data from the server.
+   */
+  public static void setFlushTimeouts(int connectTimeoutMillis, int readTimeoutMillis) {
+    // Not set if a helper was injected for testing.
+    if (!validate() || apiService == null) {
+      return;
+    }
+    apiService.setFlushTimeouts(
+        new YozioHttpTransport.Timeouts(connectTimeoutMillis, readTimeoutMillis));
+  }
+
+  /**
+   * Sets the time limits of the requests that create Yozio links and load
+   * experiments, which your app may be waiting on. Defaults to 5 seconds to
+   * connect and 10 seconds to read.
+   *
+   * @param connectTimeoutMillis  Maximum time to connect to the server,
+   *                              including waiting for a free connection.
+   * @param readTimeoutMillis  Maximum time to wait for data from the server.
+   */
+  public static void setLinkTimeouts(int connectTimeoutMillis, int readTimeoutMillis) {
+    // Not set if a helper was injected for testing.
+    if (!validate() || apiService == null) {
+      return;
+    }
+    apiService.setLinkTimeouts(
+        new YozioHttpTransport.Timeouts(connectTimeoutMillis, readTimeoutMillis));
+  }
+
+  /**
+   * Configures the pool of HTTP connections kept open to the Yozio server.
+   * Defaults to 4 connections per server, each closed after 30 seconds idle
+   * or when the keep-alive time given by the server runs out.
+   *
+   * Applies to {@link #HTTP_TRANSPORT_APACHE}. HttpURLConnection shares the
+   * pool of the platform. Call this right after configure(), since
+   * connections already open are not moved to the new pool.
+   *
+   * @param maxConnectionsPerRoute  Maximum number of connections to a server.
+   * @param idleTimeoutMillis  Time after which an idle connection is closed,
+   *                           or -1 to keep it for its keep-alive.
+   * @param keepAliveMillis  Maximum time a connection is kept for reuse after
+   *                         a response, or -1 to keep it as long as the
+   *                         server allows.
+   */
+  public static void setConnectionPool(int maxConnectionsPerRoute, long idleTimeoutMillis,
+      long keepAliveMillis) {
+    // Not set if a helper was injected for testing.
+    if (!validate() || apiService == null) {
+      return;
+    }
+    Yozio.maxConnectionsPerRoute = maxConnectionsPerRoute;
+    Yozio.idleTimeoutMillis = idleTimeoutMillis;
+    Yozio.keepAliveMillis = keepAliveMillis;
+    apiService.setTransport(httpTransport());
+  }
+
+  /**
+   * Sends requests over https. TLS sessions are resumed across connections
+   * on Android 2.2 and newer.
+   * Off by default.
+   *
+   * @param secure  Whether to send requests over https.
+   */
+  public static void setSecureConnections(boolean secure) {
+    // Not set if a helper was injected for testing.
+    if (!validate() || apiService == null) {
+      return;
+    }
+    apiService.setSecure(secure);
+  }
+
+  /**
+   * Caches generated Yozio links, so asking again for a link with the same
+   * arguments, channel and experiment variations returns it without a
+   * request. The links are kept across launches. Off by default.
+   *
+   * @param maxLinks  Maximum number of links kept. The least recently used
+   *                  links are evicted first. 0 turns the cache off and
+   *                  clears it.
+   * @param ttlMillis  Time for which a generated link is reused.
+   */
+  public static void setLinkCache(int maxLinks, long ttlMillis) {
+    if (!validate()) {
+      return;
+    }
+    helper.setLinkCache(maxLinks, ttlMillis);
+  }
+
+  /**
+   * Generates the Yozio links of a viral loop for the given channels in the
+   * background, and keeps generating them again before they expire. Asking
+   * for one of these links with no properties then returns without a
+   * request. Call this right after configure().
+   *
+   * Turns on the link cache with room for 100 links kept for a day, unless
+   * setLinkCache() was called. The cache should have room for all the
+   * prefetched links.
+   *
+   * @param viralLoopName  Name of the viral loop. Must match the name of one of
+   *                       the viral loops created on the Yozio dashboard.
+   * @param channels  Social channels to generate links for.
+   * @param destinationUrl  URL that the generated Yozio links will redirect to.
+   */
+  public static void prefetchYozioLinks(String viralLoopName, String[] channels,
+      String destinationUrl) {
+    if (!validate()) {
+      return;
+    }
+    List<YozioLinkPrefetcher.Link> links = new ArrayList<YozioLinkPrefetcher.Link>();
+    for (String channel : channels) {
+      links.add(new YozioLinkPrefetcher.Link(viralLoopName, channel, destinationUrl));
+    }
+    helper.prefetchYozioLinks(links);
+  }
+
+  /**
+   * Generates the Yozio links of a viral loop for the given channels in the
+   * background, and keeps generating them again before they expire. Asking
+   * for one of these links with no properties then returns without a
+   * request. Call this right after configure().
+   *
+   * Turns on the link cache with room for 100 links kept for a day, unless
+   * setLinkCache() was called. The cache should have room for all the
+   * prefetched links.
+   *
+   * @param viralLoopName  Name of the viral loop. Must match the name of one of
+   *                       the viral loops created on the Yozio dashboard.
+   * @param channels  Social channels to generate links for.
+   * @param iosDestinationUrl  URL that the generated Yozio links will redirect
+   *                           to for iOS devices.
+   * @param androidDestinationUrl URL that the generated Yozio links will
+   *                              redirect to for Android devices.
+   * @param nonMobileDestinationUrl  URL that the generated Yozio links will
+   *                                 redirect to for all other devices.
+   */
+  public static void prefetchYozioLinks(String viralLoopName, String[] channels,
+      String iosDestinationUrl, String androidDestinationUrl, String nonMobileDestinationUrl) {
+    if (!validate()) {
+      return;
+    }
+    List<YozioLinkPrefetcher.Link> links = new ArrayList<YozioLinkPrefetcher.Link>();
+    for (String channel : channels) {
+      links.add(new YozioLinkPrefetcher.Link(viralLoopName, channel, iosDestinationUrl,
+          androidDestinationUrl, nonMobileDestinationUrl));
+    }
+    helper.prefetchYozioLinks(links);
+  }
+
+  /**
+   * Returns the number of getYozioLinkAsync requests not sent because an
+   * identical request was already in flight. Their callbacks got the result
+   * of that request.
+   *
+   * @return the number of saved requests, or 0 if Yozio is not configured.
+   */
+  public static long getNumCoalescedLinkRequests() {
+    if (helper == null) {
+      return 0;
+    }
+    return helper.getNumCoalescedLinkRequests();
+  }
+
+  /**
+   * Returns the number of collected events dropped because the event buffer
+   * was full.
+   *
+   * @return the number of dropped events, or 0 if Yozio is not configured.
+   */
+  public static long getNumDroppedEvents() {
+    if (helper == null) {
+      return 0;
+    }
+    return helper.getEventBuffer().getNumDroppedEvents();
+  }
+
+  /**
+   * Returns the number of times the events database was opened, to check
+   * that it is kept open rather than reopened for every operation.
+   *
+   * @return the number of opens, or 0 if Yozio is not configured or events
+   *         are stored in DATA_STORE_JOURNAL.
+   */
+  public static int getNumDatabaseOpens() {
+    if (helper == null || !(helper.getDataStore() instanceof YozioDataStoreImpl)) {
+      return 0;
+    }
+    return ((YozioDataStoreImpl) helper.getDataStore()).getNumOpens();
+  }
+
+  /**
+   * Returns the number of times the events database was closed.
+   *
+   * @return the number of closes, or 0 if Yozio is not configured or events
+   *         are stored in DATA_STORE_JOURNAL.
+   */
+  public static int getNumDatabaseCloses() {
+    if (helper == null || !(helper.getDataStore() instanceof YozioDataStoreImpl)) {
+      return 0;
+    }
+    return ((YozioDataStoreImpl) helper.getDataStore()).getNumCloses();
+  }
+
+  /**
+   * Returns the largest number of events that were in the event buffer at
+   * once, to help choose its capacity.
+   *
+   * @return the high water mark, or 0 if Yozio is not configured.
+   */
+  public static int getEventBufferHighWaterMark() {
+    if (helper == null) {
+      return 0;
+    }
+    return helper.getEventBuffer().getHighWaterMark();
+  }
+
+  /**
+   * Returns whether Yozio is currently sending events.
+   *
+   * After repeated failures to send events, Yozio stops sending them for a
+   * while, then tries a single request before sending normally again.
+   *
+   * @return CIRCUIT_CLOSED, CIRCUIT_OPEN or CIRCUIT_HALF_OPEN, or -1 if Yozio
+   *         is not configured.
+   */
+  public static int getFlushCircuitState() {
+    if (helper == null) {
+      return -1;
+    }
+    return helper.getRetryPolicy().getState();
+  }
+
+  /**
+   * Returns the number of requests Yozio made to retry sending events after a
+   * failure.
+   *
+   * @return the number of retries, or 0 if Yozio is not configured.
+   */
+  public static int getFlushRetryCount() {
+    if (helper == null) {
+      return 0;
+    }
+    return helper.getRetryPolicy().getNumRetries();
+  }
+
+  /**
+   * Configures when Yozio sends collected events.
+   *
+   * Events collected close together are sent in one request once no event has
+   * been collected for debounceMillis. No event waits longer than
+   * maxLatencyMillis, and events are sent right away once sizeTrigger of them
+   * are waiting.
+   *
+   * @param debounceMillis  How long to wait for more events. Defaults to 500.
+   * @param maxLatencyMillis  The longest an event waits to be sent. Defaults
+   *                          to 10000.
+   * @param sizeTrigger  The number of waiting events that are sent right away,
+   *                     or 0 to send as soon as a full request is waiting.
+   *                     Defaults to 0.
+   */
+  public static void setFlushSchedule(long debounceMillis, long maxLatencyMillis,
+      int sizeTrigger) {
+    if (!validate()) {
+      return;
+    }
+    helper.setFlushSchedule(debounceMillis, maxLatencyMillis, sizeTrigger);
+  }
+
+  /**
+   * Returns the maximum number of events Yozio currently sends per request.
+   *
+   * Yozio tunes this from the round trip time, size and failure rate of
+   * previous requests.
+   *
+   * @return the batch size, or 0 if Yozio is not configured.
+   */
+  public static int getFlushBatchSize() {
+    if (helper == null) {
+      return 0;
+    }
+    return helper.getBatchController().getBatchSize();
+  }
+
+  /**
+   * Returns the number of stored events at which Yozio currently sends them.
+   *
+   * Yozio raises this on slow or unreliable connections to make fewer
+   * requests.
+   *
+   * @return the flush threshold, or 0 if Yozio is not configured.
+   */
+  public static int getFlushThreshold() {
+    if (helper == null) {
+      return 0;
+    }
+    return helper.getBatchController().getFlushThreshold();
+  }
+
+  /**
+   * Notify Yozio that the system is running low on memory.
+   *
+   * Should be called from the onLowMemory method of your Application or
+   * Activity. Yozio will close its event database, and reopen it the next
+   * time an event is collected.
+   */
+  public static void onLowMemory() {
+    if (helper == null) {
+      return;
+    }
+    helper.releaseResources();
+  }
+
+  /**
+   * Notify Yozio that your app is shutting down.
+   *
+   * Closes the event database held open by Yozio. Events collected after this
+   * call are still stored and sent.
+   */
+  public static void shutdown() {
+    if (helper == null) {
+      return;
+    }
+    helper.releaseResources();
+  }
+
+  private static void initializeIfNeeded(Context context, String appKey, int dataStoreType) {
     if (helper != null) {
       return;
     }
-    HttpClient httpClient = threadSafeHttpClient();
-    YozioApiService apiService = new YozioApiServiceImpl(httpClient);
-    SQLiteOpenHelper dbHelper = new YozioDataStoreImpl.DatabaseHelper(context);
-    YozioDataStore dataStore = new YozioDataStoreImpl(dbHelper, appKey);
+    // The constant is inlined, so YozioTlsSessions isn't loaded before API 8.
+    if (Build.VERSION.SDK_INT >= YozioTlsSessions.MIN_SDK_INT) {
+      tlsSessions = new YozioTlsSessions(context);
+    }
+    apiService = new YozioApiServiceImpl(httpTransport());
+    YozioDataStore dataStore;
+    if (dataStoreType == DATA_STORE_JOURNAL) {
+      dataStore = new YozioJournalDataStore(YozioJournalDataStore.journalDir(context, appKey));
+    } else {
+      SQLiteOpenHelper dbHelper = new YozioDataStoreImpl.DatabaseHelper(context);
+      dataStore = new YozioDataStoreImpl(dbHelper, appKey);
+    }
     helper = new YozioHelper(dataStore, apiService);
   }
 
+  /**
+   * Builds the transport chosen by setHttpTransport() with the current pool
+   * configuration.
+   */
+  private static YozioHttpTransport httpTransport() {
+    if (httpTransportType == HTTP_TRANSPORT_URL_CONNECTION) {
+      return new YozioUrlConnectionHttpTransport(tlsSessions != null
+          ? tlsSessions.getSocketFactory(TLS_HANDSHAKE_TIMEOUT_MILLIS)
+          : null);
+    }
+    HttpClient httpClient =
+        threadSafeHttpClient(maxConnectionsPerRoute, keepAliveMillis, tlsSessions);
+    return new YozioApacheHttpTransport(httpClient, idleTimeoutMillis);
+  }
+
   // Visible for testing.
   static HttpClient threadSafeHttpClient() {
+    return threadSafeHttpClient(DEFAULT_MAX_CONNECTIONS_PER_ROUTE, DEFAULT_KEEP_ALIVE_MILLIS, null);
+  }
+
+  /**
+   * @param tlsSessions  the cache to resume TLS sessions from, or null to
+   *     not resume them.
+   */
+  private static HttpClient threadSafeHttpClient(int maxConnectionsPerRoute,
+      final long keepAliveMillis, YozioTlsSessions tlsSessions) {
     HttpParams params = new BasicHttpParams();
     HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
     HttpProtocolParams.setContentCharset(params, "UTF-8");
+    ConnManagerParams.setMaxConnectionsPerRoute(params,
+        new ConnPerRouteBean(maxConnectionsPerRoute));
+    ConnManagerParams.setMaxTotalConnections(params, 2 * maxConnectionsPerRoute);
     SchemeRegistry registry = new SchemeRegistry();
     registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+    registry.register(new Scheme("https", tlsSessions != null
+        ? tlsSessions.getHttpSocketFactory(TLS_HANDSHAKE_TIMEOUT_MILLIS)
+        : org.apache.http.conn.ssl.SSLSocketFactory.getSocketFactory(), 443));
     ThreadSafeClientConnManager cm = new ThreadSafeClientConnManager(params, registry);
-    return new DefaultHttpClient(cm, params);
+    DefaultHttpClient httpClient = new DefaultHttpClient(cm, params);
+    httpClient.setKeepAliveStrategy(new DefaultConnectionKeepAliveStrategy() {
+      @Override
+      public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+        // The time the server allows, or -1 for as long as the connection
+        // stays open.
+        long serverMillis = super.getKeepAliveDuration(response, context);
+        if (keepAliveMillis < 0) {
+          return serverMillis;
+        }
+        return serverMillis < 0 ? keepAliveMillis : Math.min(serverMillis, keepAliveMillis);
+      }
+    });
+    return httpClient;
   }
 
   private static boolean validate() {
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2012 Yozio Inc.
+ *
+ * This file is part of the Yozio SDK.
+ *
+ * By using the Yozio SDK in your software, you agree to the terms of the
+ * Yozio SDK License Agreement which can be found at www.yozio.com/sdk_license.
+ */
+
+package com.yozio.android;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+
+import android.util.Log;
+
+/**
+ * {@link YozioHttpTransport} on an Apache HttpClient.
+ */
+class YozioApacheHttpTransport implements YozioHttpTransport {
+
+  private static final String LOGTAG = "YozioApacheHttpTransport";
+
+  private final HttpClient httpClient;
+  // Pooled connections idle for longer than this are closed, or -1 to keep
+  // them until they expire.
+  private final long idleTimeoutMillis;
+
+  /**
+   * @param httpClient  a thread safe HttpClient.
+   */
+  YozioApacheHttpTransport(HttpClient httpClient) {
+    this(httpClient, -1);
+  }
+
+  /**
+   * @param httpClient  a thread safe HttpClient.
+   * @param idleTimeoutMillis  how long a pooled connection may stay idle, or
+   *     -1 to keep it until its keep-alive expires.
+   */
+  YozioApacheHttpTransport(HttpClient httpClient, long idleTimeoutMillis) {
+    this.httpClient = httpClient;
+    this.idleTimeoutMillis = idleTimeoutMillis;
+  }
+
+  public Response post(String url, Map<String, String> headers, Body body, Timeouts timeouts)
+      throws IOException {
+    evictConnections();
+    HttpPost httpPost = new HttpPost(url);
+    for (Map.Entry<String, String> header : headers.entrySet()) {
+      httpPost.setHeader(header.getKey(), header.getValue());
+    }
+    HttpParams params = httpPost.getParams();
+    HttpConnectionParams.setConnectionTimeout(params, timeouts.connectMillis);
+    HttpConnectionParams.setSoTimeout(params, timeouts.readMillis);
+    ConnManagerParams.setTimeout(params, timeouts.connectMillis);
+    httpPost.setEntity(new BodyEntity(body));
+    return new ApacheResponse(httpClient.execute(httpPost));
+  }
+
+  public void shutdown() {
+    httpClient.getConnectionManager().shutdown();
+  }
+
+  /**
+   * Closes pooled connections that the server has probably closed already,
+   * so a request doesn't fail on a stale connection. There are few requests,
+   * so this is done before each one instead of on a thread.
+   */
+  private void evictConnections() {
+    if (idleTimeoutMillis < 0) {
+      // Expired connections are still not reused.
+      return;
+    }
+    ClientConnectionManager connectionManager = httpClient.getConnectionManager();
+    connectionManager.closeExpiredConnections();
+    connectionManager.closeIdleConnections(idleTimeoutMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Writes a {@link YozioHttpTransport.Body} as the request entity.
+   */
+  private static class BodyEntity extends AbstractHttpEntity {
+
+    private final Body body;
+
+    BodyEntity(Body body) {
+      this.body = body;
+      setContentType(body.getContentType());
+      setContentEncoding(body.getContentEncoding());
+      setChunked(body.getContentLength() < 0);
+    }
+
+    public boolean isRepeatable() {
+      return true;
+    }
+
+    public boolean isStreaming() {
+      return false;
+    }
+
+    public long getContentLength() {
+      return body.getContentLength();
+    }
+
+    /**
+     * Only used by clients that can't write the entity themselves. Copies the
+     * whole body.
+     */
+    public InputStream getContent() throws IOException {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      body.writeTo(out);
+      return new ByteArrayInputStream(out.toByteArray());
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+      body.writeTo(out);
+      out.flush();
+    }
+  }
+
+  private static class ApacheResponse implements Response {
+
+    private final HttpResponse httpResponse;
+
+    ApacheResponse(HttpResponse httpResponse) {
+      this.httpResponse = httpResponse;
+    }
+
+    public int getStatus() {
+      return httpResponse.getStatusLine().getStatusCode();
+    }
+
+    public String getHeader(String name) {
+      Header header = httpResponse.getFirstHeader(name);
+      if (header == null) {
+        // Headers describing the body are kept on the entity.
+        HttpEntity entity = httpResponse.getEntity();
+        if (entity != null && name.equalsIgnoreCase("Content-Type")) {
+          header = entity.getContentType();
+        } else if (entity != null && name.equalsIgnoreCase("Content-Encoding")) {
+          header = entity.getContentEncoding();
+        }
+      }
+      return header != null ? header.getValue() : null;
+    }
+
+    public InputStream getContent() throws IOException {
+      HttpEntity entity = httpResponse.getEntity();
+      return entity != null ? entity.getContent() : null;
+    }
+
+    public void close() {
+      HttpEntity entity = httpResponse.getEntity();
+      if (entity == null) {
+        return;
+      }
+      try {
+        // Release the connection.
+        entity.consumeContent();
+      } catch (IOException e) {
+        Log.e(LOGTAG, "close", e);
+      }
+    }
+  }
+}
@@ -96,5 +96,11 @@ interface YozioApiService {
    * @param payload  the payload object.
    * @return true iff the request succeeded.
    */
-   boolean batchEvents(JSONObject payload);
+   boolean batchEvents(YozioBatchPayload payload);
+
+  /**
+   * @return how long the server asked to wait before the next batch_events
+   *         request with a Retry-After header, in milliseconds, or 0.
+   */
+  long getRetryAfterMillis();
 }
@@ -9,19 +9,16 @@
 
 package com.yozio.android;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.LinkedList;
-import java.util.List;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
 
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.NameValuePair;
-import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.HttpClient;
-import org.apache.http.client.entity.UrlEncodedFormEntity;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.message.BasicNameValuePair;
-import org.apache.http.util.EntityUtils;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -33,21 +30,41 @@ class YozioApiServiceImpl implements YozioApiService {
   // the HttpResponse is always cleaned up after a request.
   private static class Response {
     private final int status;
+    // Null if the response had no body.
     private final String responseString;
+    // Value of the Retry-After header in milliseconds, or 0.
+    private final long retryAfterMillis;
 
-    private Response(int status, String responseString) {
+    private Response(int status, String responseString, long retryAfterMillis) {
       this.status = status;
       this.responseString = responseString;
+      this.retryAfterMillis = retryAfterMillis;
     }
   }
 
   private static final String DEFAULT_BASE_URL = "http://yoz.io";
+  private static final String SECURE_BASE_URL = "https://yoz.io";
   private static final String GET_URL_ROUTE = "/api/viral/v1/get_url";
   private static final String GET_CONFIGURATIONS_ROUTE = "/api/yozio/v1/get_configurations";
   private static final String BATCH_EVENTS_ROUTE = "/api/sdk/v1/batch_events";
 
   private static final String LOGTAG = "YozioApiServiceImpl";
 
+  // Time limits of batch_events requests, which are sent in the background.
+  static final YozioHttpTransport.Timeouts DEFAULT_FLUSH_TIMEOUTS =
+      new YozioHttpTransport.Timeouts(15 * 1000, 30 * 1000);
+  // Time limits of get_url and get_configurations requests, which an app may
+  // be waiting on.
+  static final YozioHttpTransport.Timeouts DEFAULT_LINK_TIMEOUTS =
+      new YozioHttpTransport.Timeouts(5 * 1000, 10 * 1000);
+
+  private static final String H_RETRY_AFTER = "Retry-After";
+  private static final String H_ACCEPT_ENCODING = "Accept-Encoding";
+  private static final String H_CONTENT_ENCODING = "Content-Encoding";
+  private static final String H_CONTENT_TYPE = "Content-Type";
+  // Charset of responses that don't name one.
+  private static final String DEFAULT_CHARSET = "ISO-8859-1";
+
   // Request param names
   private static final String GET_CONFIGURATION_P_APP_KEY = "app_key";
   private static final String GET_CONFIGURATION_P_DEVICE_TYPE = "device_type";
@@ -69,8 +86,18 @@ class YozioApiServiceImpl implements YozioApiService {
   private static final String GET_CONFIGURATIONS_R_EXPERIMENT_CONFIGS = "experiment_configs";
   private static final String GET_CONFIGURATIONS_R_EXPERIMENT_VARIATION_SIDS = "experiment_variation_sids";
 
-  private final HttpClient httpClient;
-  private String baseUrl;
+  private volatile YozioHttpTransport transport;
+  private volatile String baseUrl;
+  private volatile YozioHttpTransport.Timeouts flushTimeouts = DEFAULT_FLUSH_TIMEOUTS;
+  private volatile YozioHttpTransport.Timeouts linkTimeouts = DEFAULT_LINK_TIMEOUTS;
+  // Time until which the server asked not to send batch_events requests.
+  private volatile long retryAfterUntilMillis;
+  // True iff batch_events payloads are sent as a JSON body instead of a form
+  // parameter.
+  private volatile boolean jsonBatchEvents;
+  // Size from which batch_events and get_url request bodies are gzipped, or
+  // -1 if they are never gzipped.
+  private volatile long compressionThresholdBytes = -1;
 
   /**
    * Implementation of {@link YozioApiService} that talks to a Yozio server.
@@ -78,47 +105,52 @@ class YozioApiServiceImpl implements YozioApiService {
    * @param httpClient  a thread safe HttpClient.
    */
   YozioApiServiceImpl(HttpClient httpClient) {
-    this.httpClient = httpClient;
+    this(new YozioApacheHttpTransport(httpClient));
+  }
+
+  YozioApiServiceImpl(YozioHttpTransport transport) {
+    this.transport = transport;
     baseUrl = DEFAULT_BASE_URL;
   }
 
   public String getYozioLink(String appKey, String yozioUdid, String viralLoopName,
       String destinationUrl, JSONObject yozioProperties, JSONObject externalProperties) {
-    List<NameValuePair> params = new LinkedList<NameValuePair>();
-    params.add(new BasicNameValuePair(GET_URL_P_APP_KEY, appKey));
-    params.add(new BasicNameValuePair(GET_URL_P_YOZIO_UDID, yozioUdid));
-    params.add(new BasicNameValuePair(GET_URL_P_DEVICE_TYPE, YozioHelper.DEVICE_TYPE));
-    params.add(new BasicNameValuePair(GET_URL_P_LINK_NAME, viralLoopName));
-    params.add(new BasicNameValuePair(GET_URL_P_DEST_URL, destinationUrl));
+    YozioFormEntity params = new YozioFormEntity();
+    params.add(GET_URL_P_APP_KEY, appKey);
+    params.add(GET_URL_P_YOZIO_UDID, yozioUdid);
+    params.add(GET_URL_P_DEVICE_TYPE, YozioHelper.DEVICE_TYPE);
+    params.add(GET_URL_P_LINK_NAME, viralLoopName);
+    params.add(GET_URL_P_DEST_URL, destinationUrl);
     addParam(params, GET_URL_P_YOZIO_PROPERTIES, yozioProperties);
     addParam(params, GET_URL_P_EXTERNAL_PROPERTIES, externalProperties);
-    Response response = doPostRequest(baseUrl + GET_URL_ROUTE, params);
+    Response response = doPostRequest(baseUrl + GET_URL_ROUTE, compress(params), linkTimeouts);
     return getJsonValue(response, GET_URL_R_URL);
   }
 
   public String getYozioLink(String appKey, String yozioUdid, String viralLoopName,
       String iosDestinationUrl, String androidDestinationUrl, String nonMobileDestinationUrl,
       JSONObject yozioProperties, JSONObject externalProperties) {
-    List<NameValuePair> params = new LinkedList<NameValuePair>();
-    params.add(new BasicNameValuePair(GET_URL_P_APP_KEY, appKey));
-    params.add(new BasicNameValuePair(GET_URL_P_YOZIO_UDID, yozioUdid));
-    params.add(new BasicNameValuePair(GET_URL_P_DEVICE_TYPE, YozioHelper.DEVICE_TYPE));
-    params.add(new BasicNameValuePair(GET_URL_P_LINK_NAME, viralLoopName));
-    params.add(new BasicNameValuePair(GET_URL_P_IOS_DEST_URL, iosDestinationUrl));
-    params.add(new BasicNameValuePair(GET_URL_P_ANDROID_DEST_URL, androidDestinationUrl));
-    params.add(new BasicNameValuePair(GET_URL_P_NON_MOBILE_DEST_URL, nonMobileDestinationUrl));
+    YozioFormEntity params = new YozioFormEntity();
+    params.add(GET_URL_P_APP_KEY, appKey);
+    params.add(GET_URL_P_YOZIO_UDID, yozioUdid);
+    params.add(GET_URL_P_DEVICE_TYPE, YozioHelper.DEVICE_TYPE);
+    params.add(GET_URL_P_LINK_NAME, viralLoopName);
+    params.add(GET_URL_P_IOS_DEST_URL, iosDestinationUrl);
+    params.add(GET_URL_P_ANDROID_DEST_URL, androidDestinationUrl);
+    params.add(GET_URL_P_NON_MOBILE_DEST_URL, nonMobileDestinationUrl);
     addParam(params, GET_URL_P_YOZIO_PROPERTIES, yozioProperties);
     addParam(params, GET_URL_P_EXTERNAL_PROPERTIES, externalProperties);
-    Response response = doPostRequest(baseUrl + GET_URL_ROUTE, params);
+    Response response = doPostRequest(baseUrl + GET_URL_ROUTE, compress(params), linkTimeouts);
     return getJsonValue(response, GET_URL_R_URL);
   }
 
   public ExperimentInfo getExperimentInfo(String appKey, String yozioUdid) {
-    List<NameValuePair> params = new LinkedList<NameValuePair>();
-    params.add(new BasicNameValuePair(GET_CONFIGURATION_P_APP_KEY, appKey));
-    params.add(new BasicNameValuePair(GET_CONFIGURATION_P_YOZIO_UDID, yozioUdid));
-    params.add(new BasicNameValuePair(GET_CONFIGURATION_P_DEVICE_TYPE, YozioHelper.DEVICE_TYPE));
-    Response response = doPostRequest(baseUrl + GET_CONFIGURATIONS_ROUTE, params);
+    YozioFormEntity params = new YozioFormEntity();
+    params.add(GET_CONFIGURATION_P_APP_KEY, appKey);
+    params.add(GET_CONFIGURATION_P_YOZIO_UDID, yozioUdid);
+    params.add(GET_CONFIGURATION_P_DEVICE_TYPE, YozioHelper.DEVICE_TYPE);
+    Response response = doPostRequest(baseUrl + GET_CONFIGURATIONS_ROUTE, params,
+        linkTimeouts);
 
     final JSONObject experimentConfigs = getJsonObjectValue(response,
         GET_CONFIGURATIONS_R_EXPERIMENT_CONFIGS);
@@ -127,60 +159,202 @@ class YozioApiServiceImpl implements YozioApiService {
     return new ExperimentInfo(experimentConfigs, experimentVariationSids);
   }
 
-  public boolean batchEvents(JSONObject payload) {
-    List<NameValuePair> params = new LinkedList<NameValuePair>();
-    params.add(new BasicNameValuePair(BATCH_EVENTS_P_DATA, payload.toString()));
-    Response response = doPostRequest(baseUrl + BATCH_EVENTS_ROUTE, params);
+  public boolean batchEvents(YozioBatchPayload payload) {
+    YozioHttpTransport.Body body =
+        new YozioBatchPayloadEntity(payload, jsonBatchEvents ? null : BATCH_EVENTS_P_DATA);
+    Response response = doPostRequest(baseUrl + BATCH_EVENTS_ROUTE, compress(body),
+        flushTimeouts);
+    if (response != null && response.retryAfterMillis > 0) {
+      retryAfterUntilMillis = System.currentTimeMillis() + response.retryAfterMillis;
+    }
     // Events that result in 400 will always fail, so pretend like the server handled it correctly.
     // Otherwise, these invalid events will be never be taken off the flush queue.
-    return response != null && (response.status == 200 || response.status == 400);
+    // A 200 without a body may not have been handled.
+    return response != null && response.responseString != null
+        && (response.status == 200 || response.status == 400);
+  }
+
+  public long getRetryAfterMillis() {
+    return Math.max(0, retryAfterUntilMillis - System.currentTimeMillis());
   }
 
   /**
    * Performs a blocking HTTP POST request to the specified uri.
    *
-   * @param httpClient  the client to execute the HTTP request.
-   * @param baseUrl  the base url to append the parameters to.
-   * @param params  the GET parameters.
+   * @param baseUrl  the url to post to.
+   * @param body  the request body.
+   * @param timeouts  the time limits of the request.
    * @return  the {@link Response}, or null if the request failed.
    */
-  Response doPostRequest(String baseUrl, List<NameValuePair> params) {
+  Response doPostRequest(String baseUrl, YozioHttpTransport.Body body,
+      YozioHttpTransport.Timeouts timeouts) {
+    Map<String, String> headers = new HashMap<String, String>();
+    headers.put(YozioHelper.H_SDK_VERSION, YozioHelper.YOZIO_SDK_VERSION);
+    headers.put(H_ACCEPT_ENCODING, YozioGzipEntity.GZIP);
+    YozioHttpTransport.Response httpResponse = null;
     try {
-      HttpPost httpPost = new HttpPost(baseUrl);
-      httpPost.setHeader(YozioHelper.H_SDK_VERSION, YozioHelper.YOZIO_SDK_VERSION);
-      httpPost.setEntity(new UrlEncodedFormEntity(params, "UTF-8"));
-      HttpResponse httpResponse = httpClient.execute(httpPost);
-      HttpEntity httpEntity = httpResponse.getEntity();
-      if (httpEntity != null) {
-        String responseString = EntityUtils.toString(httpEntity);
-        // Release the content.
-        httpEntity.consumeContent();
-        return new Response(httpResponse.getStatusLine().getStatusCode(), responseString);
-      }
-    } catch (ClientProtocolException e) {
-      Log.e(LOGTAG, "doGetRequest", e);
+      httpResponse = transport.post(baseUrl, headers, body, timeouts);
+      InputStream content = httpResponse.getContent();
+      // A response without a body still has a status and Retry-After.
+      String responseString = content != null ? readResponse(httpResponse, content) : null;
+      return new Response(httpResponse.getStatus(), responseString,
+          parseRetryAfter(httpResponse.getHeader(H_RETRY_AFTER)));
     } catch (IOException e) {
-      Log.e(LOGTAG, "doGetRequest", e);
+      Log.e(LOGTAG, "doPostRequest", e);
+    } finally {
+      if (httpResponse != null) {
+        httpResponse.close();
+      }
     }
     return null;
   }
 
+  /**
+   * Sends batch_events payloads as a JSON body instead of a form parameter.
+   */
+  void setJsonBatchEvents(boolean jsonBatchEvents) {
+    this.jsonBatchEvents = jsonBatchEvents;
+  }
+
+  /**
+   * Gzips batch_events and get_url request bodies of at least
+   * thresholdBytes, or never if thresholdBytes is negative.
+   */
+  void setCompressionThreshold(long thresholdBytes) {
+    this.compressionThresholdBytes = thresholdBytes;
+  }
+
+  /**
+   * Replaces the transport used for the following requests, and shuts down
+   * the replaced one.
+   */
+  void setTransport(YozioHttpTransport transport) {
+    YozioHttpTransport replaced = this.transport;
+    this.transport = transport;
+    replaced.shutdown();
+  }
+
+  /**
+   * Sets the time limits of batch_events requests.
+   */
+  void setFlushTimeouts(YozioHttpTransport.Timeouts timeouts) {
+    this.flushTimeouts = timeouts;
+  }
+
+  /**
+   * Sets the time limits of get_url and get_configurations requests.
+   */
+  void setLinkTimeouts(YozioHttpTransport.Timeouts timeouts) {
+    this.linkTimeouts = timeouts;
+  }
+
+  /**
+   * Sends the following requests over https instead of http.
+   */
+  void setSecure(boolean secure) {
+    this.baseUrl = secure ? SECURE_BASE_URL : DEFAULT_BASE_URL;
+  }
+
   // For testing.
   void setBaseUrl(String baseUrl) {
     this.baseUrl = baseUrl;
   }
 
   /**
-   * @param params  a list of name value pairs to add to
+   * Parses a Retry-After header, which is either a number of seconds or an
+   * HTTP date.
+   *
+   * @return the time to wait in milliseconds, or 0 if there is none.
+   */
+  static long parseRetryAfter(String value) {
+    if (value == null) {
+      return 0;
+    }
+    value = value.trim();
+    try {
+      return Math.max(0, Long.parseLong(value) * 1000);
+    } catch (NumberFormatException e) {
+      // Not a number of seconds.
+    }
+    try {
+      return Math.max(0, DateUtils.parseDate(value).getTime() - System.currentTimeMillis());
+    } catch (DateParseException e) {
+      Log.e(LOGTAG, "parseRetryAfter", e);
+    }
+    return 0;
+  }
+
+  /**
+   * @return body gzipped if it reaches the compression threshold, otherwise
+   *     body.
+   */
+  private YozioHttpTransport.Body compress(YozioHttpTransport.Body body) {
+    long threshold = compressionThresholdBytes;
+    if (threshold < 0 || body.getContentLength() < threshold) {
+      return body;
+    }
+    return new YozioGzipEntity(body);
+  }
+
+  /**
+   * Reads a response body as a String, decompressing it if it is gzipped.
+   */
+  private static String readResponse(YozioHttpTransport.Response response, InputStream content)
+      throws IOException {
+    String encoding = response.getHeader(H_CONTENT_ENCODING);
+    GZIPInputStream gzipContent = null;
+    if (encoding != null && encoding.trim().equalsIgnoreCase(YozioGzipEntity.GZIP)) {
+      gzipContent = new GZIPInputStream(content);
+      content = gzipContent;
+    }
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[4 * 1024];
+      int length;
+      while ((length = content.read(buffer)) != -1) {
+        out.write(buffer, 0, length);
+      }
+      return out.toString(charset(response.getHeader(H_CONTENT_TYPE)));
+    } finally {
+      if (gzipContent != null) {
+        // Frees the native inflater now rather than on finalization.
+        gzipContent.close();
+      }
+    }
+  }
+
+  /**
+   * @return the charset of a Content-Type header, or the HTTP default.
+   */
+  static String charset(String contentType) {
+    if (contentType != null) {
+      for (String param : contentType.split(";")) {
+        param = param.trim();
+        if (param.regionMatches(true, 0, "charset=", 0, 8)) {
+          String charset = param.substring(8).trim();
+          if (charset.length() > 1 && charset.startsWith("\"") && charset.endsWith("\"")) {
+            charset = charset.substring(1, charset.length() - 1);
+          }
+          if (charset.length() > 0) {
+            return charset;
+          }
+        }
+      }
+    }
+    return DEFAULT_CHARSET;
+  }
+
+  /**
+   * @param params  the form to add to
    * @param key    the param key
    * @param value  the param value
    *
-   * Adds a BasicNameValuePair to params for given key and value
+   * Adds a parameter to params for given key and value
    * when value is not null and not empty
    */
-  private void addParam(List<NameValuePair> params, String key, JSONObject value) {
+  private void addParam(YozioFormEntity params, String key, JSONObject value) {
     if (value != null && value.length() > 0) {
-      params.add(new BasicNameValuePair(key, value.toString()));
+      params.add(key, value.toString());
     }
   }
 
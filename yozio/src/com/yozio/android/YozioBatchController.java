@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2012 Yozio Inc.
+ *
+ * This file is part of the Yozio SDK.
+ *
+ * By using the Yozio SDK in your software, you agree to the terms of the
+ * Yozio SDK License Agreement which can be found at www.yozio.com/sdk_license.
+ */
+
+package com.yozio.android;
+
+/**
+ * Tunes how many events are sent per batch, and how many events are stored
+ * before a flush, from the results of previous batches.
+ *
+ * Batches grow while they fill up and come back faster than TARGET_RTT_MS,
+ * and shrink when they are slow or fail. On slow or unreliable connections
+ * more events are stored before flushing, so fewer requests are made. Batches
+ * never exceed the request byte ceiling, based on the average event size.
+ *
+ * Thread safe.
+ */
+class YozioBatchController {
+
+  static final int MIN_BATCH_SIZE = 5;
+  static final int MAX_BATCH_SIZE = 500;
+  static final int DEFAULT_BATCH_SIZE = 50;
+  static final long DEFAULT_MAX_REQUEST_BYTES = 256 * 1024;
+  // Round trip time above which batches shrink.
+  static final long TARGET_RTT_MS = 2000;
+  // Round trip time below which every event is flushed right away.
+  static final long FAST_RTT_MS = 250;
+  static final int MAX_FLUSH_THRESHOLD = 20;
+  // Weight of the newest result in the moving averages.
+  private static final double SMOOTHING = 0.25;
+
+  private final long maxRequestBytes;
+
+  private int batchSize = DEFAULT_BATCH_SIZE;
+  private int flushThreshold = 1;
+  // Moving averages, or 0 before the first result.
+  private double rttMillis;
+  private double bytesPerEvent;
+  private double failureRate;
+
+  YozioBatchController() {
+    this(DEFAULT_MAX_REQUEST_BYTES);
+  }
+
+  /**
+   * @param maxRequestBytes  the maximum size of the events in one batch.
+   */
+  YozioBatchController(long maxRequestBytes) {
+    this.maxRequestBytes = maxRequestBytes;
+  }
+
+  /**
+   * Records a batch that was sent successfully.
+   *
+   * @param numEvents  the number of events in the batch.
+   * @param numBytes  the size of the events in the batch.
+   * @param rttMillis  how long the request took.
+   */
+  synchronized void onSuccess(int numEvents, long numBytes, long rttMillis) {
+    update(true, numEvents, numBytes, rttMillis);
+  }
+
+  /**
+   * Records a batch that failed to send.
+   */
+  synchronized void onFailure(int numEvents, long numBytes, long rttMillis) {
+    update(false, numEvents, numBytes, rttMillis);
+  }
+
+  /**
+   * @return the maximum number of events to send in the next batch.
+   */
+  synchronized int getBatchSize() {
+    return batchSize;
+  }
+
+  /**
+   * @return the number of stored events at which to flush.
+   */
+  synchronized int getFlushThreshold() {
+    return flushThreshold;
+  }
+
+  /**
+   * @return the maximum size of the events in one batch.
+   */
+  long getMaxRequestBytes() {
+    return maxRequestBytes;
+  }
+
+  /**
+   * @return the average round trip time of a batch, in milliseconds.
+   */
+  synchronized long getRttMillis() {
+    return Math.round(rttMillis);
+  }
+
+  /**
+   * @return the average fraction of batches that failed, from 0 to 1.
+   */
+  synchronized double getFailureRate() {
+    return failureRate;
+  }
+
+  private void update(boolean success, int numEvents, long numBytes, long rtt) {
+    rttMillis = average(rttMillis, rtt);
+    if (numEvents > 0) {
+      bytesPerEvent = average(bytesPerEvent, (double) numBytes / numEvents);
+    }
+    failureRate += SMOOTHING * ((success ? 0 : 1) - failureRate);
+
+    if (!success) {
+      batchSize = Math.max(MIN_BATCH_SIZE, batchSize / 2);
+    } else if (rtt > TARGET_RTT_MS) {
+      batchSize = Math.max(MIN_BATCH_SIZE, batchSize * 3 / 4);
+    } else if (numEvents >= batchSize) {
+      // Only grow when the batch was full, so a bigger one would have helped.
+      batchSize = Math.min(MAX_BATCH_SIZE, batchSize + batchSize / 2);
+    }
+    if (bytesPerEvent > 0) {
+      batchSize = (int) Math.max(1, Math.min(batchSize, maxRequestBytes / bytesPerEvent));
+    }
+
+    if (rttMillis <= FAST_RTT_MS) {
+      flushThreshold = 1;
+    } else {
+      int threshold = (int) Math.ceil(rttMillis / FAST_RTT_MS * (1 + failureRate));
+      flushThreshold = Math.max(1, Math.min(Math.min(MAX_FLUSH_THRESHOLD, batchSize), threshold));
+    }
+  }
+
+  private static double average(double average, double value) {
+    return average == 0 ? value : average + SMOOTHING * (value - average);
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "batchSize=" + batchSize + " flushThreshold=" + flushThreshold +
+        " rttMillis=" + getRttMillis() + " failureRate=" + failureRate;
+  }
+}
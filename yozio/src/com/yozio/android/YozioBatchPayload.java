@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2012 Yozio Inc.
+ *
+ * This file is part of the Yozio SDK.
+ *
+ * By using the Yozio SDK in your software, you agree to the terms of the
+ * Yozio SDK License Agreement which can be found at www.yozio.com/sdk_license.
+ */
+
+package com.yozio.android;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+
+/**
+ * Payload of a batch_events request.
+ *
+ * The stored events are spliced into the payload as they are, so they are
+ * never parsed or reserialized on their way to the server.
+ */
+class YozioBatchPayload {
+
+  // Payload key for the array of events.
+  static final String P_PAYLOAD = "payload";
+
+  private final String header;
+  private final String serializedEvents;
+
+  /**
+   * @param header  a serialized JSON object containing every payload field
+   *                except the events.
+   * @param serializedEvents  the comma separated JSON events.
+   */
+  YozioBatchPayload(String header, String serializedEvents) {
+    this.header = header;
+    this.serializedEvents = serializedEvents;
+  }
+
+  /**
+   * Writes the payload JSON object to out.
+   */
+  void writeTo(Writer out) throws IOException {
+    // Drop the closing brace of the header so the events can be appended.
+    int headerEnd = header.lastIndexOf('}');
+    out.write(header, 0, headerEnd);
+    if (headerEnd > 1) {
+      // The header has fields, which the events key must be separated from.
+      out.write(',');
+    }
+    out.write('"');
+    out.write(P_PAYLOAD);
+    out.write("\":[");
+    out.write(serializedEvents);
+    out.write("]}");
+  }
+
+  /**
+   * Adds a field to a serialized JSON object without parsing it.
+   *
+   * @param object  a serialized JSON object without the field.
+   * @param serializedValue  the field value as JSON, such as a quoted string.
+   * @return the serialized object with the field.
+   */
+  static String appendField(String object, String name, String serializedValue) {
+    int objectEnd = object.lastIndexOf('}');
+    StringBuilder out =
+        new StringBuilder(objectEnd + name.length() + serializedValue.length() + 5);
+    out.append(object, 0, objectEnd);
+    if (objectEnd > 1) {
+      out.append(',');
+    }
+    out.append('"').append(name).append("\":").append(serializedValue).append('}');
+    return out.toString();
+  }
+
+  /**
+   * @return the length of the payload in chars.
+   */
+  int length() {
+    int length = header.length() + P_PAYLOAD.length() + serializedEvents.length() + 5;
+    return header.lastIndexOf('}') > 1 ? length + 1 : length;
+  }
+
+  @Override
+  public String toString() {
+    StringWriter out = new StringWriter(length());
+    try {
+      writeTo(out);
+    } catch (IOException e) {
+      // StringWriter does not throw.
+    }
+    return out.toString();
+  }
+}
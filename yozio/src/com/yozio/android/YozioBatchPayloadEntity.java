@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2012 Yozio Inc.
+ *
+ * This file is part of the Yozio SDK.
+ *
+ * By using the Yozio SDK in your software, you agree to the terms of the
+ * Yozio SDK License Agreement which can be found at www.yozio.com/sdk_license.
+ */
+
+package com.yozio.android;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Request entity that writes a {@link YozioBatchPayload} straight to the
+ * connection, either as a form parameter or as a raw JSON body.
+ *
+ * The payload is encoded as it is written, through a small buffer, so no
+ * full size copy of it is made. The content length is found by encoding the
+ * payload once without keeping the output.
+ */
+class YozioBatchPayloadEntity implements YozioHttpTransport.Body {
+
+  static final String FORM_CONTENT_TYPE = "application/x-www-form-urlencoded; charset=UTF-8";
+  static final String JSON_CONTENT_TYPE = "application/json; charset=UTF-8";
+
+  private static final int BUFFER_SIZE = 8 * 1024;
+
+  private final YozioBatchPayload payload;
+  // Name of the form parameter, or null to send the payload as JSON.
+  private final String formParam;
+  // Guarded by this.
+  private long contentLength = -1;
+
+  /**
+   * @param formParam  the name of the form parameter to send the payload in,
+   *     or null to send the payload as a JSON body.
+   */
+  YozioBatchPayloadEntity(YozioBatchPayload payload, String formParam) {
+    this.payload = payload;
+    this.formParam = formParam;
+  }
+
+  public String getContentType() {
+    return formParam != null ? FORM_CONTENT_TYPE : JSON_CONTENT_TYPE;
+  }
+
+  public String getContentEncoding() {
+    return null;
+  }
+
+  public synchronized long getContentLength() {
+    if (contentLength < 0) {
+      CountingOutputStream counter = new CountingOutputStream();
+      try {
+        writeTo(counter);
+        contentLength = counter.count;
+      } catch (IOException e) {
+        // CountingOutputStream does not throw.
+      }
+    }
+    return contentLength;
+  }
+
+  public void writeTo(OutputStream out) throws IOException {
+    BufferedOutputStream buffered = new BufferedOutputStream(out, BUFFER_SIZE);
+    OutputStream content = buffered;
+    if (formParam != null) {
+      FormEncodingOutputStream form = new FormEncodingOutputStream(buffered);
+      form.write(formParam.getBytes("UTF-8"));
+      buffered.write('=');
+      content = form;
+    }
+    Writer writer = new OutputStreamWriter(content, "UTF-8");
+    payload.writeTo(writer);
+    // Flushes through to out, which is left open for the connection.
+    writer.flush();
+  }
+
+  /**
+   * Percent-encodes bytes the same way as URLEncoder.
+   */
+  private static class FormEncodingOutputStream extends FilterOutputStream {
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    FormEncodingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      b &= 0xff;
+      if ((b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9')
+          || b == '.' || b == '-' || b == '*' || b == '_') {
+        out.write(b);
+      } else if (b == ' ') {
+        out.write('+');
+      } else {
+        out.write('%');
+        out.write(HEX_DIGITS[b >> 4]);
+        out.write(HEX_DIGITS[b & 0xf]);
+      }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      for (int i = off; i < off + len; i++) {
+        write(b[i]);
+      }
+    }
+  }
+
+  /**
+   * Counts the bytes written, and discards them.
+   */
+  private static class CountingOutputStream extends OutputStream {
+
+    long count;
+
+    @Override
+    public void write(int b) {
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      count += len;
+    }
+  }
+}
@@ -9,7 +9,10 @@
 
 package com.yozio.android;
 
+import java.util.List;
+
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
 /**
@@ -24,6 +27,13 @@ interface YozioDataStore {
    */
   boolean addEvent(JSONObject event);
 
+  /**
+   * Add events to the data store in a single write.
+   *
+   * @return true iff all the events were added successfully.
+   */
+  boolean addEvents(List<JSONObject> events);
+
   /**
    * Get the number of events in the data store.
    *
@@ -32,38 +42,124 @@ interface YozioDataStore {
   int getNumEvents();
 
   /**
-   * Retrieve events from the data store starting with the oldest event
-   * in the data store.
+   * Check out the oldest events that are not leased to another flusher. The
+   * events stay in the data store, but are skipped by other checkouts until
+   * the lease is committed, released or expires.
    *
-   * @param limit  the maximum number of events to return.
-   * @return an {@link Events} object, or null if an error occurs.
+   * @param limit  the maximum number of events to check out.
+   * @param maxBytes  the maximum total size of the events, or 0 for no limit.
+   *     At least one event is checked out, even if it is larger.
+   * @param leaseMillis  how long the events are leased for.
+   * @return an {@link Events} object holding the lease, or null if there are
+   *         no events to check out or an error occurs.
    */
-  Events getEvents(int limit);
+  Events checkoutEvents(int limit, long maxBytes, long leaseMillis);
 
   /**
-   * Remove events from the data store starting with the oldest event in the
-   * data store and ending with the event with lastEventId (inclusive).
+   * Remove checked out events from the data store and end their lease.
    *
-   * @param lastEventId  the id of the last event to remove.
+   * @param events  events returned by checkoutEvents.
    * @return true iff the events were removed successfully.
    */
-  boolean removeEvents(String lastEventId);
+  boolean commitEvents(Events events);
+
+  /**
+   * End the lease on checked out events without removing them, so they can
+   * be checked out again.
+   *
+   * @param events  events returned by checkoutEvents.
+   */
+  void releaseEvents(Events events);
+
+  /**
+   * Caps the events kept in the data store. When a cap is exceeded, events are
+   * evicted according to evictionPolicy.
+   *
+   * @param maxEvents  maximum number of events, or 0 for no limit.
+   * @param maxBytes  maximum total size of the events, or 0 for no limit.
+   * @param maxAgeMillis  maximum age of an event, or 0 for no limit.
+   * @param evictionPolicy  one of the Yozio.EVICT_ constants.
+   */
+  void setLimits(int maxEvents, long maxBytes, long maxAgeMillis, int evictionPolicy);
 
   /**
-   * Return value for getEvents.
+   * @return the number of evicted events that have not been reported.
+   */
+  int getNumEvictedEvents();
+
+  /**
+   * Marks evicted events as reported.
+   *
+   * @param numReported  the number of evicted events that were reported.
+   */
+  void removeNumEvictedEvents(int numReported);
+
+  /**
+   * Release any resources held by the data store, such as an open database.
+   * The data store reacquires them the next time it is used.
+   */
+  void close();
+
+  /**
+   * Return value for checkoutEvents.
    */
   class Events {
 
-    private final JSONArray jsonArray;
+    private final String serializedEvents;
+    private final int numEvents;
+    private final String firstEventId;
     private final String lastEventId;
 
-    Events(JSONArray eventsArr, String lastEventId) {
-      this.jsonArray = eventsArr;
+    /**
+     * @param serializedEvents  the events as stored, separated by commas.
+     * @param numEvents  the number of events in serializedEvents.
+     * @param firstEventId  the id of the first event.
+     * @param lastEventId  the id of the last event.
+     */
+    Events(String serializedEvents, int numEvents, String firstEventId, String lastEventId) {
+      this.serializedEvents = serializedEvents;
+      this.numEvents = numEvents;
+      this.firstEventId = firstEventId;
       this.lastEventId = lastEventId;
     }
 
+    /**
+     * Cheaply checks that a stored event is framed like a JSON object. A torn
+     * or corrupted event would make the whole spliced batch invalid JSON.
+     */
+    static boolean isWellFormed(String serializedEvent) {
+      int length = serializedEvent.length();
+      return length >= 2 && serializedEvent.charAt(0) == '{'
+          && serializedEvent.charAt(length - 1) == '}';
+    }
+
+    /**
+     * @return the comma separated JSON events, which can be spliced directly
+     *         into a JSON array.
+     */
+    String getSerializedEvents() {
+      return serializedEvents;
+    }
+
+    int getNumEvents() {
+      return numEvents;
+    }
+
+    /**
+     * Parses the serialized events. Avoid this on the flush path.
+     *
+     * @return the events, or null if they are not valid JSON.
+     */
     JSONArray getJsonArray() {
-      return jsonArray;
+      try {
+        return new JSONArray("[" + serializedEvents + "]");
+      } catch (JSONException e) {
+        return null;
+      }
+    }
+
+    String getFirstEventId() {
+      return firstEventId;
     }
 
     String getLastEventId() {
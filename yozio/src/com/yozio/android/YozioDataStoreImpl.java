@@ -9,78 +9,176 @@
 
 package com.yozio.android;
 
-import org.json.JSONArray;
-import org.json.JSONException;
+import java.util.Collections;
+import java.util.List;
+
 import org.json.JSONObject;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 
 class YozioDataStoreImpl implements YozioDataStore {
 
   private static final String LOGTAG = "YozioDataStoreImpl";
 
-  static final int DATABASE_VERSION = 1;
+  static final int DATABASE_VERSION = 2;
   static final String DATABASE_NAME = "yozio";
 
   static final String EVENTS_TABLE = "events";
   static final String APP_KEY = "app_key";
   static final String DATA = "data";
+  static final String EVENT_TYPE = "event_type";
+  static final String SIZE = "size";
+  static final String CREATED_AT = "created_at";
+
+  // How often events are checked against the maximum age.
+  private static final long AGE_CHECK_INTERVAL_MS = 60 * 1000;
+
+  // Eviction priority of each event type. Event types that are not listed
+  // have priority 0 and are evicted first.
+  private static final int[][] EVENT_TYPE_PRIORITIES = {
+    { Yozio.E_OPENED_APP, 2 },
+    { Yozio.E_LOGIN, 2 },
+    { Yozio.E_SHARED_LINK, 1 },
+  };
 
   /**
    * Handles the creation and versioning of the Yozio database.
    */
   static class DatabaseHelper extends SQLiteOpenHelper {
+    // Incremented every time the events table is (re)created.
+    private volatile int generation;
+
     DatabaseHelper(Context context) {
       super(context, DATABASE_NAME, null, DATABASE_VERSION);
     }
     @Override
     public void onCreate(SQLiteDatabase db) {
+      generation++;
       db.execSQL(
           "CREATE TABLE " + EVENTS_TABLE + " (_id INTEGER PRIMARY KEY AUTOINCREMENT," +
-              APP_KEY + " STRING NOT NULL," + DATA + " STRING NOT NULL)");
+              APP_KEY + " STRING NOT NULL," + DATA + " STRING NOT NULL," +
+              EVENT_TYPE + " INTEGER NOT NULL DEFAULT 0," +
+              SIZE + " INTEGER NOT NULL DEFAULT 0," +
+              CREATED_AT + " INTEGER NOT NULL DEFAULT 0)");
       db.execSQL(
           "CREATE INDEX IF NOT EXISTS app_key_idx ON " + EVENTS_TABLE + " (" + APP_KEY + ")");
     }
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+      if (oldVersion == 1 && newVersion == 2) {
+        // Keep the stored events. They are treated as created now.
+        db.execSQL("ALTER TABLE " + EVENTS_TABLE +
+            " ADD COLUMN " + EVENT_TYPE + " INTEGER NOT NULL DEFAULT 0");
+        db.execSQL("ALTER TABLE " + EVENTS_TABLE +
+            " ADD COLUMN " + SIZE + " INTEGER NOT NULL DEFAULT 0");
+        db.execSQL("ALTER TABLE " + EVENTS_TABLE +
+            " ADD COLUMN " + CREATED_AT + " INTEGER NOT NULL DEFAULT 0");
+        db.execSQL("UPDATE " + EVENTS_TABLE + " SET " + SIZE + " = LENGTH(" + DATA + "), " +
+            CREATED_AT + " = " + System.currentTimeMillis());
+        return;
+      }
       // The user has upgraded the app. Reinitialize the database.
       db.execSQL("DROP TABLE IF EXISTS " + EVENTS_TABLE);
       onCreate(db);
     }
+    int getGeneration() {
+      return generation;
+    }
   }
 
 
   private final SQLiteOpenHelper dbHelper;
   private final String appKey;
+  // If true, the database is opened once and kept open until close() is
+  // called. Otherwise, it is opened and closed around every call.
+  private final boolean keepOpen;
+
+  private SQLiteDatabase db;
+  private SQLiteStatement insertStatement;
+  private int numOpens;
+  private int numCloses;
+  // Cached number of events for appKey, or -1 if it must be recounted.
+  private int numEvents = -1;
+  // Cached total size of the events for appKey. Valid iff numEvents is.
+  private long numBytes;
+  // Generation of the events table that numEvents was counted from.
+  private int numEventsGeneration;
+
+  // Limits on the stored events. 0 means no limit.
+  private int maxEvents;
+  private long maxBytes;
+  private long maxAgeMillis;
+  private int evictionPolicy = Yozio.EVICT_OLDEST;
+  private long lastAgeCheckMillis;
+  // Number of evicted events that have not been reported.
+  private int numEvictedEvents;
+  // Ranges of event ids checked out by flushers.
+  private final YozioLeases leases = new YozioLeases();
 
   YozioDataStoreImpl(SQLiteOpenHelper dbHelper, String appKey) {
+    this(dbHelper, appKey, true);
+  }
+
+  YozioDataStoreImpl(SQLiteOpenHelper dbHelper, String appKey, boolean keepOpen) {
     this.dbHelper = dbHelper;
     this.appKey = appKey;
+    this.keepOpen = keepOpen;
   }
 
   public boolean addEvent(JSONObject event) {
+    return addEvents(Collections.singletonList(event));
+  }
+
+  public boolean addEvents(List<JSONObject> events) {
     synchronized (this) {
       try {
-        ContentValues cv = new ContentValues();
-        cv.put(APP_KEY, appKey);
-        cv.put(DATA, event.toString());
-        dbHelper.getWritableDatabase().insert(EVENTS_TABLE, null, cv);
+        SQLiteDatabase database = getDatabase();
+        SQLiteStatement insert = getInsertStatement();
+        long now = System.currentTimeMillis();
+        long size = 0;
+        // Write all the events in a single transaction.
+        database.beginTransaction();
+        try {
+          for (JSONObject event : events) {
+            String data = event.toString();
+            insert.bindString(1, appKey);
+            insert.bindString(2, data);
+            insert.bindLong(3, event.optInt(EVENT_TYPE));
+            insert.bindLong(4, data.length());
+            insert.bindLong(5, now);
+            insert.executeInsert();
+            size += data.length();
+          }
+          database.setTransactionSuccessful();
+        } finally {
+          database.endTransaction();
+        }
+        if (numEvents >= 0) {
+          numEvents += events.size();
+          numBytes += size;
+        }
+        try {
+          enforceLimits(now);
+        } catch (SQLException e) {
+          // The events were still added.
+          Log.e(LOGTAG, "enforceLimits", e);
+        }
         if (listener != null) {
           listener.onAdd();
         }
         // Don't worry, finally will still be called.
         return true;
-      } catch (SQLiteException e) {
-        Log.e(LOGTAG, "addEvent", e);
+      } catch (SQLException e) {
+        Log.e(LOGTAG, "addEvents", e);
       } finally {
-        dbHelper.close();
+        releaseDatabase();
       }
     }
     return false;
@@ -88,78 +186,390 @@ class YozioDataStoreImpl implements YozioDataStore {
 
   public int getNumEvents() {
     synchronized (this) {
-      int count = -1;
+      if (isCounted()) {
+        return numEvents;
+      }
+      return reconcileNumEvents();
+    }
+  }
+
+  /**
+   * Recounts the events in the database, replacing the cached count.
+   *
+   * @return the number of events in the data store, or -1 if an error occurs.
+   */
+  int reconcileNumEvents() {
+    synchronized (this) {
       try {
-        Cursor cursor = dbHelper.getReadableDatabase().rawQuery(
-            "SELECT COUNT(*) FROM " + EVENTS_TABLE + where(), null);
-        cursor.moveToFirst();
-        count = cursor.getInt(0);
-        cursor.close();
+        countEvents();
       } catch (SQLiteException e) {
         Log.e(LOGTAG, "getNumEvents", e);
       } finally {
-        dbHelper.close();
+        releaseDatabase();
       }
-      return count;
+      return numEvents;
     }
   }
 
-  public Events getEvents(int limit) {
+  public Events checkoutEvents(int limit, long maxBytes, long leaseMillis) {
     synchronized (this) {
-      JSONArray jsonArray = null;
-      String lastEventId = null;
+      long now = System.currentTimeMillis();
+      leases.removeExpired(now);
+      StringBuilder serializedEvents = new StringBuilder();
+      int count = 0;
+      long size = 0;
+      long firstEventId = -1;
+      long lastEventId = -1;
+      StringBuilder malformedIds = new StringBuilder();
       try {
-        Cursor cursor = dbHelper.getReadableDatabase().rawQuery(
-            "SELECT _id, " + DATA + " FROM "+ EVENTS_TABLE + where() +
+        Cursor cursor = getDatabase().rawQuery(
+            "SELECT _id, " + DATA + " FROM "+ EVENTS_TABLE + where() + notLeased() +
             " ORDER BY _id ASC LIMIT " + limit, null);
-        jsonArray = new JSONArray();
-        while (cursor.moveToNext()) {
-          if (cursor.isLast()) {
-            lastEventId = cursor.getString(0);
-          }
-          try {
-            jsonArray.put(new JSONObject(cursor.getString(1)));
-          } catch (JSONException e) {
-            // Ignore event.
+        try {
+          // Stop at the next leased range, so the checked out events are a
+          // single range of ids.
+          long end = Long.MAX_VALUE;
+          while (cursor.moveToNext()) {
+            long id = cursor.getLong(0);
+            String data = cursor.getString(1);
+            if (!Events.isWellFormed(data)) {
+              // Ignore event, and drop it so it isn't read again.
+              if (malformedIds.length() > 0) {
+                malformedIds.append(',');
+              }
+              malformedIds.append(id);
+              continue;
+            }
+            if (count == 0) {
+              firstEventId = id;
+              end = leases.nextLeaseStart(id);
+            } else if (id >= end || (maxBytes > 0 && size + data.length() > maxBytes)) {
+              break;
+            }
+            if (count > 0) {
+              serializedEvents.append(',');
+            }
+            serializedEvents.append(data);
+            size += data.length();
+            lastEventId = id;
+            count++;
           }
+        } finally {
+          cursor.close();
+        }
+        if (malformedIds.length() > 0) {
+          Log.w(LOGTAG, "Dropped " + deleteEvents("_id IN (" + malformedIds + ")") +
+              " malformed events");
         }
-        cursor.close();
       } catch (SQLException e) {
-        Log.e(LOGTAG, "getEvents", e);
+        Log.e(LOGTAG, "checkoutEvents", e);
+        return null;
       } finally {
-        dbHelper.close();
+        releaseDatabase();
       }
-      if (jsonArray != null && lastEventId != null) {
-        return new Events(jsonArray, lastEventId);
-      } else {
+      if (count == 0) {
         return null;
       }
+      leases.add(firstEventId, lastEventId, now + leaseMillis);
+      return new Events(serializedEvents.toString(), count,
+          Long.toString(firstEventId), Long.toString(lastEventId));
     }
   }
 
-  public boolean removeEvents(String lastEventId) {
+  public boolean commitEvents(Events events) {
     synchronized (this) {
       try {
-        dbHelper.getWritableDatabase().delete(EVENTS_TABLE,
-            "_id <= " + lastEventId + " AND " + APP_KEY + " = '" + appKey + "'", null);
+        long firstEventId = Long.parseLong(events.getFirstEventId());
+        long lastEventId = Long.parseLong(events.getLastEventId());
+        // Only delete the checked out range. Older events may be checked out
+        // by other flushers. If the lease expired and the events were checked
+        // out again, they are deleted here and the other commit is a no-op.
+        deleteEvents("_id BETWEEN " + firstEventId + " AND " + lastEventId);
+        leases.remove(firstEventId, lastEventId);
         if (listener != null) {
           listener.onRemove();
         }
         // Don't worry, finally will still be called.
         return true;
+      } catch (NumberFormatException e) {
+        Log.e(LOGTAG, "commitEvents", e);
       } catch (SQLException e) {
-        Log.e(LOGTAG, "removeEvents", e);
+        Log.e(LOGTAG, "commitEvents", e);
       } finally {
-        dbHelper.close();
+        releaseDatabase();
       }
       return false;
     }
   }
 
+  public void releaseEvents(Events events) {
+    synchronized (this) {
+      try {
+        leases.remove(Long.parseLong(events.getFirstEventId()),
+            Long.parseLong(events.getLastEventId()));
+      } catch (NumberFormatException e) {
+        Log.e(LOGTAG, "releaseEvents", e);
+      }
+    }
+  }
+
+  public void close() {
+    synchronized (this) {
+      if (db != null) {
+        if (insertStatement != null) {
+          insertStatement.close();
+          insertStatement = null;
+        }
+        dbHelper.close();
+        db = null;
+        numCloses++;
+      }
+    }
+  }
+
+  public void setLimits(int maxEvents, long maxBytes, long maxAgeMillis, int evictionPolicy) {
+    synchronized (this) {
+      this.maxEvents = maxEvents;
+      this.maxBytes = maxBytes;
+      this.maxAgeMillis = maxAgeMillis;
+      this.evictionPolicy = evictionPolicy;
+      // Check the age on the next add.
+      lastAgeCheckMillis = 0;
+    }
+  }
+
+  public int getNumEvictedEvents() {
+    synchronized (this) {
+      return numEvictedEvents;
+    }
+  }
+
+  public void removeNumEvictedEvents(int numReported) {
+    synchronized (this) {
+      numEvictedEvents = Math.max(0, numEvictedEvents - numReported);
+    }
+  }
+
+  /**
+   * @return the number of times the database has been opened.
+   */
+  int getNumOpens() {
+    synchronized (this) {
+      return numOpens;
+    }
+  }
+
+  /**
+   * @return the number of times the database has been closed.
+   */
+  int getNumCloses() {
+    synchronized (this) {
+      return numCloses;
+    }
+  }
+
+  /**
+   * Returns the open database, opening it if needed. Must be called while
+   * holding the lock on this.
+   */
+  private SQLiteDatabase getDatabase() {
+    if (db == null || !db.isOpen()) {
+      if (insertStatement != null) {
+        // Compiled for the closed database, such as when another data store
+        // on the same helper closed it.
+        try {
+          insertStatement.close();
+        } catch (IllegalStateException e) {
+          // Already released along with its database.
+        }
+        insertStatement = null;
+      }
+      db = dbHelper.getWritableDatabase();
+      numOpens++;
+      // When kept open, the database is only reopened after close(). Recount
+      // the events in case the database was changed while it was closed.
+      if (keepOpen) {
+        numEvents = -1;
+      }
+    }
+    return db;
+  }
+
+  /**
+   * Evicts events until the stored events are within the limits. Checked out
+   * events are never evicted, since their flusher may still send them. Must be
+   * called while holding the lock on this.
+   */
+  private void enforceLimits(long now) {
+    leases.removeExpired(now);
+    if (maxAgeMillis > 0 && now - lastAgeCheckMillis >= AGE_CHECK_INTERVAL_MS) {
+      lastAgeCheckMillis = now;
+      numEvictedEvents += deleteEvents(CREATED_AT + " < " + (now - maxAgeMillis) + notLeased());
+    }
+    if (maxEvents <= 0 && maxBytes <= 0) {
+      return;
+    }
+    if (!isCounted()) {
+      countEvents();
+    }
+    if (!isOverLimits(numEvents, numBytes)) {
+      return;
+    }
+    // Pick the events to evict in eviction order until the rest fit.
+    int remainingEvents = numEvents;
+    long remainingBytes = numBytes;
+    StringBuilder ids = new StringBuilder();
+    Cursor cursor = getDatabase().rawQuery(
+        "SELECT _id, " + SIZE + " FROM " + EVENTS_TABLE + where() + notLeased() +
+        " ORDER BY " + evictionOrder(), null);
+    try {
+      while (isOverLimits(remainingEvents, remainingBytes) && cursor.moveToNext()) {
+        if (ids.length() > 0) {
+          ids.append(',');
+        }
+        ids.append(cursor.getLong(0));
+        remainingEvents--;
+        remainingBytes -= cursor.getLong(1);
+      }
+    } finally {
+      cursor.close();
+    }
+    if (ids.length() > 0) {
+      int numEvicted = deleteEvents("_id IN (" + ids + ")");
+      numEvictedEvents += numEvicted;
+      Log.w(LOGTAG, "Evicted " + numEvicted + " events");
+    }
+  }
+
+  private boolean isOverLimits(int numEvents, long numBytes) {
+    return (maxEvents > 0 && numEvents > maxEvents) || (maxBytes > 0 && numBytes > maxBytes);
+  }
+
+  /**
+   * @return the ORDER BY clause that lists events to evict first.
+   */
+  private String evictionOrder() {
+    switch (evictionPolicy) {
+    case Yozio.EVICT_LOWEST_PRIORITY:
+      StringBuilder order = new StringBuilder("CASE " + EVENT_TYPE);
+      for (int[] priority : EVENT_TYPE_PRIORITIES) {
+        order.append(" WHEN ").append(priority[0]).append(" THEN ").append(priority[1]);
+      }
+      return order.append(" ELSE 0 END ASC, _id ASC").toString();
+    case Yozio.EVICT_SAMPLE:
+      return "RANDOM()";
+    default:
+      return "_id ASC";
+    }
+  }
+
+  /**
+   * Deletes the events for appKey matching the selection, keeping the cached
+   * count up to date. Must be called while holding the lock on this.
+   *
+   * @return the number of events deleted.
+   */
+  private int deleteEvents(String selection) {
+    SQLiteDatabase database = getDatabase();
+    String where = APP_KEY + " = '" + appKey + "' AND " + selection;
+    long size = 0;
+    if (isCounted()) {
+      Cursor cursor = database.rawQuery(
+          "SELECT TOTAL(" + SIZE + ") FROM " + EVENTS_TABLE + " WHERE " + where, null);
+      try {
+        cursor.moveToFirst();
+        size = cursor.getLong(0);
+      } finally {
+        cursor.close();
+      }
+    }
+    int numDeleted = database.delete(EVENTS_TABLE, where, null);
+    if (numEvents >= 0) {
+      numEvents = Math.max(0, numEvents - numDeleted);
+      numBytes = Math.max(0, numBytes - size);
+    }
+    return numDeleted;
+  }
+
+  /**
+   * @return true iff the cached count is valid.
+   */
+  private boolean isCounted() {
+    return numEvents >= 0 && numEventsGeneration == getGeneration();
+  }
+
+  /**
+   * Counts the events in the database. Must be called while holding the lock
+   * on this.
+   */
+  private void countEvents() {
+    numEvents = -1;
+    SQLiteDatabase database = getDatabase();
+    int generation = getGeneration();
+    Cursor cursor = database.rawQuery(
+        "SELECT COUNT(*), TOTAL(" + SIZE + ") FROM " + EVENTS_TABLE + where(), null);
+    try {
+      cursor.moveToFirst();
+      numBytes = cursor.getLong(1);
+      numEvents = cursor.getInt(0);
+      numEventsGeneration = generation;
+    } finally {
+      cursor.close();
+    }
+  }
+
+  /**
+   * @return the generation of the events table, or 0 if it is not tracked.
+   */
+  private int getGeneration() {
+    if (dbHelper instanceof DatabaseHelper) {
+      return ((DatabaseHelper) dbHelper).getGeneration();
+    }
+    return 0;
+  }
+
+  /**
+   * Returns the compiled insert statement for the open database, compiling it
+   * if needed. Must be called while holding the lock on this.
+   */
+  private SQLiteStatement getInsertStatement() {
+    // Opened first, which drops a statement compiled for a closed database.
+    SQLiteDatabase database = getDatabase();
+    if (insertStatement == null) {
+      insertStatement = database.compileStatement(
+          "INSERT INTO " + EVENTS_TABLE + " (" + APP_KEY + ", " + DATA + ", " + EVENT_TYPE +
+          ", " + SIZE + ", " + CREATED_AT + ") VALUES (?, ?, ?, ?, ?)");
+    }
+    return insertStatement;
+  }
+
+  /**
+   * Closes the database unless it should be kept open. Must be called while
+   * holding the lock on this.
+   */
+  private void releaseDatabase() {
+    if (!keepOpen) {
+      close();
+    }
+  }
+
   private String where() {
     return " WHERE " + APP_KEY + " = '" + appKey + "'";
   }
 
+  /**
+   * @return an AND clause excluding leased events. Must be called while
+   *         holding the lock on this.
+   */
+  private String notLeased() {
+    StringBuilder clause = new StringBuilder();
+    for (int i = 0; i < leases.size(); i++) {
+      clause.append(" AND _id NOT BETWEEN ").append(leases.getFirst(i))
+          .append(" AND ").append(leases.getLast(i));
+    }
+    return clause.toString();
+  }
+
   // For testing
 
   private DataStoreListener listener;
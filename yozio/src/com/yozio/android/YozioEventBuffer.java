@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2012 Yozio Inc.
+ *
+ * This file is part of the Yozio SDK.
+ *
+ * By using the Yozio SDK in your software, you agree to the terms of the
+ * Yozio SDK License Agreement which can be found at www.yozio.com/sdk_license.
+ */
+
+package com.yozio.android;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.json.JSONObject;
+
+/**
+ * Bounded, lock-free buffer of collected events waiting to be added to the
+ * data store.
+ *
+ * Events are stored as their raw fields in preallocated slots, so collecting
+ * an event doesn't allocate or build JSON on the caller's thread. Each slot
+ * has a sequence number that tells producers when it is free and the consumer
+ * when it is written, so any number of threads can offer events while one
+ * thread drains them.
+ *
+ * When the buffer is full, the overflow policy decides whether the new event
+ * or the oldest buffered event is dropped, or whether the caller waits for
+ * room up to a deadline before the new event is dropped.
+ */
+class YozioEventBuffer {
+
+  /**
+   * Receives drained events.
+   */
+  interface Consumer {
+    void onEvent(int eventType, String viralLoopName, String channel, long timeMillis,
+        JSONObject externalProperties);
+  }
+
+  // Number of preallocated slots. The capacity can be lowered, not raised.
+  static final int MAX_CAPACITY = 1024;
+  static final int DEFAULT_CAPACITY = MAX_CAPACITY;
+  static final long DEFAULT_BLOCK_TIMEOUT_MS = 100;
+  // How long a blocked caller sleeps between checks for room.
+  private static final long BLOCK_PARK_NANOS = 100 * 1000;
+
+  private final int mask = MAX_CAPACITY - 1;
+  // Slot i is free for the producer claiming position p when its sequence is
+  // p, and written for the consumer taking position p when it is p + 1.
+  private final AtomicLongArray sequences = new AtomicLongArray(MAX_CAPACITY);
+  private final int[] eventTypes = new int[MAX_CAPACITY];
+  private final String[] viralLoopNames = new String[MAX_CAPACITY];
+  private final String[] channels = new String[MAX_CAPACITY];
+  private final long[] timestamps = new long[MAX_CAPACITY];
+  private final JSONObject[] externalProperties = new JSONObject[MAX_CAPACITY];
+  // Next position to write, and next position to read.
+  private final AtomicLong tail = new AtomicLong();
+  private final AtomicLong head = new AtomicLong();
+
+  private volatile int capacity = DEFAULT_CAPACITY;
+  private volatile int overflowPolicy = Yozio.OVERFLOW_DROP_NEWEST;
+  private volatile long blockTimeoutMillis = DEFAULT_BLOCK_TIMEOUT_MS;
+
+  private final AtomicLong numDroppedEvents = new AtomicLong();
+  // Largest number of events buffered at once.
+  private final AtomicInteger highWaterMark = new AtomicInteger();
+
+  YozioEventBuffer() {
+    for (int i = 0; i < MAX_CAPACITY; i++) {
+      sequences.set(i, i);
+    }
+  }
+
+  /**
+   * @param capacity  the maximum number of buffered events, up to
+   *     MAX_CAPACITY.
+   * @param overflowPolicy  one of the Yozio.OVERFLOW_ constants.
+   * @param blockTimeoutMillis  how long to wait for room with
+   *     Yozio.OVERFLOW_BLOCK.
+   */
+  void configure(int capacity, int overflowPolicy, long blockTimeoutMillis) {
+    this.capacity = Math.max(1, Math.min(MAX_CAPACITY, capacity));
+    this.overflowPolicy = overflowPolicy;
+    this.blockTimeoutMillis = blockTimeoutMillis;
+  }
+
+  /**
+   * Buffers an event, applying the overflow policy if the buffer is full.
+   * Doesn't allocate.
+   *
+   * @return true iff the event was buffered.
+   */
+  boolean offer(int eventType, String viralLoopName, String channel, long timeMillis,
+      JSONObject properties) {
+    long deadline = 0;
+    while (true) {
+      long position = tail.get();
+      int index = (int) position & mask;
+      long sequence = sequences.get(index);
+      if (sequence < position || position - head.get() >= capacity) {
+        // Full.
+        switch (overflowPolicy) {
+        case Yozio.OVERFLOW_DROP_OLDEST:
+          if (poll(null)) {
+            numDroppedEvents.incrementAndGet();
+          } else {
+            // The oldest slot is still being written or read by another
+            // thread. Let it finish instead of spinning.
+            Thread.yield();
+          }
+          continue;
+        case Yozio.OVERFLOW_BLOCK:
+          long now = System.nanoTime();
+          if (deadline == 0) {
+            deadline = now + blockTimeoutMillis * 1000 * 1000;
+          }
+          if (now - deadline < 0) {
+            LockSupport.parkNanos(BLOCK_PARK_NANOS);
+            continue;
+          }
+          numDroppedEvents.incrementAndGet();
+          return false;
+        default:
+          numDroppedEvents.incrementAndGet();
+          return false;
+        }
+      }
+      if (sequence == position && tail.compareAndSet(position, position + 1)) {
+        eventTypes[index] = eventType;
+        viralLoopNames[index] = viralLoopName;
+        channels[index] = channel;
+        timestamps[index] = timeMillis;
+        externalProperties[index] = properties;
+        // Publish the slot to the consumer.
+        sequences.set(index, position + 1);
+        updateHighWaterMark((int) (position + 1 - head.get()));
+        return true;
+      }
+      // Another producer claimed this position. Try the next one.
+    }
+  }
+
+  /**
+   * Removes all the buffered events, oldest first, passing them to consumer.
+   *
+   * @return the number of events drained.
+   */
+  int drain(Consumer consumer) {
+    int count = 0;
+    while (poll(consumer)) {
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * @return the number of buffered events.
+   */
+  int size() {
+    return (int) Math.max(0, tail.get() - head.get());
+  }
+
+  boolean isFull() {
+    return size() >= capacity;
+  }
+
+  /**
+   * @return the number of events dropped because the buffer was full.
+   */
+  long getNumDroppedEvents() {
+    return numDroppedEvents.get();
+  }
+
+  /**
+   * @return the largest number of events that were buffered at once.
+   */
+  int getHighWaterMark() {
+    return highWaterMark.get();
+  }
+
+  /**
+   * Removes the oldest event. Called by the consumer, and by producers
+   * dropping the oldest event.
+   *
+   * @param consumer  receives the event, or null to discard it.
+   * @return true iff an event was removed.
+   */
+  private boolean poll(Consumer consumer) {
+    while (true) {
+      long position = head.get();
+      int index = (int) position & mask;
+      long sequence = sequences.get(index);
+      if (sequence < position + 1) {
+        // Empty, or the oldest event is still being written.
+        return false;
+      }
+      if (sequence == position + 1 && head.compareAndSet(position, position + 1)) {
+        int eventType = eventTypes[index];
+        String viralLoopName = viralLoopNames[index];
+        String channel = channels[index];
+        long timeMillis = timestamps[index];
+        JSONObject properties = externalProperties[index];
+        viralLoopNames[index] = null;
+        channels[index] = null;
+        externalProperties[index] = null;
+        // Free the slot for the producer that wraps around to it.
+        sequences.set(index, position + MAX_CAPACITY);
+        if (consumer != null) {
+          consumer.onEvent(eventType, viralLoopName, channel, timeMillis, properties);
+        }
+        return true;
+      }
+    }
+  }
+
+  private void updateHighWaterMark(int size) {
+    int current;
+    while (size > (current = highWaterMark.get())) {
+      if (highWaterMark.compareAndSet(current, size)) {
+        return;
+      }
+    }
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2012 Yozio Inc.
+ *
+ * This file is part of the Yozio SDK.
+ *
+ * By using the Yozio SDK in your software, you agree to the terms of the
+ * Yozio SDK License Agreement which can be found at www.yozio.com/sdk_license.
+ */
+
+package com.yozio.android;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.content.SharedPreferences;
+
+/**
+ * Default event identifier generator.
+ *
+ * Identifiers are a random per-install prefix followed by a counter, so
+ * generating one is an atomic increment instead of a SecureRandom call. The
+ * counter is persisted in blocks of COUNTER_BLOCK: before handing out the
+ * identifiers of a block, the end of the block is stored, and the next
+ * process starts counting from there. Identifiers left unused in a block
+ * when the process dies are skipped, never reused.
+ *
+ * Thread safe.
+ */
+class YozioEventIdGenerator implements Yozio.EventIdGenerator {
+
+  static final String PREFIX_KEY = "eventIdPrefix";
+  static final String COUNTER_KEY = "eventIdCounter";
+  static final long COUNTER_BLOCK = 1000;
+
+  // Null if the counter isn't persisted.
+  private final SharedPreferences preferences;
+  private final String prefix;
+  // The last identifier handed out.
+  private final AtomicLong counter;
+  // The counter may go up to, but not including, this value without storing
+  // a new block. Guarded by this.
+  private volatile long reservedLimit;
+
+  /**
+   * @param preferences  where the prefix and counter are stored, or null to
+   *     use a new prefix for every instance.
+   */
+  YozioEventIdGenerator(SharedPreferences preferences) {
+    this.preferences = preferences;
+    String storedPrefix = preferences != null ? preferences.getString(PREFIX_KEY, null) : null;
+    if (storedPrefix == null) {
+      storedPrefix = newPrefix();
+      if (preferences != null) {
+        preferences.edit().putString(PREFIX_KEY, storedPrefix).commit();
+      }
+    }
+    this.prefix = storedPrefix + "-";
+    long start = preferences != null ? preferences.getLong(COUNTER_KEY, 0) : 0;
+    this.counter = new AtomicLong(start);
+    this.reservedLimit = start;
+  }
+
+  public String nextEventId() {
+    long id = counter.incrementAndGet();
+    if (id >= reservedLimit) {
+      reserve(id);
+    }
+    return prefix + Long.toHexString(id);
+  }
+
+  // For testing
+  String getPrefix() {
+    return prefix;
+  }
+
+  /**
+   * Stores the end of a new block that includes id.
+   */
+  private synchronized void reserve(long id) {
+    if (id < reservedLimit) {
+      // Another thread already reserved it.
+      return;
+    }
+    long limit = id + COUNTER_BLOCK;
+    if (preferences != null) {
+      preferences.edit().putLong(COUNTER_KEY, limit).commit();
+    }
+    reservedLimit = limit;
+  }
+
+  private static String newPrefix() {
+    SecureRandom random = new SecureRandom();
+    return Long.toHexString(random.nextLong()) + Long.toHexString(random.nextLong());
+  }
+}
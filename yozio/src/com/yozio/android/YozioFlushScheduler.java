@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2012 Yozio Inc.
+ *
+ * This file is part of the Yozio SDK.
+ *
+ * By using the Yozio SDK in your software, you agree to the terms of the
+ * Yozio SDK License Agreement which can be found at www.yozio.com/sdk_license.
+ */
+
+package com.yozio.android;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when to flush stored events.
+ *
+ * A flush is started right away once a full batch is stored. Otherwise it is
+ * delayed until no event has been stored for the debounce interval, so events
+ * collected close together are sent in one request. The oldest stored event
+ * is never delayed by more than the maximum latency, even while events keep
+ * arriving or fewer events than the flush threshold are stored. While a retry
+ * is scheduled with flushLater, stored events wait for it.
+ *
+ * Thread safe.
+ */
+class YozioFlushScheduler {
+
+  static final long DEFAULT_DEBOUNCE_MS = 500;
+  static final long DEFAULT_MAX_LATENCY_MS = 10 * 1000;
+
+  private final Runnable flush;
+  private final ScheduledThreadPoolExecutor timer;
+
+  private long debounceMillis = DEFAULT_DEBOUNCE_MS;
+  private long maxLatencyMillis = DEFAULT_MAX_LATENCY_MS;
+  // Number of stored events that starts a flush, or 0 for a full batch.
+  private int sizeTrigger;
+
+  // Time the oldest unflushed event was stored, or 0 if there is none.
+  private long firstEventMillis;
+  // Time of the scheduled flush, or 0 if none is scheduled.
+  private long scheduledMillis;
+  // Time of the scheduled retry, before which stored events don't start a
+  // flush.
+  private long retryMillis;
+  private ScheduledFuture<?> scheduledFlush;
+  // Incremented every time a flush is scheduled or started, so a timer that
+  // was replaced does nothing when it fires.
+  private int generation;
+
+  /**
+   * @param flush  starts a flush. Must not block.
+   */
+  YozioFlushScheduler(Runnable flush) {
+    this.flush = flush;
+    this.timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "YozioFlushScheduler");
+        // Doesn't keep the app's process alive.
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * @param debounceMillis  how long to wait for more events before flushing.
+   * @param maxLatencyMillis  the maximum time an event waits to be flushed.
+   * @param sizeTrigger  the number of stored events that starts a flush right
+   *     away, or 0 for a full batch.
+   */
+  synchronized void configure(long debounceMillis, long maxLatencyMillis, int sizeTrigger) {
+    this.debounceMillis = debounceMillis;
+    this.maxLatencyMillis = maxLatencyMillis;
+    this.sizeTrigger = sizeTrigger;
+  }
+
+  /**
+   * Schedules a flush for newly stored events.
+   *
+   * @param numStoredEvents  the number of events in the data store.
+   * @param flushThreshold  the number of stored events below which the flush
+   *     waits for the maximum latency instead of the debounce interval.
+   * @param batchSize  the number of events in a full batch.
+   */
+  synchronized void onEventsStored(int numStoredEvents, int flushThreshold, int batchSize) {
+    long now = System.currentTimeMillis();
+    if (firstEventMillis == 0) {
+      firstEventMillis = now;
+    }
+    if (now < retryMillis) {
+      // The retry flushes these events too.
+      return;
+    }
+    int trigger = sizeTrigger > 0 ? sizeTrigger : batchSize;
+    if (numStoredEvents >= trigger) {
+      flushNow();
+      return;
+    }
+    long deadline = firstEventMillis + maxLatencyMillis;
+    long flushMillis = numStoredEvents >= flushThreshold
+        ? Math.min(now + debounceMillis, deadline) : deadline;
+    if (flushMillis != scheduledMillis) {
+      schedule(flushMillis, now);
+    }
+  }
+
+  /**
+   * Schedules a retry after delayMillis, such as after a failure, unless a
+   * flush is already scheduled sooner. Stored events don't start a flush
+   * until then.
+   */
+  synchronized void flushLater(long delayMillis) {
+    long now = System.currentTimeMillis();
+    long flushMillis = now + delayMillis;
+    retryMillis = Math.max(retryMillis, flushMillis);
+    if (scheduledMillis == 0 || flushMillis < scheduledMillis) {
+      schedule(flushMillis, now);
+    }
+  }
+
+  /**
+   * Starts a flush right away, cancelling the scheduled one.
+   */
+  synchronized void flushNow() {
+    cancel();
+    firstEventMillis = 0;
+    flush.run();
+  }
+
+  /**
+   * @return the time of the scheduled flush, or 0 if none is scheduled.
+   */
+  synchronized long getScheduledMillis() {
+    return scheduledMillis;
+  }
+
+  private void cancel() {
+    generation++;
+    scheduledMillis = 0;
+    if (scheduledFlush != null) {
+      scheduledFlush.cancel(false);
+      scheduledFlush = null;
+    }
+  }
+
+  private void schedule(long flushMillis, long now) {
+    cancel();
+    final int scheduledGeneration = generation;
+    scheduledMillis = flushMillis;
+    scheduledFlush = timer.schedule(new Runnable() {
+      public void run() {
+        synchronized (YozioFlushScheduler.this) {
+          // The flush may have been replaced after this started running.
+          if (generation == scheduledGeneration) {
+            flushNow();
+          }
+        }
+      }
+    }, Math.max(0, flushMillis - now), TimeUnit.MILLISECONDS);
+  }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2012 Yozio Inc.
+ *
+ * This file is part of the Yozio SDK.
+ *
+ * By using the Yozio SDK in your software, you agree to the terms of the
+ * Yozio SDK License Agreement which can be found at www.yozio.com/sdk_license.
+ */
+
+package com.yozio.android;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+
+/**
+ * Form encoded request body, encoded the same way as UrlEncodedFormEntity.
+ */
+class YozioFormEntity implements YozioHttpTransport.Body {
+
+  private final StringBuilder form = new StringBuilder();
+  // The encoded form, or null if a parameter was added since it was encoded.
+  private byte[] content;
+
+  /**
+   * Adds a parameter. A null value is sent as an empty string.
+   */
+  YozioFormEntity add(String name, String value) {
+    if (form.length() > 0) {
+      form.append('&');
+    }
+    form.append(encode(name)).append('=');
+    if (value != null) {
+      form.append(encode(value));
+    }
+    content = null;
+    return this;
+  }
+
+  public String getContentType() {
+    return YozioBatchPayloadEntity.FORM_CONTENT_TYPE;
+  }
+
+  public String getContentEncoding() {
+    return null;
+  }
+
+  public long getContentLength() {
+    return getBytes().length;
+  }
+
+  public void writeTo(OutputStream out) throws IOException {
+    out.write(getBytes());
+  }
+
+  @Override
+  public String toString() {
+    return form.toString();
+  }
+
+  private byte[] getBytes() {
+    if (content == null) {
+      // The encoded form is ASCII.
+      content = new byte[form.length()];
+      for (int i = 0; i < content.length; i++) {
+        content[i] = (byte) form.charAt(i);
+      }
+    }
+    return content;
+  }
+
+  private static String encode(String s) {
+    try {
+      return URLEncoder.encode(s, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      // UTF-8 is always supported.
+      throw new AssertionError(e);
+    }
+  }
+}
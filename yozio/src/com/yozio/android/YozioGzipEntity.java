@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2012 Yozio Inc.
+ *
+ * This file is part of the Yozio SDK.
+ *
+ * By using the Yozio SDK in your software, you agree to the terms of the
+ * Yozio SDK License Agreement which can be found at www.yozio.com/sdk_license.
+ */
+
+package com.yozio.android;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Request body that gzips another body as it is written.
+ *
+ * The compressed length isn't known until the content is written, so the
+ * request is sent chunked.
+ */
+class YozioGzipEntity implements YozioHttpTransport.Body {
+
+  static final String GZIP = "gzip";
+
+  private static final int BUFFER_SIZE = 8 * 1024;
+
+  private final YozioHttpTransport.Body body;
+
+  YozioGzipEntity(YozioHttpTransport.Body body) {
+    this.body = body;
+  }
+
+  public String getContentType() {
+    return body.getContentType();
+  }
+
+  public String getContentEncoding() {
+    return GZIP;
+  }
+
+  public long getContentLength() {
+    return -1;
+  }
+
+  public void writeTo(OutputStream out) throws IOException {
+    GzipStream gzip = new GzipStream(out);
+    try {
+      body.writeTo(gzip);
+      // Writes the trailer, leaving out open for the connection.
+      gzip.finish();
+      gzip.flush();
+    } finally {
+      gzip.end();
+    }
+  }
+
+  /**
+   * GZIPOutputStream that can free its deflater without closing the stream it
+   * writes to.
+   */
+  private static class GzipStream extends GZIPOutputStream {
+
+    GzipStream(OutputStream out) throws IOException {
+      super(out, BUFFER_SIZE);
+    }
+
+    /**
+     * Frees the native deflater now rather than on finalization. Nothing can
+     * be written after this.
+     */
+    void end() {
+      def.end();
+    }
+  }
+}
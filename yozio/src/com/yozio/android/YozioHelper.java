@@ -9,16 +9,19 @@
 
 package com.yozio.android;
 
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
-import java.util.TimeZone;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -37,6 +40,7 @@ import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.WindowManager;
 
+import com.yozio.android.Yozio.EventIdGenerator;
 import com.yozio.android.Yozio.GetYozioLinkCallback;
 import com.yozio.android.Yozio.InitializeExperimentsCallback;
 import com.yozio.android.YozioApiService.ExperimentInfo;
@@ -74,7 +78,6 @@ class YozioHelper {
   private static final String P_MAC_ADDRESS = "mac_address";
   private static final String P_OPEN_UDID = "open_udid";
   private static final String P_OS_VERSION = "os_version";
-  private static final String P_PAYLOAD = "payload";
   private static final String P_USER_NAME = "external_user_id";
   private static final String P_YOZIO_UDID = "yozio_udid";
 
@@ -91,17 +94,69 @@ class YozioHelper {
   private static final String P_CONNECTION_TYPE = "connection_type";
 
   private static final String P_EXPERIMENT_VARIATION_SIDS = "experiment_variation_sids";
-
-  // Minimum number of events before flushing.
-  private static final int FLUSH_BATCH_MIN = 1;
-  // Maximum number of events that can be batched.
-  private static final int FLUSH_BATCH_MAX = 50;
+  private static final String P_NUM_EVICTED_EVENTS = "num_evicted_events";
+
+  // How long to wait for more events before writing collected events to the
+  // data store in a single transaction.
+  private static final long GROUP_COMMIT_WINDOW_MS = 50;
+  // Number of batches that can be sent at once.
+  private static final int FLUSH_WORKERS = 2;
+  // How long a flush has to send its batch before the events can be checked
+  // out by another flush.
+  private static final long FLUSH_LEASE_MS = 5 * 60 * 1000;
+  // How long a flush keeps sending batches back to back, and how many bytes of
+  // events it sends, before leaving the rest to the next flush.
+  private static final long DRAIN_TIME_BUDGET_MS = 30 * 1000;
+  private static final long DRAIN_BYTE_BUDGET = 1024 * 1024;
 
   private final YozioDataStore dataStore;
   private final YozioApiService apiService;
-  private final SimpleDateFormat dateFormat;
-  // Executor for AddEvent and Flush tasks.
-  private final ThreadPoolExecutor executor;
+  // Decides the batch size and flush threshold.
+  private final YozioBatchController batchController = new YozioBatchController();
+  // Decides when to flush.
+  private final YozioFlushScheduler flushScheduler;
+  // Decides when failed batches are retried.
+  private volatile YozioRetryPolicy retryPolicy = new YozioRetryPolicy();
+  private final YozioTimestampEncoder timestampEncoder = new YozioTimestampEncoder();
+  // One of the Yozio.TIMESTAMP_ constants.
+  private volatile int timestampFormat = Yozio.TIMESTAMP_DATE_TIME;
+  // Executor for AddEvent tasks, and for reading the next batch while a
+  // flush is sending the current one.
+  private final ScheduledThreadPoolExecutor executor;
+  // Executor for Flush tasks.
+  private final ThreadPoolExecutor flushExecutor;
+  // Number of FlushTasks submitted and not finished, and whether a flush was
+  // requested while they were running. Guarded by flushLock.
+  private final Object flushLock = new Object();
+  private int numFlushTasks;
+  private boolean flushAgain;
+  // True iff a flush is reporting the evicted events, so other flushes don't
+  // report the same ones.
+  private final AtomicBoolean reportingEvictedEvents = new AtomicBoolean();
+  // Events collected but not yet added to the data store.
+  private final YozioEventBuffer eventBuffer = new YozioEventBuffer();
+  // True iff the AddEventTask has been submitted for the buffered events.
+  private final AtomicBoolean addEventTaskPending = new AtomicBoolean();
+  private final AddEventTask addEventTask = new AddEventTask();
+
+  private volatile EventIdGenerator defaultEventIdGenerator = new YozioEventIdGenerator(null);
+  private volatile EventIdGenerator eventIdGenerator = defaultEventIdGenerator;
+
+  // Payload header, or null if it must be rebuilt because a tracked attribute
+  // changed. Guarded by payloadHeaderLock.
+  private final Object payloadHeaderLock = new Object();
+  private PayloadHeader payloadHeader;
+  // The connection type when payloadHeader was built.
+  private String payloadHeaderConnectionType;
+  // Sends the payload header fields once per session, or null to send them
+  // with every batch.
+  private volatile YozioSessionHeader sessionHeader;
+  // Null if generated links aren't cached.
+  private volatile YozioLinkCache linkCache;
+  private final YozioLinkPrefetcher linkPrefetcher;
+  // Callbacks of the getYozioLinkAsync requests in flight, by link key.
+  private final YozioSingleFlight<GetYozioLinkCallback> linkRequests =
+      new YozioSingleFlight<GetYozioLinkCallback>();
 
   private JSONObject experimentConfigs;
   private JSONObject experimentVariationSids;
@@ -130,17 +185,25 @@ class YozioHelper {
   private String carrierCountryCode;
   private String mobileCountryCode;
   private String mobileNetworkCode;
+  // Guarded by payloadHeaderLock.
   private String connectionType;
 
   YozioHelper(YozioDataStore dataStore, YozioApiService apiService) {
     this.dataStore = dataStore;
     this.apiService = apiService;
-    this.dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
-    dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
-    // This executor MUST have pool size of 1 (1 task allowed to run at once).
-    // Otherwise, we might send the same event multiple times.
-    executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+    // Events are added by a single thread, so they are stored in the order
+    // they were collected.
+    executor = new ScheduledThreadPoolExecutor(1);
+    // Flushes check out their events from the data store, so they never send
+    // the same event twice and can run in parallel.
+    flushExecutor = new ThreadPoolExecutor(FLUSH_WORKERS, FLUSH_WORKERS, 0L, TimeUnit.MILLISECONDS,
             new LinkedBlockingQueue<Runnable>());
+    linkPrefetcher = new YozioLinkPrefetcher(new LinkLoader());
+    flushScheduler = new YozioFlushScheduler(new Runnable() {
+      public void run() {
+        doFlush();
+      }
+    });
   }
 
   /**
@@ -153,6 +216,14 @@ class YozioHelper {
     OpenUDID.syncContext(context);
     this.yozioUdid = OpenUDID.getOpenUDIDInContext();
     setDeviceParams();
+    invalidatePayloadHeader();
+    // Persist the identifier counter, unless the app chose its own generator.
+    EventIdGenerator generator = new YozioEventIdGenerator(
+        context.getSharedPreferences("yozioPreferences", 0));
+    if (eventIdGenerator == defaultEventIdGenerator) {
+      eventIdGenerator = generator;
+    }
+    defaultEventIdGenerator = generator;
   }
 
   /**
@@ -163,6 +234,9 @@ class YozioHelper {
     ExperimentInfo experimentInfo = apiService.getExperimentInfo(appKey, yozioUdid);
     this.experimentConfigs = experimentInfo.getConfigs();
     this.experimentVariationSids = experimentInfo.getExperimentVariationSids();
+    invalidatePayloadHeader();
+    // Prefetched links are for the experiment variations.
+    linkPrefetcher.refresh();
   }
 
   /**
@@ -200,6 +274,7 @@ class YozioHelper {
    */
   void setUserName(String userName) {
     this.userName = userName;
+    invalidatePayloadHeader();
   }
 
   /**
@@ -231,8 +306,15 @@ class YozioHelper {
    */
   String getYozioLink(String viralLoopName, String channel, String destinationUrl,
       JSONObject externalProperties) {
-    String yozioLink = apiService.getYozioLink(appKey, yozioUdid, viralLoopName, destinationUrl,
-        getYozioProperties(channel), externalProperties);
+    JSONObject yozioProperties = getYozioProperties(channel);
+    String linkKey = linkKey(viralLoopName, destinationUrl, null, null, null,
+        yozioProperties, externalProperties);
+    String yozioLink = getCachedYozioLink(linkKey);
+    if (yozioLink == null) {
+      yozioLink = apiService.getYozioLink(appKey, yozioUdid, viralLoopName, destinationUrl,
+          yozioProperties, externalProperties);
+      cacheYozioLink(linkKey, yozioLink);
+    }
     return yozioLink != null ? yozioLink : destinationUrl;
   }
 
@@ -244,31 +326,61 @@ class YozioHelper {
    */
   String getYozioLink(String viralLoopName, String channel, String iosDestinationUrl,
       String androidDestinationUrl, String nonMobileDestinationUrl, JSONObject externalProperties) {
-    String yozioLink = apiService.getYozioLink(appKey, yozioUdid, viralLoopName, iosDestinationUrl,
-        androidDestinationUrl, nonMobileDestinationUrl, getYozioProperties(channel),
-        externalProperties);
+    JSONObject yozioProperties = getYozioProperties(channel);
+    String linkKey = linkKey(viralLoopName, null, iosDestinationUrl, androidDestinationUrl,
+        nonMobileDestinationUrl, yozioProperties, externalProperties);
+    String yozioLink = getCachedYozioLink(linkKey);
+    if (yozioLink == null) {
+      yozioLink = apiService.getYozioLink(appKey, yozioUdid, viralLoopName, iosDestinationUrl,
+          androidDestinationUrl, nonMobileDestinationUrl, yozioProperties, externalProperties);
+      cacheYozioLink(linkKey, yozioLink);
+    }
     return yozioLink != null ? yozioLink : nonMobileDestinationUrl;
   }
 
   /**
-   * Makes a non-blocking request to retrieve the Yozio link.
+   * Makes a non-blocking request to retrieve the Yozio link. Identical
+   * requests made while it is in flight share its result.
    */
   void getYozioLinkAsync(String viralLoopName, String channel, String destinationUrl,
       JSONObject externalProperties, GetYozioLinkCallback callback) {
     JSONObject yozioProperties = getYozioProperties(channel);
-    new GetYozioLinkTask(viralLoopName, destinationUrl, yozioProperties, externalProperties,
-        callback).execute();
+    String linkKey = linkKey(viralLoopName, destinationUrl, null, null, null,
+        yozioProperties, externalProperties);
+    String yozioLink = getCachedYozioLink(linkKey);
+    if (yozioLink != null) {
+      callback.handleResponse(yozioLink);
+      return;
+    }
+    // Otherwise the callback gets the result of the identical request in
+    // flight.
+    if (linkRequests.join(linkKey, callback)) {
+      new GetYozioLinkTask(viralLoopName, destinationUrl, yozioProperties, externalProperties,
+          linkKey).start();
+    }
   }
 
   /**
-   * Makes a non-blocking request to retrieve the Yozio link.
+   * Makes a non-blocking request to retrieve the Yozio link. Identical
+   * requests made while it is in flight share its result.
    */
   void getYozioLinkAsync(String viralLoopName, String channel, String iosDestinationUrl,
       String androidDestinationUrl, String nonMobileDestinationUrl, JSONObject externalProperties,
       GetYozioLinkCallback callback) {
     JSONObject yozioProperties = getYozioProperties(channel);
-    new GetYozioLinkTask(viralLoopName, iosDestinationUrl, androidDestinationUrl,
-        nonMobileDestinationUrl, yozioProperties, externalProperties, callback).execute();
+    String linkKey = linkKey(viralLoopName, null, iosDestinationUrl, androidDestinationUrl,
+        nonMobileDestinationUrl, yozioProperties, externalProperties);
+    String yozioLink = getCachedYozioLink(linkKey);
+    if (yozioLink != null) {
+      callback.handleResponse(yozioLink);
+      return;
+    }
+    // Otherwise the callback gets the result of the identical request in
+    // flight.
+    if (linkRequests.join(linkKey, callback)) {
+      new GetYozioLinkTask(viralLoopName, iosDestinationUrl, androidDestinationUrl,
+          nonMobileDestinationUrl, yozioProperties, externalProperties, linkKey).start();
+    }
   }
 
   /**
@@ -282,11 +394,89 @@ class YozioHelper {
    * Makes a non-blocking request to store the event.
    */
   void collect(int eventType, String viralLoopName, String channel, JSONObject externalProperties) {
-    JSONObject event = buildEvent(eventType, viralLoopName, channel, externalProperties);
-    if (event == null) {
+    // The event is built on the executor, so this only copies the fields into
+    // the buffer. Dropped events are counted by the buffer.
+    if (!eventBuffer.offer(eventType, viralLoopName, channel, System.currentTimeMillis(),
+        externalProperties)) {
       return;
     }
-    executor.submit(new AddEventTask(event));
+    // Otherwise the pending task will pick up this event.
+    if (addEventTaskPending.compareAndSet(false, true)) {
+      // Waits for more events without holding the executor, which also
+      // reads batches for flushes. Don't keep callers waiting for room.
+      long delay = eventBuffer.isFull() ? 0 : GROUP_COMMIT_WINDOW_MS;
+      executor.schedule(addEventTask, delay, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Limits the events kept in the data store.
+   */
+  void setEventStoreLimits(int maxEvents, long maxBytes, long maxAgeMillis, int evictionPolicy) {
+    dataStore.setLimits(maxEvents, maxBytes, maxAgeMillis, evictionPolicy);
+  }
+
+  /**
+   * Releases the data store's resources. Pending tasks reacquire them as
+   * needed.
+   */
+  void releaseResources() {
+    dataStore.close();
+  }
+
+  /**
+   * Configures when stored events are flushed.
+   */
+  void setFlushSchedule(long debounceMillis, long maxLatencyMillis, int sizeTrigger) {
+    flushScheduler.configure(debounceMillis, maxLatencyMillis, sizeTrigger);
+  }
+
+  /**
+   * Replaces the event identifier generator, or restores the default if
+   * generator is null.
+   */
+  void setEventIdGenerator(EventIdGenerator generator) {
+    eventIdGenerator = generator != null ? generator : defaultEventIdGenerator;
+  }
+
+  /**
+   * Sets how event timestamps are sent, one of the Yozio.TIMESTAMP_
+   * constants.
+   */
+  void setTimestampFormat(int timestampFormat) {
+    this.timestampFormat = timestampFormat;
+  }
+
+  /**
+   * Sends the device fields of the payload header once per session instead
+   * of with every batch. The server must support session keys.
+   */
+  void setSessionHeaderEnabled(boolean enabled) {
+    sessionHeader = enabled
+        ? new YozioSessionHeader(UUID.randomUUID().toString(), P_APP_KEY, P_DEVICE_TYPE,
+            P_YOZIO_UDID)
+        : null;
+  }
+
+  YozioDataStore getDataStore() {
+    return dataStore;
+  }
+
+  YozioEventBuffer getEventBuffer() {
+    return eventBuffer;
+  }
+
+  YozioBatchController getBatchController() {
+    return batchController;
+  }
+
+  YozioRetryPolicy getRetryPolicy() {
+    return retryPolicy;
+  }
+
+  // For testing
+  void setRetryPolicy(YozioRetryPolicy retryPolicy) {
+    this.retryPolicy = retryPolicy;
   }
 
   // For testing
@@ -300,10 +490,116 @@ class YozioHelper {
   }
 
   /**
-   * Forces a flush attempt to the Yozio server.
+   * Forces a flush attempt to the Yozio server. If a flush is already running,
+   * it makes another pass instead of a new flush being queued.
+   */
+  // For testing, otherwise private.
+  void doFlush() {
+    synchronized (flushLock) {
+      if (numFlushTasks > 0) {
+        flushAgain = true;
+        return;
+      }
+      numFlushTasks++;
+    }
+    flushExecutor.submit(new FlushTask());
+  }
+
+  /**
+   * Starts another flush to send a backlog in parallel, if a flush worker is
+   * free.
+   */
+  private void addFlushWorker() {
+    synchronized (flushLock) {
+      if (numFlushTasks >= FLUSH_WORKERS) {
+        return;
+      }
+      numFlushTasks++;
+    }
+    flushExecutor.submit(new FlushTask());
+  }
+
+  // For testing
+  long getNumFlushTasksSubmitted() {
+    return flushExecutor.getTaskCount();
+  }
+
+  /**
+   * Checks out the next batch of events, sized by the batch controller.
+   */
+  private Events checkoutEvents() {
+    return dataStore.checkoutEvents(batchController.getBatchSize(),
+        batchController.getMaxRequestBytes(), FLUSH_LEASE_MS);
+  }
+
+  /**
+   * Caches generated links, kept across launches, or turns the cache off and
+   * clears it if maxLinks is 0.
+   */
+  void setLinkCache(int maxLinks, long ttlMillis) {
+    SharedPreferences preferences =
+        context != null ? context.getSharedPreferences(YozioLinkCache.PREFERENCES_NAME, 0) : null;
+    if (maxLinks > 0) {
+      linkCache = new YozioLinkCache(preferences, maxLinks, ttlMillis);
+    } else {
+      linkCache = null;
+      if (preferences != null) {
+        YozioLinkCache.clear(preferences);
+      }
+    }
+    linkPrefetcher.refresh();
+  }
+
+  /**
+   * Keeps the links loaded in the background, turning on the link cache if
+   * it is off.
+   */
+  void prefetchYozioLinks(List<YozioLinkPrefetcher.Link> links) {
+    if (linkCache == null) {
+      setLinkCache(YozioLinkCache.DEFAULT_MAX_LINKS, YozioLinkCache.DEFAULT_TTL_MS);
+    }
+    linkPrefetcher.add(links);
+  }
+
+  /**
+   * @return the number of getYozioLinkAsync requests not made because an
+   *     identical one was in flight.
+   */
+  long getNumCoalescedLinkRequests() {
+    return linkRequests.getNumSaved();
+  }
+
+  // For testing
+  int getNumPrefetchedLinks() {
+    return linkPrefetcher.getNumLoaded();
+  }
+
+  /**
+   * @return the key identifying the link a get_url request generates, used
+   *     by the link cache and to coalesce requests.
+   */
+  private String linkKey(String viralLoopName, String destinationUrl,
+      String iosDestinationUrl, String androidDestinationUrl, String nonMobileDestinationUrl,
+      JSONObject yozioProperties, JSONObject externalProperties) {
+    // The Yozio properties include the experiment variations.
+    return YozioLinkCache.key(appKey, yozioUdid, viralLoopName, destinationUrl,
+        iosDestinationUrl, androidDestinationUrl, nonMobileDestinationUrl, yozioProperties,
+        externalProperties);
+  }
+
+  /**
+   * @return the cached link for linkKey, or null if there is none.
    */
-  private void doFlush() {
-    executor.submit(new FlushTask());
+  private String getCachedYozioLink(String linkKey) {
+    YozioLinkCache cache = linkCache;
+    return cache != null ? cache.get(linkKey) : null;
+  }
+
+  private void cacheYozioLink(String linkKey, String yozioLink) {
+    YozioLinkCache cache = linkCache;
+    if (cache != null && yozioLink != null) {
+      cache.put(linkKey, yozioLink);
+    }
   }
 
   private JSONObject getYozioProperties(String channel) {
@@ -318,14 +614,18 @@ class YozioHelper {
   }
 
   private JSONObject buildEvent(int eventType, String viralLoopName, String channel,
-      JSONObject externalProperties) {
+      long timeMillis, JSONObject externalProperties) {
     try {
       JSONObject eventObject = new JSONObject();
       eventObject.put(D_EVENT_TYPE, eventType);
       eventObject.put(D_LINK_NAME, viralLoopName);
       eventObject.put(D_CHANNEL, channel);
-      eventObject.put(D_TIMESTAMP, timestamp());
-      eventObject.put(D_EVENT_IDENTIFIER, UUID.randomUUID());
+      if (timestampFormat == Yozio.TIMESTAMP_EPOCH_MILLIS) {
+        eventObject.put(D_TIMESTAMP, timeMillis);
+      } else {
+        eventObject.put(D_TIMESTAMP, timestampEncoder.encode(timeMillis));
+      }
+      eventObject.put(D_EVENT_IDENTIFIER, eventIdGenerator.nextEventId());
       // null values are discarded by JSONObject
       eventObject.put(D_EXTERNAL_PROPERTIES, externalProperties);
       return eventObject;
@@ -334,8 +634,79 @@ class YozioHelper {
     }
   }
 
-  private String timestamp() {
-    return dateFormat.format(Calendar.getInstance().getTime());
+  /**
+   * Returns every payload field except the events, which are spliced in by
+   * {@link YozioBatchPayload}.
+   *
+   * The fields are serialized once and reused until a tracked attribute, such
+   * as the user name or the connection type, changes.
+   *
+   * @return the header, or null if it couldn't be built.
+   */
+  private PayloadHeader getPayloadHeader() {
+    // Read outside the lock, as it asks the system.
+    String currentConnectionType = context != null ? readConnectionType() : null;
+    synchronized (payloadHeaderLock) {
+      if (currentConnectionType != null) {
+        connectionType = currentConnectionType;
+      }
+      if (payloadHeader == null || !equals(connectionType, payloadHeaderConnectionType)) {
+        payloadHeaderConnectionType = connectionType;
+        JSONObject fields = buildPayloadHeader();
+        payloadHeader = fields != null ? new PayloadHeader(fields) : null;
+      }
+      return payloadHeader;
+    }
+  }
+
+  /**
+   * Makes the next flush rebuild the payload header.
+   */
+  private void invalidatePayloadHeader() {
+    synchronized (payloadHeaderLock) {
+      payloadHeader = null;
+    }
+  }
+
+  private JSONObject buildPayloadHeader() {
+    try {
+      JSONObject payloadObject = new JSONObject();
+      payloadObject.put(P_APP_KEY, appKey);
+      payloadObject.put(P_USER_NAME, userName);
+      payloadObject.put(P_DEVICE_TYPE, DEVICE_TYPE);
+      payloadObject.put(P_YOZIO_UDID, yozioUdid);
+
+      payloadObject.put(P_APP_VERSION, appVersion);
+      payloadObject.put(P_COUNTRY_CODE, countryCode);
+      payloadObject.put(P_HARDWARE, hardware);
+      payloadObject.put(P_LANGUAGE_CODE, languageCode);
+      payloadObject.put(P_MAC_ADDRESS, macAddress);
+      payloadObject.put(P_OPEN_UDID, openUdid);
+      payloadObject.put(P_OS_VERSION, osVersion);
+
+      payloadObject.put(P_ANDROID_ID, androidId);
+      payloadObject.put(P_DEVICE_ID, deviceId);
+      payloadObject.put(P_DEVICE_MANUFACTURER, deviceManufacturer);
+      payloadObject.put(P_SERIAL_ID, serialId);
+      payloadObject.put(P_DEVICE_SCREEN_DENSITY, deviceScreenDensity);
+      payloadObject.put(P_DEVICE_SCREEN_LAYOUT_SIZE, deviceScreenLayoutSize);
+      payloadObject.put(P_CARRIER_NAME, carrierName);
+      payloadObject.put(P_CARRIER_COUNTRY_CODE, carrierCountryCode);
+      payloadObject.put(P_MOBILE_COUNTRY_CODE, mobileCountryCode);
+      payloadObject.put(P_MOBILE_NETWORK_CODE, mobileNetworkCode);
+      payloadObject.put(P_CONNECTION_TYPE, connectionType);
+
+      // null values are discarded by JSONObject
+      payloadObject.put(P_EXPERIMENT_VARIATION_SIDS, experimentVariationSids);
+
+      return payloadObject;
+    } catch (JSONException e) {
+      return null;
+    }
+  }
+
+  private static boolean equals(String a, String b) {
+    return a == null ? b == null : a.equals(b);
   }
 
   private void setDeviceParams() {
@@ -347,7 +718,10 @@ class YozioHelper {
     osVersion = android.os.Build.VERSION.RELEASE;
     deviceManufacturer = android.os.Build.MANUFACTURER;
     setAppVersion();
-    setConnectionType();
+    String currentConnectionType = readConnectionType();
+    synchronized (payloadHeaderLock) {
+      connectionType = currentConnectionType;
+    }
     setCarrierMobileAndDeviceInfo();
     setMacAddress();
     setScreenInfo();
@@ -438,9 +812,9 @@ class YozioHelper {
   /**
    * Gets the connection type used by this device ("mobile" or "wifi").
    *
-   * @return Connection type the device is using.
+   * @return Connection type the device is using, or null if it is unknown.
    */
-  private void setConnectionType() {
+  private String readConnectionType() {
     try {
       // Get connection type
       ConnectivityManager connectivityManager = (ConnectivityManager) context
@@ -449,15 +823,14 @@ class YozioHelper {
         switch (connectivityManager.getActiveNetworkInfo().getType()) {
         case ConnectivityManager.TYPE_WIFI:
         case 0x6: // ConnectivityManager.TYPE_WIMAX
-          connectionType = "wifi";
-          break;
+          return "wifi";
         default:
-          connectionType = "mobile";
-          break;
+          return "mobile";
         }
       }
     } catch (Exception e) {
     }
+    return null;
   }
 
   // Get screen density and layout
@@ -515,10 +888,45 @@ class YozioHelper {
     protected void onPostExecute(ExperimentInfo experimentInfo) {
       experimentConfigs = experimentInfo.getConfigs();
       experimentVariationSids = experimentInfo.getExperimentVariationSids();
+      invalidatePayloadHeader();
+      linkPrefetcher.refresh();
       callback.onComplete();
     }
   }
 
+  /**
+   * Loads prefetched links into the link cache.
+   */
+  private class LinkLoader implements YozioLinkPrefetcher.Loader {
+
+    public long getRefreshAtMillis(YozioLinkPrefetcher.Link link) {
+      YozioLinkCache cache = linkCache;
+      if (cache == null) {
+        return -1;
+      }
+      return cache.getRefreshAtMillis(linkKey(link.viralLoopName, link.destinationUrl,
+          link.iosDestinationUrl, link.androidDestinationUrl, link.nonMobileDestinationUrl,
+          getYozioProperties(link.channel), null));
+    }
+
+    public boolean load(YozioLinkPrefetcher.Link link) {
+      JSONObject yozioProperties = getYozioProperties(link.channel);
+      String yozioLink;
+      if (link.destinationUrl != null) {
+        yozioLink = apiService.getYozioLink(appKey, yozioUdid, link.viralLoopName,
+            link.destinationUrl, yozioProperties, null);
+      } else {
+        yozioLink = apiService.getYozioLink(appKey, yozioUdid, link.viralLoopName,
+            link.iosDestinationUrl, link.androidDestinationUrl, link.nonMobileDestinationUrl,
+            yozioProperties, null);
+      }
+      cacheYozioLink(linkKey(link.viralLoopName, link.destinationUrl,
+          link.iosDestinationUrl, link.androidDestinationUrl, link.nonMobileDestinationUrl,
+          yozioProperties, null), yozioLink);
+      return yozioLink != null;
+    }
+  }
+
   private class GetYozioLinkTask extends AsyncTask<Void, Void, String> {
 
     private final String viralLoopName;
@@ -528,10 +936,11 @@ class YozioHelper {
     private final String nonMobileDestinationUrl;
     private final JSONObject externalProperties;
     private final JSONObject yozioProperties;
-    private final GetYozioLinkCallback callback;
+    // Identifies the callbacks waiting for the link.
+    private final String linkKey;
 
     GetYozioLinkTask(String viralLoopName, String destinationUrl, JSONObject yozioProperties,
-        JSONObject externalProperties, GetYozioLinkCallback callback) {
+        JSONObject externalProperties, String linkKey) {
       this.viralLoopName = viralLoopName;
       this.iosDestinationUrl = null;
       this.androidDestinationUrl = null;
@@ -539,12 +948,12 @@ class YozioHelper {
       this.destinationUrl = destinationUrl;
       this.externalProperties = externalProperties;
       this.yozioProperties = yozioProperties;
-      this.callback = callback;
+      this.linkKey = linkKey;
     }
 
     GetYozioLinkTask(String viralLoopName, String iosDestinationUrl, String androidDestinationUrl,
         String nonMobileDestinationUrl, JSONObject yozioProperties, JSONObject externalProperties,
-        GetYozioLinkCallback callback) {
+        String linkKey) {
       this.viralLoopName = viralLoopName;
       this.iosDestinationUrl = iosDestinationUrl;
       this.androidDestinationUrl = androidDestinationUrl;
@@ -552,104 +961,273 @@ class YozioHelper {
       this.destinationUrl = null;
       this.externalProperties = externalProperties;
       this.yozioProperties = yozioProperties;
-      this.callback = callback;
+      this.linkKey = linkKey;
     }
 
     @Override
     protected String doInBackground(Void... arg0) {
+      String yozioLink;
       if (destinationUrl != null) {
-        return apiService.getYozioLink(
+        yozioLink = apiService.getYozioLink(
             appKey, yozioUdid, viralLoopName, destinationUrl, yozioProperties, externalProperties);
       } else {
-        return apiService.getYozioLink(
+        yozioLink = apiService.getYozioLink(
             appKey, yozioUdid, viralLoopName, iosDestinationUrl, androidDestinationUrl,
             nonMobileDestinationUrl, yozioProperties, externalProperties);
       }
+      cacheYozioLink(linkKey, yozioLink);
+      return yozioLink;
+    }
+
+    /**
+     * Executes the task. If it can't be, such as when AsyncTask's queue is
+     * full, its callbacks get the fallback so the request isn't left in
+     * flight.
+     */
+    void start() {
+      try {
+        execute();
+      } catch (RuntimeException e) {
+        Log.e(LOGTAG, "GetYozioLinkTask", e);
+        complete(null);
+      }
     }
 
     @Override
     protected void onPostExecute(String yozioLink) {
-      callback.handleResponse(yozioLink != null ? yozioLink : destinationUrl);
+      complete(yozioLink);
+    }
+
+    @Override
+    protected void onCancelled() {
+      complete(null);
+    }
+
+    /**
+     * Ends the request, calling back with the link or, if it is null, the
+     * fallback.
+     */
+    private void complete(String yozioLink) {
+      if (yozioLink == null) {
+        yozioLink = destinationUrl != null ? destinationUrl : nonMobileDestinationUrl;
+      }
+      for (GetYozioLinkCallback callback : linkRequests.complete(linkKey)) {
+        callback.handleResponse(yozioLink);
+      }
     }
   }
 
   /**
-   * Task to add an event to the data store. Will try to flush if there are
-   * enough events stored.
+   * Payload header fields, and the same serialized.
    */
-  private class AddEventTask implements Runnable {
+  private static final class PayloadHeader {
 
-    private final JSONObject event;
+    final JSONObject fields;
+    final String serialized;
 
-    AddEventTask(JSONObject event) {
-      this.event = event;
+    PayloadHeader(JSONObject fields) {
+      this.fields = fields;
+      this.serialized = fields.toString();
     }
+  }
+
+  /**
+   * Task to add the pending events to the data store. It is scheduled
+   * GROUP_COMMIT_WINDOW_MS after the first pending event, so the events
+   * collected meanwhile are added in a single transaction.
+   * Schedules a flush of the stored events.
+   */
+  private class AddEventTask implements Runnable, YozioEventBuffer.Consumer {
+
+    // Only used on the executor thread.
+    private final List<JSONObject> events = new ArrayList<JSONObject>();
 
     public void run() {
-      boolean eventAdded = dataStore.addEvent(event);
-      // Flush if there are enough events.
-      // Small optimization for the special case where FLUSH_BATCH_MIN == 1.
-      boolean flushEligible = (eventAdded && FLUSH_BATCH_MIN == 1)
-              || (dataStore.getNumEvents() >= FLUSH_BATCH_MIN);
-      if (flushEligible) {
-        doFlush();
+      // Cleared before draining, so an event collected during the drain
+      // submits the task again rather than being left in the buffer.
+      addEventTaskPending.set(false);
+      events.clear();
+      eventBuffer.drain(this);
+      if (events.isEmpty()) {
+        return;
+      }
+      boolean added = dataStore.addEvents(events);
+      events.clear();
+      if (!added) {
+        return;
+      }
+      flushScheduler.onEventsStored(dataStore.getNumEvents(),
+          batchController.getFlushThreshold(), batchController.getBatchSize());
+    }
+
+    public void onEvent(int eventType, String viralLoopName, String channel, long timeMillis,
+        JSONObject externalProperties) {
+      JSONObject event = buildEvent(eventType, viralLoopName, channel, timeMillis,
+          externalProperties);
+      if (event != null) {
+        events.add(event);
       }
     }
   }
 
   /**
-   * Task to flush the data through the {@link YozioApiService}.
+   * Task to check out the next batch of events.
+   */
+  private class CheckoutEventsTask implements Callable<Events> {
+
+    public Events call() {
+      return checkoutEvents();
+    }
+  }
+
+  /**
+   * Task to flush the data through the {@link YozioApiService}. Sends batches
+   * back to back until the data store is empty, a batch fails, or the drain
+   * budget runs out. Makes another pass if a flush was requested meanwhile.
    */
   private class FlushTask implements Runnable {
 
     public void run() {
-      final Events events = dataStore.getEvents(FLUSH_BATCH_MAX);
-      if (events == null) {
-        return;
+      boolean again;
+      try {
+        do {
+          synchronized (flushLock) {
+            flushAgain = false;
+          }
+          drain();
+          synchronized (flushLock) {
+            again = flushAgain;
+            if (!again) {
+              numFlushTasks--;
+            }
+          }
+        } while (again);
+      } catch (RuntimeException e) {
+        synchronized (flushLock) {
+          numFlushTasks--;
+        }
+        throw e;
       }
-      JSONObject payload = buildPayload(events.getJsonArray());
-      if (payload == null) {
+    }
+
+    private void drain() {
+      long delay = retryPolicy.getDelayMillis();
+      if (delay > 0) {
+        // Backing off, or the circuit is open. Leave the data store alone
+        // until a request may be made.
+        flushScheduler.flushLater(delay);
         return;
       }
-      if (apiService.batchEvents(payload)) {
-        dataStore.removeEvents(events.getLastEventId());
+      long deadline = System.currentTimeMillis() + DRAIN_TIME_BUDGET_MS;
+      long bytesSent = 0;
+      Events events = checkoutEvents();
+      while (events != null) {
+        // Read the next batch while this one is being sent.
+        Future<Events> nextEvents = executor.submit(new CheckoutEventsTask());
+        boolean sent = sendEvents(events);
+        bytesSent += events.getSerializedEvents().length();
+        if (sent && events.getNumEvents() >= batchController.getBatchSize()) {
+          // There may be a backlog.
+          addFlushWorker();
+        }
+        events = getNextEvents(nextEvents);
+        if (events != null && (!sent || bytesSent >= DRAIN_BYTE_BUDGET
+            || System.currentTimeMillis() >= deadline)) {
+          dataStore.releaseEvents(events);
+          return;
+        }
       }
     }
 
-    private JSONObject buildPayload(JSONArray events) {
+    /**
+     * Sends a batch of checked out events, and commits them if they were
+     * sent.
+     *
+     * @return true iff the events were sent.
+     */
+    private boolean sendEvents(Events events) {
+      boolean reportsEvictedEvents = reportingEvictedEvents.compareAndSet(false, true);
+      int numEvictedEvents = reportsEvictedEvents ? dataStore.getNumEvictedEvents() : 0;
       try {
-        JSONObject payloadObject = new JSONObject();
-        payloadObject.put(P_APP_KEY, appKey);
-        payloadObject.put(P_USER_NAME, userName);
-        payloadObject.put(P_DEVICE_TYPE, DEVICE_TYPE);
-        payloadObject.put(P_YOZIO_UDID, yozioUdid);
-        payloadObject.put(P_PAYLOAD, events);
-
-        payloadObject.put(P_APP_VERSION, appVersion);
-        payloadObject.put(P_COUNTRY_CODE, countryCode);
-        payloadObject.put(P_HARDWARE, hardware);
-        payloadObject.put(P_LANGUAGE_CODE, languageCode);
-        payloadObject.put(P_MAC_ADDRESS, macAddress);
-        payloadObject.put(P_OPEN_UDID, openUdid);
-        payloadObject.put(P_OS_VERSION, osVersion);
-
-        payloadObject.put(P_ANDROID_ID, androidId);
-        payloadObject.put(P_DEVICE_ID, deviceId);
-        payloadObject.put(P_DEVICE_MANUFACTURER, deviceManufacturer);
-        payloadObject.put(P_SERIAL_ID, serialId);
-        payloadObject.put(P_DEVICE_SCREEN_DENSITY, deviceScreenDensity);
-        payloadObject.put(P_DEVICE_SCREEN_LAYOUT_SIZE, deviceScreenLayoutSize);
-        payloadObject.put(P_CARRIER_NAME, carrierName);
-        payloadObject.put(P_CARRIER_COUNTRY_CODE, carrierCountryCode);
-        payloadObject.put(P_MOBILE_COUNTRY_CODE, mobileCountryCode);
-        payloadObject.put(P_MOBILE_NETWORK_CODE, mobileNetworkCode);
-        payloadObject.put(P_CONNECTION_TYPE, connectionType);
-
-        // null values are discarded by JSONObject
-        payloadObject.put(P_EXPERIMENT_VARIATION_SIDS, experimentVariationSids);
-
-        return payloadObject;
-      } catch (JSONException e) {
+        PayloadHeader payloadHeader = getPayloadHeader();
+        YozioSessionHeader session = sessionHeader;
+        YozioSessionHeader.Header sessionHeaderSent = null;
+        String header = payloadHeader != null ? payloadHeader.serialized : null;
+        if (header != null && session != null) {
+          sessionHeaderSent = session.next(payloadHeader.fields, header);
+          header = sessionHeaderSent != null ? sessionHeaderSent.getSerialized() : null;
+        }
+        if (header == null) {
+          dataStore.releaseEvents(events);
+          return false;
+        }
+        if (numEvictedEvents > 0) {
+          // Rarely reported, so appended to a copy rather than cached.
+          header = YozioBatchPayload.appendField(
+              header, P_NUM_EVICTED_EVENTS, Integer.toString(numEvictedEvents));
+        }
+        if (!retryPolicy.allowRequest()) {
+          // Backing off, or the circuit is open. While a half open probe is
+          // in flight there is no delay, and the probe flushes these events.
+          dataStore.releaseEvents(events);
+          long delay = retryPolicy.getDelayMillis();
+          if (delay > 0) {
+            flushScheduler.flushLater(delay);
+          }
+          return false;
+        }
+        long numBytes = events.getSerializedEvents().length();
+        long start = System.currentTimeMillis();
+        boolean sent;
+        try {
+          sent = apiService.batchEvents(
+              new YozioBatchPayload(header, events.getSerializedEvents()));
+        } catch (RuntimeException e) {
+          // Handled as a failed request, which also ends a half open probe.
+          // Otherwise the circuit would stay half open and nothing would be
+          // sent again.
+          Log.e(LOGTAG, "sendEvents", e);
+          sent = false;
+        }
+        if (sent) {
+          retryPolicy.onSuccess();
+          if (session != null) {
+            session.onSuccess(sessionHeaderSent);
+          }
+          batchController.onSuccess(
+              events.getNumEvents(), numBytes, System.currentTimeMillis() - start);
+          dataStore.commitEvents(events);
+          dataStore.removeNumEvictedEvents(numEvictedEvents);
+          return true;
+        }
+        retryPolicy.onFailure(apiService.getRetryAfterMillis());
+        if (session != null) {
+          session.onFailure(sessionHeaderSent);
+        }
+        batchController.onFailure(
+            events.getNumEvents(), numBytes, System.currentTimeMillis() - start);
+        dataStore.releaseEvents(events);
+        flushScheduler.flushLater(retryPolicy.getDelayMillis());
+        return false;
+      } finally {
+        if (reportsEvictedEvents) {
+          reportingEvictedEvents.set(false);
+        }
+      }
+    }
+
+    /**
+     * @return the events checked out by nextEvents, or null if there are none.
+     */
+    private Events getNextEvents(Future<Events> nextEvents) {
+      try {
+        return nextEvents.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        // The checkout may still complete. Its lease will expire.
+        return null;
+      } catch (ExecutionException e) {
+        Log.e(LOGTAG, "getNextEvents", e);
         return null;
       }
     }
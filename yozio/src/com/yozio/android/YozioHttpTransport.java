@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2012 Yozio Inc.
+ *
+ * This file is part of the Yozio SDK.
+ *
+ * By using the Yozio SDK in your software, you agree to the terms of the
+ * Yozio SDK License Agreement which can be found at www.yozio.com/sdk_license.
+ */
+
+package com.yozio.android;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+
+/**
+ * Makes the HTTP requests of the {@link YozioApiService}.
+ *
+ * Request bodies are written to the connection and responses are read from
+ * it as streams, so an implementation never needs a full copy of either.
+ * Implementations must be thread safe.
+ */
+interface YozioHttpTransport {
+
+  /**
+   * A request body.
+   */
+  interface Body {
+
+    String getContentType();
+
+    /**
+     * @return the content encoding, such as gzip, or null if there is none.
+     */
+    String getContentEncoding();
+
+    /**
+     * @return the length in bytes, or -1 if it isn't known until the body is
+     *     written.
+     */
+    long getContentLength();
+
+    /**
+     * Writes the body to out. May be called more than once, such as when a
+     * request is retried. Must not close out.
+     */
+    void writeTo(OutputStream out) throws IOException;
+  }
+
+  /**
+   * A response. Must be closed to release the connection.
+   */
+  interface Response {
+
+    int getStatus();
+
+    /**
+     * @return the first value of the header, or null if there is none.
+     */
+    String getHeader(String name);
+
+    /**
+     * @return the body, or null if the response has none.
+     */
+    InputStream getContent() throws IOException;
+
+    void close();
+  }
+
+  /**
+   * Time limits for a single request.
+   */
+  static final class Timeouts {
+
+    // Bounds connecting to the server, including the wait for a pooled
+    // connection.
+    final int connectMillis;
+    // Bounds each wait for data from the server.
+    final int readMillis;
+
+    Timeouts(int connectMillis, int readMillis) {
+      this.connectMillis = connectMillis;
+      this.readMillis = readMillis;
+    }
+  }
+
+  /**
+   * Makes a blocking POST request.
+   *
+   * @param url  the url to post to.
+   * @param headers  the request headers, other than the ones describing the
+   *     body.
+   * @param body  the request body.
+   * @param timeouts  the time limits of the request.
+   * @return the response.
+   * @throws IOException if the request failed.
+   */
+  Response post(String url, Map<String, String> headers, Body body, Timeouts timeouts)
+      throws IOException;
+
+  /**
+   * Closes the connections held by the transport, such as when it is
+   * replaced. Requests still running may fail.
+   */
+  void shutdown();
+}
@@ -0,0 +1,645 @@
+/*
+ * Copyright (C) 2012 Yozio Inc.
+ *
+ * This file is part of the Yozio SDK.
+ *
+ * By using the Yozio SDK in your software, you agree to the terms of the
+ * Yozio SDK License Agreement which can be found at www.yozio.com/sdk_license.
+ */
+
+package com.yozio.android;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import org.json.JSONObject;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Data store that appends events to segment files instead of a database.
+ *
+ * Each event is a record made of its length followed by its UTF-8 JSON.
+ * Records are addressed by their absolute position in the journal, and the id
+ * of an event is the position just past its record. Removing events only
+ * advances the acknowledged position, which is saved to a checkpoint file.
+ * Segments that are entirely acknowledged are deleted.
+ *
+ * Checked out events are committed in any order. A committed range that is
+ * not at the acknowledged position is kept in memory until the events before
+ * it are committed too, so it is sent again if the app exits first.
+ */
+class YozioJournalDataStore implements YozioDataStore {
+
+  private static final String LOGTAG = "YozioJournalDataStore";
+
+  static final String JOURNAL_DIR = "yozio_journal";
+  // Size after which a new segment file is started.
+  static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+
+  private static final String SEGMENT_SUFFIX = ".seg";
+  private static final String CHECKPOINT_FILE = "checkpoint";
+  private static final String CHECKPOINT_TEMP_FILE = "checkpoint.tmp";
+  // Size of the length that prefixes every record.
+  private static final int LENGTH_SIZE = 4;
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final File dir;
+  private final int segmentSize;
+
+  // Positions of the first byte of each segment, oldest first.
+  private final List<Long> segments = new ArrayList<Long>();
+  // Channel for appending to the newest segment.
+  private FileChannel writeChannel;
+  // Position just past the last record in the journal.
+  private long writePosition;
+  // Position just past the last removed record.
+  private long ackedPosition;
+  // Number of events that are neither acknowledged nor committed.
+  private int numEvents;
+  private boolean open;
+
+  // Ranges of positions checked out by flushers, and ranges that were
+  // committed but are not acknowledged yet. Both are inclusive, from the start
+  // of the first record to the last byte of the last record.
+  private final YozioLeases leases = new YozioLeases();
+  private final YozioLeases committed = new YozioLeases();
+
+  // Limits on the stored events. 0 means no limit.
+  private int maxEvents;
+  private long maxBytes;
+  // Number of evicted events that have not been reported.
+  private int numEvictedEvents;
+
+  YozioJournalDataStore(File dir) {
+    this(dir, DEFAULT_SEGMENT_SIZE);
+  }
+
+  YozioJournalDataStore(File dir, int segmentSize) {
+    this.dir = dir;
+    this.segmentSize = segmentSize;
+  }
+
+  /**
+   * @return the journal directory for the given app key.
+   */
+  static File journalDir(Context context, String appKey) {
+    String name = appKey != null ? appKey.replaceAll("[^A-Za-z0-9_-]", "_") : "default";
+    return new File(context.getDir(JOURNAL_DIR, Context.MODE_PRIVATE), name);
+  }
+
+  public boolean addEvent(JSONObject event) {
+    return addEvents(Collections.singletonList(event));
+  }
+
+  public boolean addEvents(List<JSONObject> events) {
+    synchronized (this) {
+      try {
+        open();
+        byte[][] records = new byte[events.size()][];
+        int size = 0;
+        for (int i = 0; i < records.length; i++) {
+          records[i] = events.get(i).toString().getBytes(UTF_8);
+          size += LENGTH_SIZE + records[i].length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (byte[] record : records) {
+          buffer.putInt(record.length);
+          buffer.put(record);
+        }
+        buffer.flip();
+        long segmentStart = segments.get(segments.size() - 1);
+        if (writePosition > segmentStart && writePosition - segmentStart + size > segmentSize) {
+          startSegment();
+        }
+        while (buffer.hasRemaining()) {
+          writeChannel.write(buffer);
+        }
+        // One sync for the whole batch.
+        writeChannel.force(false);
+        writePosition += size;
+        numEvents += records.length;
+        try {
+          enforceLimits();
+        } catch (IOException e) {
+          // The events were still added.
+          Log.e(LOGTAG, "enforceLimits", e);
+        }
+        return true;
+      } catch (IOException e) {
+        Log.e(LOGTAG, "addEvents", e);
+        discardPartialWrite();
+      }
+      return false;
+    }
+  }
+
+  public int getNumEvents() {
+    synchronized (this) {
+      try {
+        open();
+        return numEvents;
+      } catch (IOException e) {
+        Log.e(LOGTAG, "getNumEvents", e);
+      }
+      return -1;
+    }
+  }
+
+  public Events checkoutEvents(int limit, long maxBytes, long leaseMillis) {
+    synchronized (this) {
+      try {
+        open();
+        long now = System.currentTimeMillis();
+        leases.removeExpired(now);
+        // Skip the leased and committed ranges at the front of the journal.
+        long from = ackedPosition;
+        long end;
+        while ((end = Math.max(leases.leaseEnd(from), committed.leaseEnd(from))) >= 0) {
+          from = end + 1;
+        }
+        long to = Math.min(leases.nextLeaseStart(from), committed.nextLeaseStart(from));
+        Events events = readEvents(from, to, limit, maxBytes);
+        if (committed.leaseEnd(ackedPosition) >= 0) {
+          // Malformed records were dropped at the front.
+          acknowledge(ackedPosition, 0);
+        }
+        if (events != null) {
+          leases.add(Long.parseLong(events.getFirstEventId()),
+              Long.parseLong(events.getLastEventId()) - 1, now + leaseMillis);
+        }
+        return events;
+      } catch (IOException e) {
+        Log.e(LOGTAG, "checkoutEvents", e);
+      }
+      return null;
+    }
+  }
+
+  public boolean commitEvents(Events events) {
+    synchronized (this) {
+      try {
+        open();
+        long first = Long.parseLong(events.getFirstEventId());
+        long position = Math.min(Long.parseLong(events.getLastEventId()), writePosition);
+        leases.remove(first, position - 1);
+        // The events may have been evicted or committed by another flusher
+        // after the lease expired.
+        first = Math.max(first, ackedPosition);
+        if (position <= first || committed.leaseEnd(first) >= 0) {
+          return true;
+        }
+        numEvents = Math.max(0, numEvents - countRecords(first, position));
+        committed.add(first, position - 1, Long.MAX_VALUE);
+        if (first == ackedPosition) {
+          acknowledge(ackedPosition, 0);
+        }
+        return true;
+      } catch (NumberFormatException e) {
+        Log.e(LOGTAG, "commitEvents", e);
+      } catch (IOException e) {
+        Log.e(LOGTAG, "commitEvents", e);
+      }
+      return false;
+    }
+  }
+
+  public void releaseEvents(Events events) {
+    synchronized (this) {
+      try {
+        leases.remove(Long.parseLong(events.getFirstEventId()),
+            Long.parseLong(events.getLastEventId()) - 1);
+      } catch (NumberFormatException e) {
+        Log.e(LOGTAG, "releaseEvents", e);
+      }
+    }
+  }
+
+  public void close() {
+    synchronized (this) {
+      if (!open) {
+        return;
+      }
+      open = false;
+      try {
+        writeChannel.close();
+      } catch (IOException e) {
+        Log.e(LOGTAG, "close", e);
+      }
+      writeChannel = null;
+    }
+  }
+
+  /**
+   * Caps the events kept in the journal. Since the journal is append-only,
+   * the oldest events are always evicted first, whatever evictionPolicy is.
+   * maxAgeMillis is not supported.
+   */
+  public void setLimits(int maxEvents, long maxBytes, long maxAgeMillis, int evictionPolicy) {
+    synchronized (this) {
+      this.maxEvents = maxEvents;
+      this.maxBytes = maxBytes;
+    }
+  }
+
+  public int getNumEvictedEvents() {
+    synchronized (this) {
+      return numEvictedEvents;
+    }
+  }
+
+  public void removeNumEvictedEvents(int numReported) {
+    synchronized (this) {
+      numEvictedEvents = Math.max(0, numEvictedEvents - numReported);
+    }
+  }
+
+  /**
+   * @return the number of bytes used by the journal on disk.
+   */
+  long getDiskSize() {
+    synchronized (this) {
+      long size = 0;
+      File[] files = dir.listFiles();
+      if (files != null) {
+        for (File file : files) {
+          size += file.length();
+        }
+      }
+      return size;
+    }
+  }
+
+  /**
+   * Opens the newest segment for appending and counts the unacknowledged
+   * events, if the journal is not already open. Must be called while holding
+   * the lock on this.
+   */
+  private void open() throws IOException {
+    if (open) {
+      return;
+    }
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Unable to create " + dir);
+    }
+    segments.clear();
+    File[] files = dir.listFiles();
+    for (File file : files) {
+      String name = file.getName();
+      if (name.endsWith(SEGMENT_SUFFIX)) {
+        try {
+          segments.add(Long.parseLong(
+              name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+        } catch (NumberFormatException e) {
+          // Not one of ours.
+        }
+      }
+    }
+    Collections.sort(segments);
+    ackedPosition = readCheckpoint();
+    if (segments.isEmpty()) {
+      segments.add(ackedPosition);
+    } else if (ackedPosition < segments.get(0)) {
+      ackedPosition = segments.get(0);
+    }
+
+    long segmentStart = segments.get(segments.size() - 1);
+    writeChannel = new RandomAccessFile(segmentFile(segmentStart), "rw").getChannel();
+    // Drop a record left partially written by a crash.
+    int validSize = validSize(mapSegment(segmentStart));
+    writeChannel.truncate(validSize);
+    writeChannel.position(validSize);
+    writePosition = segmentStart + validSize;
+    if (ackedPosition > writePosition) {
+      ackedPosition = writePosition;
+    }
+    committed.removeBefore(ackedPosition);
+    numEvents = countRecords(ackedPosition, writePosition);
+    open = true;
+  }
+
+  /**
+   * Drops whatever a failed append wrote past writePosition, so the next
+   * record doesn't follow torn bytes. Must be called while holding the lock
+   * on this.
+   */
+  private void discardPartialWrite() {
+    if (!open) {
+      return;
+    }
+    try {
+      long offset = writePosition - segments.get(segments.size() - 1);
+      writeChannel.truncate(offset);
+      writeChannel.position(offset);
+    } catch (IOException e) {
+      Log.e(LOGTAG, "discardPartialWrite", e);
+      // Opening the journal again drops a partial record.
+      close();
+    }
+  }
+
+  /**
+   * Evicts the oldest events until the rest are within the limits. Checked
+   * out events are skipped, since their flusher may still send them. Evicted
+   * events after them are marked committed until they are acknowledged.
+   */
+  private void enforceLimits() throws IOException {
+    leases.removeExpired(System.currentTimeMillis());
+    int numEvicted = 0;
+    long remainingBytes = writePosition - ackedPosition;
+    // Start of the evicted records just before position, or -1 if there are
+    // none.
+    long evictedFrom = -1;
+    long position = ackedPosition;
+    long segmentStart = -1;
+    MappedByteBuffer segment = null;
+    while (position < writePosition
+        && isOverLimits(numEvents - numEvicted, remainingBytes)) {
+      long leaseEnd = leases.leaseEnd(position);
+      long committedEnd = committed.leaseEnd(position);
+      if (leaseEnd >= 0 || committedEnd >= 0) {
+        evict(evictedFrom, position);
+        evictedFrom = -1;
+        if (committedEnd >= 0) {
+          remainingBytes -= committedEnd + 1 - position;
+          position = committedEnd + 1;
+        } else {
+          position = leaseEnd + 1;
+        }
+        continue;
+      }
+      if (segmentStart != segments.get(segmentIndex(position))) {
+        segmentStart = segments.get(segmentIndex(position));
+        segment = mapSegment(segmentStart);
+      }
+      int offset = (int) (position - segmentStart);
+      if (segment == null || !isRecordAt(segment, offset)) {
+        break;
+      }
+      int size = LENGTH_SIZE + segment.getInt(offset);
+      if (evictedFrom < 0) {
+        evictedFrom = position;
+      }
+      position += size;
+      remainingBytes -= size;
+      numEvicted++;
+    }
+    evict(evictedFrom, position);
+    if (numEvicted > 0) {
+      numEvents = Math.max(0, numEvents - numEvicted);
+      numEvictedEvents += numEvicted;
+      Log.w(LOGTAG, "Evicted " + numEvicted + " events");
+    }
+  }
+
+  /**
+   * Removes the evicted records from from up to to, if from is not -1.
+   */
+  private void evict(long from, long to) throws IOException {
+    if (from < 0) {
+      return;
+    }
+    committed.add(from, to - 1, Long.MAX_VALUE);
+    if (from == ackedPosition) {
+      acknowledge(ackedPosition, 0);
+    }
+  }
+
+  private boolean isOverLimits(int numEvents, long numBytes) {
+    return (maxEvents > 0 && numEvents > maxEvents) || (maxBytes > 0 && numBytes > maxBytes);
+  }
+
+  /**
+   * Moves the acknowledged position forward, past any committed ranges that
+   * follow it, and deletes the segments that are entirely acknowledged.
+   *
+   * @param position  the new acknowledged position.
+   * @param numRecords  the number of uncommitted records between the old and
+   *     new position.
+   */
+  private void acknowledge(long position, int numRecords) throws IOException {
+    long end;
+    while ((end = committed.leaseEnd(position)) >= 0) {
+      position = end + 1;
+    }
+    committed.removeBefore(position);
+    leases.removeBefore(position);
+    writeCheckpoint(position);
+    ackedPosition = position;
+    numEvents = Math.max(0, numEvents - numRecords);
+    while (segments.size() > 1 && segments.get(1) <= ackedPosition) {
+      segmentFile(segments.remove(0)).delete();
+    }
+  }
+
+  /**
+   * Closes the newest segment and starts a new one at writePosition.
+   */
+  private void startSegment() throws IOException {
+    writeChannel.force(false);
+    writeChannel.close();
+    segments.add(writePosition);
+    writeChannel = new RandomAccessFile(segmentFile(writePosition), "rw").getChannel();
+  }
+
+  /**
+   * Reads the records from from up to to. Records that aren't well formed
+   * JSON objects are skipped and marked committed, so they aren't read again.
+   *
+   * @param from  position of the first record to read.
+   * @param to  position at which to stop reading.
+   * @param limit  the maximum number of records to read.
+   * @param maxBytes  the maximum total size of the records, or 0 for no limit.
+   * @return the records, or null if there are none.
+   */
+  private Events readEvents(long from, long to, int limit, long maxBytes) throws IOException {
+    StringBuilder serializedEvents = new StringBuilder();
+    int count = 0;
+    long size = 0;
+    long firstEventStart = from;
+    long lastEventEnd = from;
+    boolean full = limit <= 0;
+    for (int i = segmentIndex(from); i < segments.size() && !full; i++) {
+      long segmentStart = segments.get(i);
+      if (segmentStart >= to) {
+        break;
+      }
+      MappedByteBuffer segment = mapSegment(segmentStart);
+      if (segment == null) {
+        continue;
+      }
+      int offset = (int) (Math.max(from, segmentStart) - segmentStart);
+      while (!full && segmentStart + offset < to && isRecordAt(segment, offset)) {
+        int length = segment.getInt(offset);
+        if (count > 0 && maxBytes > 0 && size + length > maxBytes) {
+          full = true;
+          break;
+        }
+        byte[] record = new byte[length];
+        segment.position(offset + LENGTH_SIZE);
+        segment.get(record);
+        String event = new String(record, UTF_8);
+        long recordStart = segmentStart + offset;
+        offset += LENGTH_SIZE + length;
+        if (!Events.isWellFormed(event)) {
+          // Ignore event.
+          committed.add(recordStart, segmentStart + offset - 1, Long.MAX_VALUE);
+          numEvents = Math.max(0, numEvents - 1);
+          Log.w(LOGTAG, "Dropped a malformed event");
+          continue;
+        }
+        if (count == 0) {
+          firstEventStart = recordStart;
+        } else {
+          serializedEvents.append(',');
+        }
+        serializedEvents.append(event);
+        size += length;
+        count++;
+        lastEventEnd = segmentStart + offset;
+        full = count >= limit;
+      }
+    }
+    if (count == 0) {
+      return null;
+    }
+    return new Events(serializedEvents.toString(), count,
+        Long.toString(firstEventStart), Long.toString(lastEventEnd));
+  }
+
+  /**
+   * Counts the uncommitted records between from and to. Both must be record
+   * boundaries.
+   */
+  private int countRecords(long from, long to) throws IOException {
+    int count = 0;
+    for (int i = segmentIndex(from); i < segments.size(); i++) {
+      long segmentStart = segments.get(i);
+      if (segmentStart >= to) {
+        break;
+      }
+      MappedByteBuffer segment = mapSegment(segmentStart);
+      if (segment == null) {
+        continue;
+      }
+      int offset = (int) (Math.max(from, segmentStart) - segmentStart);
+      while (segmentStart + offset < to && isRecordAt(segment, offset)) {
+        if (committed.leaseEnd(segmentStart + offset) < 0) {
+          count++;
+        }
+        offset += LENGTH_SIZE + segment.getInt(offset);
+      }
+    }
+    return count;
+  }
+
+  /**
+   * @return the size of the complete records at the start of the segment.
+   */
+  private static int validSize(MappedByteBuffer segment) {
+    int offset = 0;
+    if (segment != null) {
+      while (isRecordAt(segment, offset)) {
+        offset += LENGTH_SIZE + segment.getInt(offset);
+      }
+    }
+    return offset;
+  }
+
+  /**
+   * @return true iff a complete record starts at offset.
+   */
+  private static boolean isRecordAt(MappedByteBuffer segment, int offset) {
+    if (offset + LENGTH_SIZE > segment.limit()) {
+      return false;
+    }
+    int length = segment.getInt(offset);
+    return length >= 0 && offset + LENGTH_SIZE + length <= segment.limit();
+  }
+
+  /**
+   * @return the index of the segment containing position.
+   */
+  private int segmentIndex(long position) {
+    for (int i = segments.size() - 1; i > 0; i--) {
+      if (segments.get(i) <= position) {
+        return i;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Memory maps the segment starting at segmentStart.
+   *
+   * @return the mapped segment, or null if it is empty.
+   */
+  private MappedByteBuffer mapSegment(long segmentStart) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(segmentFile(segmentStart), "r");
+    try {
+      FileChannel channel = file.getChannel();
+      long size = channel.size();
+      if (size == 0) {
+        return null;
+      }
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    } finally {
+      // The mapping stays valid after the file is closed.
+      file.close();
+    }
+  }
+
+  private File segmentFile(long segmentStart) {
+    // Locale.US so the digits are ASCII whatever the device's locale, or the
+    // segments wouldn't be found again after it changes.
+    return new File(dir, String.format(Locale.US, "%020d", segmentStart) + SEGMENT_SUFFIX);
+  }
+
+  private long readCheckpoint() throws IOException {
+    File checkpoint = new File(dir, CHECKPOINT_FILE);
+    if (checkpoint.length() < 8) {
+      // No events have been removed yet.
+      return 0;
+    }
+    DataInputStream in = new DataInputStream(new FileInputStream(checkpoint));
+    try {
+      return in.readLong();
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Saves the acknowledged position. The checkpoint is replaced atomically so a
+   * crash leaves either the old or the new position.
+   */
+  private void writeCheckpoint(long position) throws IOException {
+    File temp = new File(dir, CHECKPOINT_TEMP_FILE);
+    FileOutputStream fileOut = new FileOutputStream(temp);
+    DataOutputStream out = new DataOutputStream(fileOut);
+    try {
+      out.writeLong(position);
+      out.flush();
+      fileOut.getFD().sync();
+    } finally {
+      out.close();
+    }
+    if (!temp.renameTo(new File(dir, CHECKPOINT_FILE))) {
+      throw new IOException("Unable to write checkpoint");
+    }
+  }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2012 Yozio Inc.
+ *
+ * This file is part of the Yozio SDK.
+ *
+ * By using the Yozio SDK in your software, you agree to the terms of the
+ * Yozio SDK License Agreement which can be found at www.yozio.com/sdk_license.
+ */
+
+package com.yozio.android;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Leases on inclusive ranges of event ids. Used by data stores to hand out
+ * events to concurrent flushers without handing out the same event twice.
+ *
+ * Not thread safe. Data stores must hold their own lock while using it.
+ */
+class YozioLeases {
+
+  private static class Lease {
+    private final long first;
+    private final long last;
+    private final long expiresAt;
+
+    private Lease(long first, long last, long expiresAt) {
+      this.first = first;
+      this.last = last;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+  private final List<Lease> leases = new ArrayList<Lease>();
+
+  /**
+   * Leases the ids from first to last.
+   *
+   * @param expiresAt  time in milliseconds at which the lease expires.
+   */
+  void add(long first, long last, long expiresAt) {
+    leases.add(new Lease(first, last, expiresAt));
+  }
+
+  /**
+   * Ends the lease on the ids from first to last.
+   *
+   * @return true iff there was such a lease.
+   */
+  boolean remove(long first, long last) {
+    for (Iterator<Lease> it = leases.iterator(); it.hasNext();) {
+      Lease lease = it.next();
+      if (lease.first == first && lease.last == last) {
+        it.remove();
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Ends the leases that have expired by now.
+   */
+  void removeExpired(long now) {
+    for (Iterator<Lease> it = leases.iterator(); it.hasNext();) {
+      if (it.next().expiresAt <= now) {
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * Ends the leases that end before id.
+   */
+  void removeBefore(long id) {
+    for (Iterator<Lease> it = leases.iterator(); it.hasNext();) {
+      if (it.next().last < id) {
+        it.remove();
+      }
+    }
+  }
+
+  void clear() {
+    leases.clear();
+  }
+
+  /**
+   * @return the last id of the lease covering id, or -1 if id is not leased.
+   */
+  long leaseEnd(long id) {
+    for (Lease lease : leases) {
+      if (lease.first <= id && id <= lease.last) {
+        return lease.last;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return the first id of the earliest lease starting after id, or
+   *         Long.MAX_VALUE if there is none.
+   */
+  long nextLeaseStart(long id) {
+    long next = Long.MAX_VALUE;
+    for (Lease lease : leases) {
+      if (lease.first > id && lease.first < next) {
+        next = lease.first;
+      }
+    }
+    return next;
+  }
+
+  int size() {
+    return leases.size();
+  }
+
+  long getFirst(int index) {
+    return leases.get(index).first;
+  }
+
+  long getLast(int index) {
+    return leases.get(index).last;
+  }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2012 Yozio Inc.
+ *
+ * This file is part of the Yozio SDK.
+ *
+ * By using the Yozio SDK in your software, you agree to the terms of the
+ * Yozio SDK License Agreement which can be found at www.yozio.com/sdk_license.
+ */
+
+package com.yozio.android;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+/**
+ * Cache of generated Yozio links, keyed by all the arguments of the get_url
+ * request.
+ *
+ * Links expire a fixed time after they were generated. When the cache is
+ * full, the least recently used link is evicted. The links are stored in
+ * SharedPreferences in the background whenever one is added, so they survive
+ * restarts; neither a lookup nor adding a link waits for storage.
+ *
+ * Thread safe.
+ */
+class YozioLinkCache {
+
+  static final String PREFERENCES_NAME = "yozioLinkCache";
+  // Used for prefetched links when no cache was set up.
+  static final int DEFAULT_MAX_LINKS = 100;
+  static final long DEFAULT_TTL_MS = 24 * 60 * 60 * 1000;
+  // Share of the TTL after which a link is due for a refresh.
+  static final int REFRESH_AFTER_PERCENT = 80;
+
+  private static final String LOGTAG = "YozioLinkCache";
+  private static final String ENTRIES_KEY = "entries";
+
+  // Stores the links of all caches, in order, so an older snapshot never
+  // overwrites a newer one.
+  private static final ExecutorService writer =
+      Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "YozioLinkCache");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  // Null if the links aren't persisted.
+  private final SharedPreferences preferences;
+  private final int maxLinks;
+  private final long ttlMillis;
+  // Least recently used first. Guarded by this.
+  private final LinkedHashMap<String, Entry> entries;
+  // Whether a save is queued that hasn't taken its snapshot yet, so adding
+  // several links in a row stores them once. Guarded by this.
+  private boolean savePending;
+
+  /**
+   * @param preferences  where the links are stored, or null to only keep
+   *     them in memory.
+   * @param maxLinks  the maximum number of links to keep.
+   * @param ttlMillis  how long a link is served after it was generated.
+   */
+  YozioLinkCache(SharedPreferences preferences, int maxLinks, long ttlMillis) {
+    this.preferences = preferences;
+    this.maxLinks = maxLinks;
+    this.ttlMillis = ttlMillis;
+    this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    load();
+  }
+
+  /**
+   * Builds the cache key of a get_url request.
+   *
+   * @param args  the arguments of the request, which may be null.
+   */
+  static String key(Object... args) {
+    JSONArray key = new JSONArray();
+    for (Object arg : args) {
+      key.put(arg != null ? arg.toString() : JSONObject.NULL);
+    }
+    return key.toString();
+  }
+
+  /**
+   * Removes the stored links.
+   */
+  static void clear(final SharedPreferences preferences) {
+    // Queued behind any pending save, so the links aren't stored again.
+    writer.execute(new Runnable() {
+      public void run() {
+        preferences.edit().remove(ENTRIES_KEY).commit();
+      }
+    });
+  }
+
+  /**
+   * Waits until the links queued for storage so far are stored.
+   */
+  // For testing
+  static void awaitWrites() throws InterruptedException {
+    try {
+      writer.submit(new Runnable() {
+        public void run() {
+        }
+      }).get();
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * @return the cached link, or null if there is none or it expired.
+   */
+  synchronized String get(String key) {
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      return null;
+    }
+    if (entry.expiresAtMillis <= System.currentTimeMillis()) {
+      entries.remove(key);
+      return null;
+    }
+    return entry.link;
+  }
+
+  /**
+   * @return the time the cached link is due for a refresh, or 0 if there is
+   *     none.
+   */
+  synchronized long getRefreshAtMillis(String key) {
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      return 0;
+    }
+    return entry.expiresAtMillis - ttlMillis * (100 - REFRESH_AFTER_PERCENT) / 100;
+  }
+
+  /**
+   * Caches a link generated now.
+   */
+  synchronized void put(String key, String link) {
+    entries.put(key, new Entry(link, System.currentTimeMillis() + ttlMillis));
+    evict();
+    if (preferences != null && !savePending) {
+      savePending = true;
+      writer.execute(new Runnable() {
+        public void run() {
+          save();
+        }
+      });
+    }
+  }
+
+  synchronized int size() {
+    return entries.size();
+  }
+
+  /**
+   * Drops expired links, then the least recently used ones over maxLinks.
+   */
+  private void evict() {
+    long now = System.currentTimeMillis();
+    Iterator<Entry> it = entries.values().iterator();
+    while (it.hasNext()) {
+      Entry entry = it.next();
+      if (entry.expiresAtMillis <= now || entries.size() > maxLinks) {
+        it.remove();
+      }
+    }
+  }
+
+  private void load() {
+    if (preferences == null) {
+      return;
+    }
+    String stored = preferences.getString(ENTRIES_KEY, null);
+    if (stored == null) {
+      return;
+    }
+    try {
+      JSONArray array = new JSONArray(stored);
+      for (int i = 0; i < array.length(); i++) {
+        JSONArray entry = array.getJSONArray(i);
+        entries.put(entry.getString(0), new Entry(entry.getString(1), entry.getLong(2)));
+      }
+    } catch (JSONException e) {
+      Log.e(LOGTAG, "load", e);
+      entries.clear();
+    }
+    evict();
+  }
+
+  /**
+   * Stores a snapshot of the links. Runs on the writer thread, and only holds
+   * the lock while taking the snapshot.
+   */
+  private void save() {
+    String stored;
+    synchronized (this) {
+      savePending = false;
+      // Stored least recently used first, so the order is kept.
+      JSONArray array = new JSONArray();
+      for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+        array.put(new JSONArray()
+            .put(entry.getKey())
+            .put(entry.getValue().link)
+            .put(entry.getValue().expiresAtMillis));
+      }
+      stored = array.toString();
+    }
+    preferences.edit().putString(ENTRIES_KEY, stored).commit();
+  }
+
+  private static final class Entry {
+
+    final String link;
+    final long expiresAtMillis;
+
+    Entry(String link, long expiresAtMillis) {
+      this.link = link;
+      this.expiresAtMillis = expiresAtMillis;
+    }
+  }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2012 Yozio Inc.
+ *
+ * This file is part of the Yozio SDK.
+ *
+ * By using the Yozio SDK in your software, you agree to the terms of the
+ * Yozio SDK License Agreement which can be found at www.yozio.com/sdk_license.
+ */
+
+package com.yozio.android;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the links of declared viral loops and channels in the link cache, so
+ * asking for them doesn't wait on a request.
+ *
+ * Links are loaded one at a time on a low priority thread. Each is loaded
+ * again when the link cache says it is due for a refresh, ahead of its
+ * expiry. A link that fails to load is retried after RETRY_DELAY_MS, doubled
+ * after every run in a row that loaded nothing, up to MAX_RETRY_DELAY_MS.
+ *
+ * Thread safe.
+ */
+class YozioLinkPrefetcher implements Runnable {
+
+  static final long RETRY_DELAY_MS = 60 * 1000;
+  static final long MAX_RETRY_DELAY_MS = 30 * 60 * 1000;
+  // Shortest time between two runs, in case a link expires right away.
+  private static final long MIN_DELAY_MS = 1000;
+
+  /**
+   * A declared link.
+   */
+  static final class Link {
+
+    final String viralLoopName;
+    final String channel;
+    // Null if the link has a destination per platform.
+    final String destinationUrl;
+    final String iosDestinationUrl;
+    final String androidDestinationUrl;
+    final String nonMobileDestinationUrl;
+
+    Link(String viralLoopName, String channel, String destinationUrl) {
+      this(viralLoopName, channel, destinationUrl, null, null, null);
+    }
+
+    Link(String viralLoopName, String channel, String iosDestinationUrl,
+        String androidDestinationUrl, String nonMobileDestinationUrl) {
+      this(viralLoopName, channel, null, iosDestinationUrl, androidDestinationUrl,
+          nonMobileDestinationUrl);
+    }
+
+    private Link(String viralLoopName, String channel, String destinationUrl,
+        String iosDestinationUrl, String androidDestinationUrl, String nonMobileDestinationUrl) {
+      this.viralLoopName = viralLoopName;
+      this.channel = channel;
+      this.destinationUrl = destinationUrl;
+      this.iosDestinationUrl = iosDestinationUrl;
+      this.androidDestinationUrl = androidDestinationUrl;
+      this.nonMobileDestinationUrl = nonMobileDestinationUrl;
+    }
+  }
+
+  /**
+   * Loads links into the link cache.
+   */
+  interface Loader {
+
+    /**
+     * @return the time the cached link is due for a refresh, 0 if it isn't
+     *     cached, or -1 if links aren't cached at all.
+     */
+    long getRefreshAtMillis(Link link);
+
+    /**
+     * Makes a blocking request for the link and caches it.
+     *
+     * @return true iff the link was generated.
+     */
+    boolean load(Link link);
+  }
+
+  private final Loader loader;
+  private final ScheduledThreadPoolExecutor timer;
+  private final List<Link> links = new CopyOnWriteArrayList<Link>();
+
+  // Guarded by this.
+  private ScheduledFuture<?> scheduledRun;
+  // Incremented every time a run is scheduled, so a run doesn't replace one
+  // scheduled while it was running. Guarded by this.
+  private int generation;
+  // Number of links loaded. Guarded by this.
+  private int numLoaded;
+  // Number of runs in a row where loads failed and none succeeded. Guarded
+  // by this.
+  private int consecutiveFailures;
+
+  YozioLinkPrefetcher(Loader loader) {
+    this.loader = loader;
+    this.timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "YozioLinkPrefetcher");
+        thread.setDaemon(true);
+        // Leaves the CPU to the app's own work.
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * Declares links to keep loaded, and starts loading them.
+   */
+  void add(List<Link> newLinks) {
+    links.addAll(newLinks);
+    refresh();
+  }
+
+  /**
+   * Checks all the links right away, such as when their cache keys changed.
+   * Does nothing if no link was declared.
+   */
+  void refresh() {
+    if (!links.isEmpty()) {
+      schedule(0);
+    }
+  }
+
+  // For testing
+  synchronized int getNumLoaded() {
+    return numLoaded;
+  }
+
+  // For testing
+  synchronized int getConsecutiveFailures() {
+    return consecutiveFailures;
+  }
+
+  public void run() {
+    int runGeneration;
+    synchronized (this) {
+      runGeneration = generation;
+    }
+    long nextRunMillis = Long.MAX_VALUE;
+    boolean failed = false;
+    boolean loaded = false;
+    for (Link link : links) {
+      long refreshAtMillis = loader.getRefreshAtMillis(link);
+      if (refreshAtMillis < 0) {
+        // Links aren't cached, so there is nowhere to keep them.
+        return;
+      }
+      if (refreshAtMillis <= System.currentTimeMillis()) {
+        if (loader.load(link)) {
+          synchronized (this) {
+            numLoaded++;
+          }
+          loaded = true;
+          refreshAtMillis = loader.getRefreshAtMillis(link);
+          if (refreshAtMillis <= System.currentTimeMillis()) {
+            // The link was evicted or expired right away.
+            refreshAtMillis = System.currentTimeMillis() + RETRY_DELAY_MS;
+          }
+        } else {
+          failed = true;
+          // Replaced by the backoff below.
+          refreshAtMillis = Long.MAX_VALUE;
+        }
+      }
+      nextRunMillis = Math.min(nextRunMillis, refreshAtMillis);
+    }
+    synchronized (this) {
+      if (loaded) {
+        consecutiveFailures = 0;
+      } else if (failed) {
+        consecutiveFailures++;
+      }
+      if (failed) {
+        long retryDelay = Math.min(MAX_RETRY_DELAY_MS,
+            RETRY_DELAY_MS << Math.min(Math.max(consecutiveFailures - 1, 0), 20));
+        nextRunMillis = Math.min(nextRunMillis, System.currentTimeMillis() + retryDelay);
+      }
+    }
+    if (nextRunMillis != Long.MAX_VALUE) {
+      synchronized (this) {
+        if (generation == runGeneration) {
+          schedule(Math.max(MIN_DELAY_MS, nextRunMillis - System.currentTimeMillis()));
+        }
+      }
+    }
+  }
+
+  /**
+   * Replaces the scheduled run.
+   */
+  private synchronized void schedule(long delayMillis) {
+    if (scheduledRun != null) {
+      scheduledRun.cancel(false);
+    }
+    generation++;
+    scheduledRun = timer.schedule(this, delayMillis, TimeUnit.MILLISECONDS);
+  }
+}
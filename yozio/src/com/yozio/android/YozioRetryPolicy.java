@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2012 Yozio Inc.
+ *
+ * This file is part of the Yozio SDK.
+ *
+ * By using the Yozio SDK in your software, you agree to the terms of the
+ * Yozio SDK License Agreement which can be found at www.yozio.com/sdk_license.
+ */
+
+package com.yozio.android;
+
+import java.util.Random;
+
+/**
+ * Decides when a failed batch may be retried.
+ *
+ * After a failure, requests back off exponentially with jitter, or for as
+ * long as the server asked with Retry-After if that is longer. After
+ * FAILURE_THRESHOLD consecutive failures the circuit opens and no requests are
+ * made for a while. Then a single probe request is allowed (half open). If it
+ * succeeds the circuit closes, otherwise it opens again.
+ *
+ * Thread safe.
+ */
+class YozioRetryPolicy {
+
+  static final long BASE_BACKOFF_MS = 1000;
+  static final long MAX_BACKOFF_MS = 5 * 60 * 1000;
+  static final int FAILURE_THRESHOLD = 5;
+  static final long OPEN_MS = 60 * 1000;
+
+  private final Random random;
+  private final long baseBackoffMillis;
+  private final long openMillis;
+
+  private int state = Yozio.CIRCUIT_CLOSED;
+  private int consecutiveFailures;
+  private int numRetries;
+  // Time before which no request is allowed.
+  private long nextAttemptMillis;
+  // True iff the half open probe has been allowed and has not completed.
+  private boolean probing;
+
+  YozioRetryPolicy() {
+    this(new Random(), BASE_BACKOFF_MS, OPEN_MS);
+  }
+
+  /**
+   * @param baseBackoffMillis  the backoff after the first failure.
+   * @param openMillis  how long the circuit stays open.
+   */
+  YozioRetryPolicy(Random random, long baseBackoffMillis, long openMillis) {
+    this.random = random;
+    this.baseBackoffMillis = baseBackoffMillis;
+    this.openMillis = openMillis;
+  }
+
+  /**
+   * Checks if a request may be made now. In the half open state, only the
+   * first caller is allowed, and must report the result with onSuccess or
+   * onFailure.
+   *
+   * @return true iff the request may be made.
+   */
+  synchronized boolean allowRequest() {
+    if (System.currentTimeMillis() < nextAttemptMillis) {
+      return false;
+    }
+    if (state == Yozio.CIRCUIT_OPEN) {
+      state = Yozio.CIRCUIT_HALF_OPEN;
+    }
+    if (state == Yozio.CIRCUIT_HALF_OPEN) {
+      if (probing) {
+        return false;
+      }
+      probing = true;
+    }
+    if (consecutiveFailures > 0) {
+      numRetries++;
+    }
+    return true;
+  }
+
+  /**
+   * Records a successful request, closing the circuit.
+   */
+  synchronized void onSuccess() {
+    state = Yozio.CIRCUIT_CLOSED;
+    consecutiveFailures = 0;
+    nextAttemptMillis = 0;
+    probing = false;
+  }
+
+  /**
+   * Records a failed request.
+   *
+   * @param retryAfterMillis  how long the server asked to wait, or 0.
+   */
+  synchronized void onFailure(long retryAfterMillis) {
+    consecutiveFailures++;
+    probing = false;
+    long now = System.currentTimeMillis();
+    long delay;
+    if (state == Yozio.CIRCUIT_HALF_OPEN || consecutiveFailures >= FAILURE_THRESHOLD) {
+      state = Yozio.CIRCUIT_OPEN;
+      delay = openMillis;
+    } else {
+      // Equal jitter: half the backoff, plus up to the other half at random.
+      long backoff = baseBackoffMillis << Math.min(consecutiveFailures - 1, 20);
+      backoff = Math.min(MAX_BACKOFF_MS, backoff);
+      delay = backoff / 2 + (long) (random.nextDouble() * (backoff / 2));
+    }
+    nextAttemptMillis = Math.max(nextAttemptMillis, now + Math.max(delay, retryAfterMillis));
+  }
+
+  /**
+   * @return how long until a request may be made, or 0 if one may be made now.
+   */
+  synchronized long getDelayMillis() {
+    return Math.max(0, nextAttemptMillis - System.currentTimeMillis());
+  }
+
+  /**
+   * @return one of the Yozio.CIRCUIT_ constants.
+   */
+  synchronized int getState() {
+    return state;
+  }
+
+  synchronized int getConsecutiveFailures() {
+    return consecutiveFailures;
+  }
+
+  /**
+   * @return the number of requests made after a failure.
+   */
+  synchronized int getNumRetries() {
+    return numRetries;
+  }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2012 Yozio Inc.
+ *
+ * This file is part of the Yozio SDK.
+ *
+ * By using the Yozio SDK in your software, you agree to the terms of the
+ * Yozio SDK License Agreement which can be found at www.yozio.com/sdk_license.
+ */
+
+package com.yozio.android;
+
+import java.util.Iterator;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Builds session scoped payload headers, so the device fields are sent once
+ * per session instead of with every batch.
+ *
+ * A full header is sent with a new session key. Once a batch with it
+ * succeeds, the server has stored it under that key, and later batches carry
+ * only the key, the fields identifying the app and device, and the fields
+ * that differ from the stored header. A field that was removed is sent as
+ * null. A stored header is never replaced, so batches sent in parallel or
+ * out of order are always resolved against the header they were built from.
+ *
+ * If a batch that refers to the stored header fails, the server may have
+ * lost the session, so the next batch sends a full header with a new key.
+ *
+ * Thread safe.
+ */
+class YozioSessionHeader {
+
+  static final String P_SESSION_KEY = "session_key";
+
+  /**
+   * A header built for one batch.
+   */
+  static final class Header {
+
+    private final String serialized;
+    private final String sessionKey;
+    private final JSONObject fullHeader;
+    private final boolean full;
+
+    Header(String serialized, String sessionKey, JSONObject fullHeader, boolean full) {
+      this.serialized = serialized;
+      this.sessionKey = sessionKey;
+      this.fullHeader = fullHeader;
+      this.full = full;
+    }
+
+    String getSerialized() {
+      return serialized;
+    }
+
+    /**
+     * @return true iff every header field is sent.
+     */
+    boolean isFull() {
+      return full;
+    }
+  }
+
+  private final String sessionKeyPrefix;
+  private final String[] keysAlwaysSent;
+
+  // Number of session keys handed out. Guarded by this.
+  private int numSessions;
+  // The full header the server stored, and its session key, or null if the
+  // next batch must send a full header. Guarded by this.
+  private JSONObject storedHeader;
+  private String storedSessionKey;
+  // The last header sent relative to storedHeader, and the full header it was
+  // built from. Guarded by this.
+  private JSONObject deltaSource;
+  private String delta;
+
+  /**
+   * @param sessionKeyPrefix  a prefix unique to this process.
+   * @param keysAlwaysSent  the fields sent with every header.
+   */
+  YozioSessionHeader(String sessionKeyPrefix, String... keysAlwaysSent) {
+    this.sessionKeyPrefix = sessionKeyPrefix;
+    this.keysAlwaysSent = keysAlwaysSent;
+  }
+
+  /**
+   * Builds the header for the next batch.
+   *
+   * @param fullHeader  every header field. Must not be modified afterwards.
+   * @param serializedFullHeader  fullHeader serialized.
+   * @return the header, or null if it couldn't be built.
+   */
+  synchronized Header next(JSONObject fullHeader, String serializedFullHeader) {
+    if (storedHeader == null) {
+      String sessionKey = sessionKeyPrefix + "-" + Integer.toHexString(++numSessions);
+      String serialized = YozioBatchPayload.appendField(
+          serializedFullHeader, P_SESSION_KEY, JSONObject.quote(sessionKey));
+      return new Header(serialized, sessionKey, fullHeader, true);
+    }
+    if (fullHeader != deltaSource) {
+      try {
+        delta = buildDelta(fullHeader).toString();
+      } catch (JSONException e) {
+        return null;
+      }
+      deltaSource = fullHeader;
+    }
+    return new Header(delta, storedSessionKey, fullHeader, false);
+  }
+
+  /**
+   * Records that the batch with header was sent.
+   */
+  synchronized void onSuccess(Header header) {
+    if (header.full && storedHeader == null) {
+      storedHeader = header.fullHeader;
+      storedSessionKey = header.sessionKey;
+      deltaSource = null;
+      delta = null;
+    }
+  }
+
+  /**
+   * Records that the batch with header failed.
+   */
+  synchronized void onFailure(Header header) {
+    if (!header.full && header.sessionKey.equals(storedSessionKey)) {
+      storedHeader = null;
+      storedSessionKey = null;
+      deltaSource = null;
+      delta = null;
+    }
+  }
+
+  private JSONObject buildDelta(JSONObject fullHeader) throws JSONException {
+    JSONObject delta = new JSONObject();
+    for (String key : keysAlwaysSent) {
+      delta.put(key, fullHeader.opt(key));
+    }
+    Iterator<?> keys = fullHeader.keys();
+    while (keys.hasNext()) {
+      String key = (String) keys.next();
+      Object value = fullHeader.opt(key);
+      Object storedValue = storedHeader.opt(key);
+      if (storedValue == null || !storedValue.toString().equals(value.toString())) {
+        delta.put(key, value);
+      }
+    }
+    keys = storedHeader.keys();
+    while (keys.hasNext()) {
+      String key = (String) keys.next();
+      if (!fullHeader.has(key)) {
+        delta.put(key, JSONObject.NULL);
+      }
+    }
+    delta.put(P_SESSION_KEY, storedSessionKey);
+    return delta;
+  }
+}
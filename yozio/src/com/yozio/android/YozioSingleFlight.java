@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2012 Yozio Inc.
+ *
+ * This file is part of the Yozio SDK.
+ *
+ * By using the Yozio SDK in your software, you agree to the terms of the
+ * Yozio SDK License Agreement which can be found at www.yozio.com/sdk_license.
+ */
+
+package com.yozio.android;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tracks calls in flight by key, so identical calls made while one is running
+ * wait for its result instead of making their own.
+ *
+ * The first caller for a key makes the call and completes it; later callers
+ * only add their waiter, such as a callback, until then.
+ *
+ * Thread safe.
+ *
+ * @param <T>  the type of the waiters.
+ */
+class YozioSingleFlight<T> {
+
+  // Waiters of each call in flight, in the order they joined. Guarded by this.
+  private final Map<String, List<T>> inFlight = new HashMap<String, List<T>>();
+  // Number of calls not made because an identical one was in flight.
+  // Guarded by this.
+  private long numSaved;
+
+  /**
+   * Adds a waiter for the call identified by key.
+   *
+   * @return true iff no such call was in flight, in which case the caller
+   *     must make it and then call {@link #complete}.
+   */
+  synchronized boolean join(String key, T waiter) {
+    List<T> waiters = inFlight.get(key);
+    if (waiters != null) {
+      waiters.add(waiter);
+      numSaved++;
+      return false;
+    }
+    waiters = new ArrayList<T>();
+    waiters.add(waiter);
+    inFlight.put(key, waiters);
+    return true;
+  }
+
+  /**
+   * Ends the call identified by key. Calls joined after this make a new call.
+   *
+   * @return the waiters of the call, in the order they joined.
+   */
+  synchronized List<T> complete(String key) {
+    List<T> waiters = inFlight.remove(key);
+    return waiters != null ? waiters : Collections.<T>emptyList();
+  }
+
+  synchronized long getNumSaved() {
+    return numSaved;
+  }
+}
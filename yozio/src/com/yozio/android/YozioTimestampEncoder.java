@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2012 Yozio Inc.
+ *
+ * This file is part of the Yozio SDK.
+ *
+ * By using the Yozio SDK in your software, you agree to the terms of the
+ * Yozio SDK License Agreement which can be found at www.yozio.com/sdk_license.
+ */
+
+package com.yozio.android;
+
+/**
+ * Formats event timestamps as "yyyy-MM-dd HH:mm:ss" in UTC, the same as
+ * SimpleDateFormat, without its locking or a Calendar per call.
+ *
+ * Events are collected in bursts, so the formatted second is cached, and the
+ * "yyyy-MM-dd HH:mm:" prefix of the current minute is reused when the second
+ * changes. The cache is an immutable entry swapped in with a volatile write,
+ * so concurrent callers never see a torn value.
+ *
+ * Thread safe.
+ */
+class YozioTimestampEncoder {
+
+  private static final long MILLIS_PER_SECOND = 1000;
+  private static final long SECONDS_PER_MINUTE = 60;
+  private static final long MINUTES_PER_DAY = 24 * 60;
+
+  private static final class Entry {
+    final long minute;
+    final String minutePrefix;
+    final long second;
+    final String text;
+
+    Entry(long minute, String minutePrefix, long second, String text) {
+      this.minute = minute;
+      this.minutePrefix = minutePrefix;
+      this.second = second;
+      this.text = text;
+    }
+  }
+
+  private volatile Entry cached = new Entry(Long.MIN_VALUE, null, Long.MIN_VALUE, null);
+
+  /**
+   * @return timeMillis formatted as "yyyy-MM-dd HH:mm:ss" in UTC.
+   */
+  String encode(long timeMillis) {
+    long second = floorDiv(timeMillis, MILLIS_PER_SECOND);
+    Entry entry = cached;
+    if (entry.second == second) {
+      return entry.text;
+    }
+    long minute = floorDiv(second, SECONDS_PER_MINUTE);
+    String minutePrefix = entry.minute == minute ? entry.minutePrefix : formatMinute(minute);
+    StringBuilder text = new StringBuilder(minutePrefix.length() + 2).append(minutePrefix);
+    appendTwoDigits(text, (int) (second - minute * SECONDS_PER_MINUTE));
+    entry = new Entry(minute, minutePrefix, second, text.toString());
+    cached = entry;
+    return entry.text;
+  }
+
+  /**
+   * @return "yyyy-MM-dd HH:mm:" for the given minute since the epoch.
+   */
+  private static String formatMinute(long minute) {
+    long day = floorDiv(minute, MINUTES_PER_DAY);
+    int minuteOfDay = (int) (minute - day * MINUTES_PER_DAY);
+
+    // Converts days since the epoch to a proleptic Gregorian date, counting
+    // from 0000-03-01 so the leap day is at the end of each year.
+    long z = day + 719468;
+    long era = floorDiv(z, 146097);
+    long dayOfEra = z - era * 146097;
+    long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+    long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+    long monthIndex = (5 * dayOfYear + 2) / 153;
+    int dayOfMonth = (int) (dayOfYear - (153 * monthIndex + 2) / 5 + 1);
+    int month = (int) (monthIndex < 10 ? monthIndex + 3 : monthIndex - 9);
+    long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+    StringBuilder text = new StringBuilder(17);
+    String yearText = Long.toString(year);
+    for (int i = yearText.length(); i < 4; i++) {
+      text.append('0');
+    }
+    text.append(yearText).append('-');
+    appendTwoDigits(text, month);
+    text.append('-');
+    appendTwoDigits(text, dayOfMonth);
+    text.append(' ');
+    appendTwoDigits(text, minuteOfDay / 60);
+    text.append(':');
+    appendTwoDigits(text, minuteOfDay % 60);
+    text.append(':');
+    return text.toString();
+  }
+
+  private static void appendTwoDigits(StringBuilder text, int value) {
+    text.append((char) ('0' + value / 10)).append((char) ('0' + value % 10));
+  }
+
+  private static long floorDiv(long x, long y) {
+    long quotient = x / y;
+    if ((x % y != 0) && ((x < 0) != (y < 0))) {
+      quotient--;
+    }
+    return quotient;
+  }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2012 Yozio Inc.
+ *
+ * This file is part of the Yozio SDK.
+ *
+ * By using the Yozio SDK in your software, you agree to the terms of the
+ * Yozio SDK License Agreement which can be found at www.yozio.com/sdk_license.
+ */
+
+package com.yozio.android;
+
+import javax.net.ssl.SSLSocketFactory;
+
+import android.content.Context;
+import android.net.SSLCertificateSocketFactory;
+import android.net.SSLSessionCache;
+
+/**
+ * Socket factories sharing a TLS session cache, so sessions are resumed
+ * across connections.
+ *
+ * SSLSessionCache only exists from API 8, so this class must not be loaded
+ * on older versions.
+ */
+class YozioTlsSessions {
+
+  static final int MIN_SDK_INT = 8;
+
+  private final SSLSessionCache sslSessionCache;
+
+  YozioTlsSessions(Context context) {
+    this.sslSessionCache = new SSLSessionCache(context);
+  }
+
+  /**
+   * @return the socket factory for HttpsURLConnection.
+   */
+  SSLSocketFactory getSocketFactory(int handshakeTimeoutMillis) {
+    return (SSLSocketFactory)
+        SSLCertificateSocketFactory.getDefault(handshakeTimeoutMillis, sslSessionCache);
+  }
+
+  /**
+   * @return the socket factory for the https scheme of an Apache HttpClient.
+   */
+  org.apache.http.conn.ssl.SSLSocketFactory getHttpSocketFactory(int handshakeTimeoutMillis) {
+    return SSLCertificateSocketFactory.getHttpSocketFactory(
+        handshakeTimeoutMillis, sslSessionCache);
+  }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2012 Yozio Inc.
+ *
+ * This file is part of the Yozio SDK.
+ *
+ * By using the Yozio SDK in your software, you agree to the terms of the
+ * Yozio SDK License Agreement which can be found at www.yozio.com/sdk_license.
+ */
+
+package com.yozio.android;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * {@link YozioHttpTransport} on HttpURLConnection, which pools connections
+ * per host and has less overhead than the Apache client on newer Android
+ * versions.
+ *
+ * The connection pool is shared with the rest of the app and sized by the
+ * platform.
+ */
+class YozioUrlConnectionHttpTransport implements YozioHttpTransport {
+
+  // Socket factory for https connections, or null for the default.
+  private final SSLSocketFactory sslSocketFactory;
+
+  YozioUrlConnectionHttpTransport() {
+    this(null);
+  }
+
+  /**
+   * @param sslSocketFactory  the socket factory for https connections, such
+   *     as one sharing a TLS session cache, or null for the default.
+   */
+  YozioUrlConnectionHttpTransport(SSLSocketFactory sslSocketFactory) {
+    this.sslSocketFactory = sslSocketFactory;
+  }
+
+  public Response post(String url, Map<String, String> headers, Body body, Timeouts timeouts)
+      throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+    try {
+      if (sslSocketFactory != null && connection instanceof HttpsURLConnection) {
+        ((HttpsURLConnection) connection).setSSLSocketFactory(sslSocketFactory);
+      }
+      connection.setConnectTimeout(timeouts.connectMillis);
+      connection.setReadTimeout(timeouts.readMillis);
+      connection.setRequestMethod("POST");
+      connection.setDoOutput(true);
+      // Redirects would lose the request body.
+      connection.setInstanceFollowRedirects(false);
+      for (Map.Entry<String, String> header : headers.entrySet()) {
+        connection.setRequestProperty(header.getKey(), header.getValue());
+      }
+      connection.setRequestProperty("Content-Type", body.getContentType());
+      if (body.getContentEncoding() != null) {
+        connection.setRequestProperty("Content-Encoding", body.getContentEncoding());
+      }
+      // Stream the body instead of letting the connection buffer it.
+      long contentLength = body.getContentLength();
+      if (contentLength >= 0 && contentLength <= Integer.MAX_VALUE) {
+        connection.setFixedLengthStreamingMode((int) contentLength);
+      } else {
+        connection.setChunkedStreamingMode(0);
+      }
+      OutputStream out = connection.getOutputStream();
+      try {
+        body.writeTo(out);
+      } finally {
+        out.close();
+      }
+      return new UrlConnectionResponse(connection, connection.getResponseCode());
+    } catch (IOException e) {
+      connection.disconnect();
+      throw e;
+    }
+  }
+
+  public void shutdown() {
+    // The connection pool belongs to the platform.
+  }
+
+  private static class UrlConnectionResponse implements Response {
+
+    private final HttpURLConnection connection;
+    private final int status;
+    private InputStream content;
+
+    UrlConnectionResponse(HttpURLConnection connection, int status) {
+      this.connection = connection;
+      this.status = status;
+    }
+
+    public int getStatus() {
+      return status;
+    }
+
+    public String getHeader(String name) {
+      return connection.getHeaderField(name);
+    }
+
+    public InputStream getContent() throws IOException {
+      if (content == null) {
+        // Error responses have their body on the error stream.
+        content = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+      }
+      return content;
+    }
+
+    public void close() {
+      if (content == null) {
+        // Nothing was read, so the connection can't go back to the pool.
+        connection.disconnect();
+        return;
+      }
+      try {
+        // Closing the fully read body returns the connection to the pool.
+        content.close();
+      } catch (IOException e) {
+        connection.disconnect();
+      }
+    }
+  }
+}
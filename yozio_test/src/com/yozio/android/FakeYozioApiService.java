@@ -9,21 +9,34 @@
 
 package com.yozio.android;
 
+import java.util.concurrent.CountDownLatch;
+
+import org.json.JSONException;
 import org.json.JSONObject;
 
 public class FakeYozioApiService implements YozioApiService {
 
   private JSONObject payload;
+  private int numBatches;
+  private boolean batchEventsResult = true;
+  private long retryAfterMillis;
+  private CountDownLatch batchEventsLatch;
+  private volatile RuntimeException batchEventsException;
   private JSONObject experimentConfigs;
   private JSONObject experimentVariationSids;
   private JSONObject yozioProperties;
   private JSONObject externalProperties;
+  private String yozioLink;
+  private int numYozioLinkRequests;
 
   public String getYozioLink(String appKey, String yozioUdid, String viralLoopName,
       String destinationUrl, JSONObject yozioProperties, JSONObject externalProperties) {
     this.yozioProperties = yozioProperties;
     this.externalProperties = externalProperties;
-    return null;
+    synchronized (this) {
+      numYozioLinkRequests++;
+    }
+    return yozioLink;
   }
 
   public String getYozioLink(String appKey, String yozioUdid, String viralLoopName,
@@ -31,7 +44,18 @@ public class FakeYozioApiService implements YozioApiService {
       JSONObject yozioProperties, JSONObject externalProperties) {
     this.yozioProperties = yozioProperties;
     this.externalProperties = externalProperties;
-    return null;
+    synchronized (this) {
+      numYozioLinkRequests++;
+    }
+    return yozioLink;
+  }
+
+  public void setYozioLink(String yozioLink) {
+    this.yozioLink = yozioLink;
+  }
+
+  public synchronized int getNumYozioLinkRequests() {
+    return numYozioLinkRequests;
   }
 
   public JSONObject getPayload() {
@@ -46,9 +70,55 @@ public class FakeYozioApiService implements YozioApiService {
     return this.externalProperties;
   }
 
-  public boolean batchEvents(JSONObject payload) {
-    this.payload = payload;
-    return true;
+  public synchronized int getNumBatches() {
+    return numBatches;
+  }
+
+  public boolean batchEvents(YozioBatchPayload payload) {
+    CountDownLatch latch;
+    synchronized (this) {
+      numBatches++;
+      latch = batchEventsLatch;
+    }
+    if (latch != null) {
+      try {
+        latch.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    if (batchEventsException != null) {
+      throw batchEventsException;
+    }
+    try {
+      this.payload = new JSONObject(payload.toString());
+    } catch (JSONException e) {
+      this.payload = null;
+    }
+    return batchEventsResult;
+  }
+
+  /**
+   * Makes batchEvents block until latch is counted down.
+   */
+  public synchronized void setBatchEventsLatch(CountDownLatch latch) {
+    this.batchEventsLatch = latch;
+  }
+
+  /**
+   * Makes batchEvents throw e, or return normally again if e is null.
+   */
+  public void setBatchEventsException(RuntimeException e) {
+    this.batchEventsException = e;
+  }
+
+  public void setBatchEventsResult(boolean batchEventsResult, long retryAfterMillis) {
+    this.batchEventsResult = batchEventsResult;
+    this.retryAfterMillis = retryAfterMillis;
+  }
+
+  public long getRetryAfterMillis() {
+    return retryAfterMillis;
   }
 
   public void setExperimentConfigs(JSONObject configs) {
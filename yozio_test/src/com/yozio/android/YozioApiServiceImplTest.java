@@ -10,6 +10,7 @@
 package com.yozio.android;
 
 import java.io.UnsupportedEncodingException;
+import java.util.Date;
 
 import junit.framework.TestCase;
 
@@ -18,6 +19,7 @@ import org.apache.http.HttpResponse;
 import org.apache.http.HttpVersion;
 import org.apache.http.StatusLine;
 import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.cookie.DateUtils;
 import org.apache.http.message.BasicHttpResponse;
 import org.apache.http.message.BasicStatusLine;
 import org.json.JSONException;
@@ -39,7 +41,7 @@ public class YozioApiServiceImplTest extends TestCase {
   private static final String DEST_URL = "test.com";
 
   // BatchEvents arguments
-  private static final JSONObject PAYLOAD = new JSONObject();
+  private static final YozioBatchPayload PAYLOAD = new YozioBatchPayload("{}", "");
 
   private FakeHttpClient fakeHttpClient;
   private YozioApiServiceImpl apiService;
@@ -196,6 +198,44 @@ public class YozioApiServiceImplTest extends TestCase {
     assertFalse(success);
   }
 
+  public void testBatchEventsRetryAfterSeconds() {
+    HttpResponse httpResponse = createStringHttpResponse(503, "");
+    httpResponse.setHeader("Retry-After", "120");
+    fakeHttpClient.setHttpResonse(httpResponse);
+    assertFalse(apiService.batchEvents(PAYLOAD));
+    long retryAfterMillis = apiService.getRetryAfterMillis();
+    assertTrue(retryAfterMillis > 115 * 1000 && retryAfterMillis <= 120 * 1000);
+  }
+
+  public void testBatchEventsRetryAfterWithoutBody() {
+    HttpResponse httpResponse = createHttpResponse(503, null);
+    httpResponse.setHeader("Retry-After", "120");
+    fakeHttpClient.setHttpResonse(httpResponse);
+    assertFalse(apiService.batchEvents(PAYLOAD));
+    assertTrue(apiService.getRetryAfterMillis() > 115 * 1000);
+  }
+
+  public void testBatchEventsWithoutRetryAfter() {
+    fakeHttpClient.setHttpResonse(createStringHttpResponse(500, ""));
+    assertFalse(apiService.batchEvents(PAYLOAD));
+    assertEquals(0, apiService.getRetryAfterMillis());
+  }
+
+  public void testParseRetryAfterDate() {
+    Date date = new Date(System.currentTimeMillis() + 60 * 1000);
+    long retryAfterMillis = YozioApiServiceImpl.parseRetryAfter(DateUtils.formatDate(date));
+    assertTrue(retryAfterMillis > 55 * 1000 && retryAfterMillis <= 60 * 1000);
+    assertEquals(0, YozioApiServiceImpl.parseRetryAfter("soon"));
+    assertEquals(0, YozioApiServiceImpl.parseRetryAfter(null));
+  }
+
+  public void testCharset() {
+    assertEquals("UTF-8", YozioApiServiceImpl.charset("application/json; charset=UTF-8"));
+    assertEquals("utf-8", YozioApiServiceImpl.charset("text/html;CHARSET=\"utf-8\""));
+    assertEquals("ISO-8859-1", YozioApiServiceImpl.charset("application/json"));
+    assertEquals("ISO-8859-1", YozioApiServiceImpl.charset(null));
+  }
+
   /****************************************************************************
    * Helper methods
    ****************************************************************************/
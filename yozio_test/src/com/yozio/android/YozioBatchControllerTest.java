@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2012 Yozio Inc.
+ *
+ * This file is part of the Yozio SDK.
+ *
+ * By using the Yozio SDK in your software, you agree to the terms of the
+ * Yozio SDK License Agreement which can be found at www.yozio.com/sdk_license.
+ */
+
+package com.yozio.android;
+
+import junit.framework.TestCase;
+
+public class YozioBatchControllerTest extends TestCase {
+
+  private YozioBatchController controller;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    controller = new YozioBatchController();
+  }
+
+  public void testDefaults() {
+    assertEquals(YozioBatchController.DEFAULT_BATCH_SIZE, controller.getBatchSize());
+    assertEquals(1, controller.getFlushThreshold());
+  }
+
+  public void testGrowsOnFastFullBatches() {
+    for (int i = 0; i < 20; i++) {
+      controller.onSuccess(controller.getBatchSize(), controller.getBatchSize() * 100, 100);
+    }
+    assertEquals(YozioBatchController.MAX_BATCH_SIZE, controller.getBatchSize());
+    assertEquals(1, controller.getFlushThreshold());
+  }
+
+  public void testDoesNotGrowOnPartialBatches() {
+    controller.onSuccess(1, 100, 100);
+    assertEquals(YozioBatchController.DEFAULT_BATCH_SIZE, controller.getBatchSize());
+  }
+
+  public void testShrinksOnFailures() {
+    for (int i = 0; i < 10; i++) {
+      controller.onFailure(controller.getBatchSize(), controller.getBatchSize() * 100, 100);
+    }
+    assertEquals(YozioBatchController.MIN_BATCH_SIZE, controller.getBatchSize());
+    assertTrue(controller.getFailureRate() > 0.9);
+  }
+
+  public void testShrinksOnSlowBatches() {
+    controller.onSuccess(50, 5000, YozioBatchController.TARGET_RTT_MS * 2);
+    assertTrue(controller.getBatchSize() < YozioBatchController.DEFAULT_BATCH_SIZE);
+  }
+
+  public void testRaisesFlushThresholdOnSlowConnections() {
+    for (int i = 0; i < 10; i++) {
+      controller.onSuccess(1, 100, YozioBatchController.FAST_RTT_MS * 4);
+    }
+    assertEquals(4, controller.getFlushThreshold());
+
+    for (int i = 0; i < 20; i++) {
+      controller.onSuccess(1, 100, 10);
+    }
+    assertEquals(1, controller.getFlushThreshold());
+  }
+
+  public void testRespectsByteCeiling() {
+    controller = new YozioBatchController(10 * 1000);
+    for (int i = 0; i < 10; i++) {
+      controller.onSuccess(controller.getBatchSize(), controller.getBatchSize() * 1000, 100);
+    }
+    assertEquals(10, controller.getBatchSize());
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2012 Yozio Inc.
+ *
+ * This file is part of the Yozio SDK.
+ *
+ * By using the Yozio SDK in your software, you agree to the terms of the
+ * Yozio SDK License Agreement which can be found at www.yozio.com/sdk_license.
+ */
+
+package com.yozio.android;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.http.NameValuePair;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.util.EntityUtils;
+
+public class YozioBatchPayloadEntityTest extends TestCase {
+
+  private static final String HEADER = "{\"app_key\":\"key\",\"user\":\"Zo\u00eb & \\\"Bob\\\"\"}";
+  private static final String EVENTS =
+      "{\"event_type\":11,\"link_name\":\"loop name/1?a=b+c\",\"channel\":\"\u4e2d\u6587\"},"
+      + "{\"event_type\":12,\"emoji\":\"\ud83d\ude00 *.-_~\"}";
+
+  private YozioBatchPayload payload;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    payload = new YozioBatchPayload(HEADER, EVENTS);
+  }
+
+  public void testFormEncodingMatchesUrlEncodedFormEntity() throws IOException {
+    YozioBatchPayloadEntity entity = new YozioBatchPayloadEntity(payload, "data");
+    List<NameValuePair> params = new LinkedList<NameValuePair>();
+    params.add(new BasicNameValuePair("data", payload.toString()));
+    String expected = EntityUtils.toString(new UrlEncodedFormEntity(params, "UTF-8"));
+
+    String written = write(entity).toString("UTF-8");
+    assertEquals(expected, written);
+    assertEquals(YozioBatchPayloadEntity.FORM_CONTENT_TYPE, entity.getContentType());
+    assertEquals(written.length(), entity.getContentLength());
+  }
+
+  public void testJsonBody() throws IOException {
+    YozioBatchPayloadEntity entity = new YozioBatchPayloadEntity(payload, null);
+    byte[] written = write(entity).toByteArray();
+    byte[] expected = payload.toString().getBytes("UTF-8");
+    assertEquals(new String(expected, "UTF-8"), new String(written, "UTF-8"));
+    assertEquals(expected.length, entity.getContentLength());
+    assertEquals(YozioBatchPayloadEntity.JSON_CONTENT_TYPE, entity.getContentType());
+  }
+
+  public void testRepeatable() throws IOException {
+    YozioBatchPayloadEntity entity = new YozioBatchPayloadEntity(payload, "data");
+    String first = write(entity).toString("UTF-8");
+    assertEquals(first, write(entity).toString("UTF-8"));
+    assertNull(entity.getContentEncoding());
+  }
+
+  public void testLargePayload() throws IOException {
+    StringBuilder events = new StringBuilder();
+    for (int i = 0; i < 5000; i++) {
+      if (i > 0) {
+        events.append(',');
+      }
+      events.append("{\"event_type\":11,\"event_identifier\":\"").append(i).append("\"}");
+    }
+    payload = new YozioBatchPayload(HEADER, events.toString());
+    YozioBatchPayloadEntity entity = new YozioBatchPayloadEntity(payload, null);
+    assertEquals(payload.toString(), write(entity).toString("UTF-8"));
+    assertEquals(payload.toString().getBytes("UTF-8").length, entity.getContentLength());
+  }
+
+  private static ByteArrayOutputStream write(YozioBatchPayloadEntity entity) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    entity.writeTo(out);
+    return out;
+  }
+}
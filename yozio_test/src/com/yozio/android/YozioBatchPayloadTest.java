@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2012 Yozio Inc.
+ *
+ * This file is part of the Yozio SDK.
+ *
+ * By using the Yozio SDK in your software, you agree to the terms of the
+ * Yozio SDK License Agreement which can be found at www.yozio.com/sdk_license.
+ */
+
+package com.yozio.android;
+
+import junit.framework.TestCase;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+public class YozioBatchPayloadTest extends TestCase {
+
+  private static final String EVENT_1 = "{\"event_type\":11,\"channel\":\"facebook\"}";
+  private static final String EVENT_2 = "{\"event_type\":12}";
+
+  public void testSpliceEvents() throws JSONException {
+    String header = new JSONObject().put("app_key", "key").put("device_type", "3").toString();
+    YozioBatchPayload payload = new YozioBatchPayload(header, EVENT_1 + "," + EVENT_2);
+    String payloadString = payload.toString();
+    assertEquals(payloadString.length(), payload.length());
+
+    JSONObject payloadObject = new JSONObject(payloadString);
+    assertEquals("key", payloadObject.getString("app_key"));
+    assertEquals("3", payloadObject.getString("device_type"));
+    JSONArray events = payloadObject.getJSONArray("payload");
+    assertEquals(2, events.length());
+    assertEquals(EVENT_1, events.getJSONObject(0).toString());
+    assertEquals(EVENT_2, events.getJSONObject(1).toString());
+  }
+
+  public void testEmptyHeader() throws JSONException {
+    YozioBatchPayload payload = new YozioBatchPayload("{}", EVENT_2);
+    assertEquals("{\"payload\":[" + EVENT_2 + "]}", payload.toString());
+    assertEquals(payload.toString().length(), payload.length());
+  }
+
+  public void testNoEvents() throws JSONException {
+    YozioBatchPayload payload = new YozioBatchPayload("{}", "");
+    assertEquals(0, new JSONObject(payload.toString()).getJSONArray("payload").length());
+  }
+}
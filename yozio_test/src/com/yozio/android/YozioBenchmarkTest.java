@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2012 Yozio Inc.
+ *
+ * This file is part of the Yozio SDK.
+ *
+ * By using the Yozio SDK in your software, you agree to the terms of the
+ * Yozio SDK License Agreement which can be found at www.yozio.com/sdk_license.
+ */
+
+package com.yozio.android;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.yozio.android.YozioDataStore.Events;
+
+/**
+ * Times the data stores, event ids, link cache and batch sending. Results are
+ * written to LogCat under the YozioBenchmark tag.
+ *
+ * Skipped unless the tag is enabled, since they are slow and assert nothing
+ * the other tests don't:
+ *
+ *   adb shell setprop log.tag.YozioBenchmark DEBUG
+ */
+public class YozioBenchmarkTest extends AndroidTestCase {
+
+  private static final String LOGTAG = "YozioBenchmark";
+  private static final String APP_KEY = "benchmark app key";
+  private static final int NUM_EVENTS = 2000;
+  // Events per addEvents call, similar to a group commit.
+  private static final int WRITE_BATCH = 20;
+  // Events per checkoutEvents call, same as a flush.
+  private static final int READ_BATCH = 50;
+  private static final long LEASE_MILLIS = 60 * 1000;
+
+  @Override
+  protected void runTest() throws Throwable {
+    if (Log.isLoggable(LOGTAG, Log.DEBUG)) {
+      super.runTest();
+    }
+  }
+
+  public void testSqliteDataStore() throws JSONException {
+    getContext().deleteDatabase(YozioDataStoreImpl.DATABASE_NAME);
+    YozioDataStoreImpl dataStore = new YozioDataStoreImpl(
+        new YozioDataStoreImpl.DatabaseHelper(getContext()), APP_KEY);
+    runDataStore("sqlite", dataStore);
+    long diskSize = getContext().getDatabasePath(YozioDataStoreImpl.DATABASE_NAME).length();
+    Log.d(LOGTAG, "sqlite: " + diskSize + " bytes on disk after drain");
+    dataStore.close();
+  }
+
+  public void testJournalDataStore() throws JSONException {
+    File dir = YozioJournalDataStore.journalDir(getContext(), APP_KEY);
+    YozioJournalDataStore dataStore = new YozioJournalDataStore(dir);
+    // Start from an empty journal.
+    Events leftover = dataStore.checkoutEvents(Integer.MAX_VALUE, 0, LEASE_MILLIS);
+    if (leftover != null) {
+      dataStore.commitEvents(leftover);
+    }
+    runDataStore("journal", dataStore);
+    Log.d(LOGTAG, "journal: " + dataStore.getDiskSize() + " bytes on disk after drain");
+    dataStore.close();
+  }
+
+  public void testEventIds() throws InterruptedException {
+    final YozioEventIdGenerator generator = new YozioEventIdGenerator(null);
+    Yozio.EventIdGenerator uuidGenerator = new Yozio.EventIdGenerator() {
+      public String nextEventId() {
+        return UUID.randomUUID().toString();
+      }
+    };
+    // Warm up.
+    YozioEventIdGeneratorTest.run(generator);
+    YozioEventIdGeneratorTest.run(uuidGenerator);
+
+    long counterNanos = YozioEventIdGeneratorTest.run(generator);
+    long uuidNanos = YozioEventIdGeneratorTest.run(uuidGenerator);
+    int numIds = YozioEventIdGeneratorTest.NUM_THREADS * YozioEventIdGeneratorTest.NUM_IDS_EACH;
+    Log.d(LOGTAG, "event ids: counter " + counterNanos / numIds + " ns/id, uuid "
+        + uuidNanos / numIds + " ns/id, " + YozioEventIdGeneratorTest.NUM_THREADS + " threads");
+  }
+
+  public void testLinkCacheLookup() throws JSONException {
+    int numLinks = 100;
+    int numLookups = 100000;
+    YozioLinkCache cache = new YozioLinkCache(null, numLinks, 60 * 1000);
+    JSONObject[] properties = new JSONObject[numLinks];
+    for (int i = 0; i < numLinks; i++) {
+      properties[i] = new JSONObject().put("channel", "channel" + i)
+          .put("experiment_variation_sids", new JSONObject().put("123", "456"));
+      cache.put(YozioLinkCache.key("app", "udid", "loop", "www.a.com", properties[i]),
+          "http://yoz.io/" + i);
+    }
+    // Includes building the key.
+    long start = System.nanoTime();
+    for (int i = 0; i < numLookups; i++) {
+      String key = YozioLinkCache.key("app", "udid", "loop", "www.a.com", properties[i % numLinks]);
+      assertNotNull(cache.get(key));
+    }
+    long nanosPerLookup = (System.nanoTime() - start) / numLookups;
+    Log.d(LOGTAG, "cached link lookup: " + nanosPerLookup + " ns");
+  }
+
+  public void testInProcessBatches() throws InterruptedException {
+    final int numThreads = 4;
+    final int batchesPerThread = 500;
+    final YozioHttpTransportTest.InProcessTransport transport =
+        new YozioHttpTransportTest.InProcessTransport();
+    final YozioApiServiceImpl apiService = new YozioApiServiceImpl(transport);
+    final YozioBatchPayload payload = new YozioBatchPayload(
+        "{\"app_key\":\"key\",\"yozio_udid\":\"udid\"}",
+        "{\"event_type\":11,\"link_name\":\"invite friends\",\"channel\":\"email\"}");
+    final CountDownLatch done = new CountDownLatch(numThreads);
+    long start = System.nanoTime();
+    for (int i = 0; i < numThreads; i++) {
+      new Thread() {
+        @Override
+        public void run() {
+          for (int j = 0; j < batchesPerThread; j++) {
+            apiService.batchEvents(payload);
+          }
+          done.countDown();
+        }
+      }.start();
+    }
+    done.await();
+    long elapsedNanos = System.nanoTime() - start;
+    Log.d(LOGTAG, "in-process: " + transport.numRequests.get() + " batches in "
+        + elapsedNanos / 1000000 + " ms, " + transport.numBytes.get() + " bytes");
+  }
+
+  private void runDataStore(String name, YozioDataStore dataStore) throws JSONException {
+    List<JSONObject> batch = new ArrayList<JSONObject>();
+    for (int i = 0; i < WRITE_BATCH; i++) {
+      batch.add(buildEvent(i));
+    }
+
+    long start = System.nanoTime();
+    for (int i = 0; i < NUM_EVENTS / WRITE_BATCH; i++) {
+      assertTrue(dataStore.addEvents(batch));
+    }
+    logRate(name, "insert", start);
+    assertEquals(NUM_EVENTS, dataStore.getNumEvents());
+
+    // Released events are checked out again, so this reads the same batch
+    // repeatedly.
+    start = System.nanoTime();
+    for (int i = 0; i < NUM_EVENTS / READ_BATCH; i++) {
+      Events events = dataStore.checkoutEvents(READ_BATCH, 0, LEASE_MILLIS);
+      assertEquals(READ_BATCH, events.getNumEvents());
+      dataStore.releaseEvents(events);
+    }
+    logRate(name, "checkout+release", start);
+
+    start = System.nanoTime();
+    Events events = dataStore.checkoutEvents(READ_BATCH, 0, LEASE_MILLIS);
+    while (events != null) {
+      assertTrue(dataStore.commitEvents(events));
+      events = dataStore.checkoutEvents(READ_BATCH, 0, LEASE_MILLIS);
+    }
+    logRate(name, "checkout+commit", start);
+    assertEquals(0, dataStore.getNumEvents());
+  }
+
+  private void logRate(String name, String operation, long startNanos) {
+    long elapsedNanos = System.nanoTime() - startNanos;
+    Log.d(LOGTAG, name + " " + operation + ": " + NUM_EVENTS + " events in "
+        + (elapsedNanos / 1000000) + " ms ("
+        + (NUM_EVENTS * 1000000000L / Math.max(1, elapsedNanos)) + " events/s)");
+  }
+
+  private JSONObject buildEvent(int i) throws JSONException {
+    JSONObject event = new JSONObject();
+    event.put("event_type", 11);
+    event.put("link_name", "benchmark loop");
+    event.put("channel", "facebook");
+    event.put("timestamp", "2012-10-01 12:00:00");
+    event.put("event_identifier", "00000000-0000-0000-0000-" + (100000000000L + i));
+    return event;
+  }
+}
@@ -9,6 +9,8 @@
 
 package com.yozio.android;
 
+import java.util.Arrays;
+
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -43,37 +45,63 @@ public class YozioDataStoreImplTest extends AndroidTestCase {
     
     dataStore.addEvent(event1);
     assertEquals(1, dataStore.getNumEvents());
-    assertEventsEqual(dataStore.getEvents(10).getJsonArray(), event1);
+    assertEventsEqual(peekEvents(10), event1);
     
     dataStore.addEvent(event2);
     assertEquals(2, dataStore.getNumEvents());
-    assertEventsEqual(dataStore.getEvents(10).getJsonArray(), event1, event2);
+    assertEventsEqual(peekEvents(10), event1, event2);
     
     dataStore.addEvent(event3);
     assertEquals(3, dataStore.getNumEvents());
-    assertEventsEqual(dataStore.getEvents(10).getJsonArray(), event1, event2, event3);
+    assertEventsEqual(peekEvents(10), event1, event2, event3);
   }
   
-  public void testGetEventWithLimit() {
+  public void testAddEvents() {
+    JSONObject event1 = buildTestEvent("event 1");
+    JSONObject event2 = buildTestEvent("event 2");
+    JSONObject event3 = buildTestEvent("event 3");
+
+    assertTrue(dataStore.addEvents(Arrays.asList(event1, event2)));
+    assertEquals(2, dataStore.getNumEvents());
+    assertEventsEqual(peekEvents(10), event1, event2);
+
+    assertTrue(dataStore.addEvents(Arrays.asList(event3)));
+    assertEquals(3, dataStore.getNumEvents());
+    assertEventsEqual(peekEvents(10), event1, event2, event3);
+
+    // The compiled insert statement must survive the database being reopened.
+    dataStore.close();
+    assertTrue(dataStore.addEvents(Arrays.asList(event1)));
+    assertEquals(4, dataStore.getNumEvents());
+
+    // Also when another data store on the same helper closed the database.
+    YozioDataStoreImpl otherDataStore = new YozioDataStoreImpl(databaseHelper, APP_KEY);
+    otherDataStore.getNumEvents();
+    otherDataStore.close();
+    assertTrue(dataStore.addEvents(Arrays.asList(event2)));
+    assertEquals(5, dataStore.reconcileNumEvents());
+  }
+
+  public void testCheckoutEventsWithLimit() {
     JSONObject event1 = buildTestEvent("event 1");
     JSONObject event2 = buildTestEvent("event 2");
     JSONObject event3 = buildTestEvent("event 3");
     dataStore.addEvent(event1);
     dataStore.addEvent(event2);
     dataStore.addEvent(event3);
-    assertNull(dataStore.getEvents(0));
-    assertEventsEqual(dataStore.getEvents(1).getJsonArray(), event1);
-    assertEventsEqual(dataStore.getEvents(2).getJsonArray(), event1, event2);
-    assertEventsEqual(dataStore.getEvents(3).getJsonArray(), event1, event2, event3);
-    assertEventsEqual(dataStore.getEvents(4).getJsonArray(), event1, event2, event3);
+    assertNull(peekEvents(0));
+    assertEventsEqual(peekEvents(1), event1);
+    assertEventsEqual(peekEvents(2), event1, event2);
+    assertEventsEqual(peekEvents(3), event1, event2, event3);
+    assertEventsEqual(peekEvents(4), event1, event2, event3);
   }
   
-  public void testGetEventsWithNoEvents() {
+  public void testCheckoutEventsWithNoEvents() {
     assertEquals(0, dataStore.getNumEvents());
-    assertNull(dataStore.getEvents(10));
+    assertNull(peekEvents(10));
   }
   
-  public void testRemoveEvents() {
+  public void testCommitEvents() {
     JSONObject event1 = buildTestEvent("event 1");
     JSONObject event2 = buildTestEvent("event 2");
     JSONObject event3 = buildTestEvent("event 3");
@@ -81,12 +109,12 @@ public class YozioDataStoreImplTest extends AndroidTestCase {
     dataStore.addEvent(event2);
     dataStore.addEvent(event3);
     assertEquals(3, dataStore.getNumEvents());
-    Events events = dataStore.getEvents(10);
-    dataStore.removeEvents(events.getLastEventId());
+    Events events = dataStore.checkoutEvents(10, 0, 60 * 1000);
+    dataStore.commitEvents(events);
     assertEquals(0, dataStore.getNumEvents());
   }
   
-  public void testRemoveEventsWithLimit() {
+  public void testCommitEventsWithLimit() {
     JSONObject event1 = buildTestEvent("event 1");
     JSONObject event2 = buildTestEvent("event 2");
     JSONObject event3 = buildTestEvent("event 3");
@@ -94,19 +122,13 @@ public class YozioDataStoreImplTest extends AndroidTestCase {
     dataStore.addEvent(event2);
     dataStore.addEvent(event3);
     assertEquals(3, dataStore.getNumEvents());
-    Events events = dataStore.getEvents(2);
-    dataStore.removeEvents(events.getLastEventId());
+    Events events = dataStore.checkoutEvents(2, 0, 60 * 1000);
+    dataStore.commitEvents(events);
     assertEquals(1, dataStore.getNumEvents());
-    assertEventsEqual(dataStore.getEvents(10).getJsonArray(), event3);
+    assertEventsEqual(peekEvents(10), event3);
   }
   
-  public void testRemoveEventsWithNoEvents() {
-    assertEquals(0, dataStore.getNumEvents());
-    dataStore.removeEvents("10");
-    assertEquals(0, dataStore.getNumEvents());
-  }
-  
-  public void testAddAndRemoveEvents() {
+  public void testAddAndCommitEvents() {
     JSONObject event1 = buildTestEvent("event 1");
     JSONObject event2 = buildTestEvent("event 2");
     JSONObject event3 = buildTestEvent("event 3");
@@ -117,31 +139,221 @@ public class YozioDataStoreImplTest extends AndroidTestCase {
     dataStore.addEvent(event3);
     assertEquals(3, dataStore.getNumEvents());
     
-    Events events = dataStore.getEvents(1);
-    dataStore.removeEvents(events.getLastEventId());
+    Events events = dataStore.checkoutEvents(1, 0, 60 * 1000);
+    dataStore.commitEvents(events);
     assertEquals(2, dataStore.getNumEvents());
-    assertEventsEqual(dataStore.getEvents(10).getJsonArray(), event2, event3);
+    assertEventsEqual(peekEvents(10), event2, event3);
     
     dataStore.addEvent(event4);
-    events = dataStore.getEvents(1);
-    dataStore.removeEvents(events.getLastEventId());
+    events = dataStore.checkoutEvents(1, 0, 60 * 1000);
+    dataStore.commitEvents(events);
     assertEquals(2, dataStore.getNumEvents());
-    assertEventsEqual(dataStore.getEvents(10).getJsonArray(), event3, event4);
+    assertEventsEqual(peekEvents(10), event3, event4);
     
     dataStore.addEvent(event5);
-    events = dataStore.getEvents(2);
-    dataStore.removeEvents(events.getLastEventId());
+    events = dataStore.checkoutEvents(2, 0, 60 * 1000);
+    dataStore.commitEvents(events);
     assertEquals(1, dataStore.getNumEvents());
-    assertEventsEqual(dataStore.getEvents(10).getJsonArray(), event5);
+    assertEventsEqual(peekEvents(10), event5);
   }
   
+  public void testDatabaseKeptOpen() {
+    dataStore.addEvent(buildTestEvent("event 1"));
+    dataStore.addEvent(buildTestEvent("event 2"));
+    Events events = dataStore.checkoutEvents(10, 0, 60 * 1000);
+    dataStore.commitEvents(events);
+    assertEquals(0, dataStore.getNumEvents());
+    assertEquals(1, dataStore.getNumOpens());
+    assertEquals(0, dataStore.getNumCloses());
+
+    dataStore.close();
+    assertEquals(1, dataStore.getNumCloses());
+
+    // The database is reopened on demand after being closed.
+    dataStore.addEvent(buildTestEvent("event 3"));
+    assertEquals(1, dataStore.getNumEvents());
+    assertEquals(2, dataStore.getNumOpens());
+    assertEquals(1, dataStore.getNumCloses());
+  }
+
+  public void testDatabaseClosedPerCall() {
+    YozioDataStoreImpl perCallDataStore = new YozioDataStoreImpl(databaseHelper, APP_KEY, false);
+    perCallDataStore.addEvent(buildTestEvent("event 1"));
+    assertEquals(1, perCallDataStore.getNumEvents());
+    assertEquals(2, perCallDataStore.getNumOpens());
+    assertEquals(2, perCallDataStore.getNumCloses());
+  }
+
+  public void testNumEventsCached() {
+    dataStore.addEvents(Arrays.asList(buildTestEvent("event 1"), buildTestEvent("event 2")));
+    assertEquals(2, dataStore.getNumEvents());
+
+    // Write to the table behind the data store's back.
+    YozioDataStoreImpl otherDataStore = new YozioDataStoreImpl(databaseHelper, APP_KEY);
+    otherDataStore.addEvent(buildTestEvent("event 3"));
+    assertEquals(2, dataStore.getNumEvents());
+    assertEquals(3, dataStore.reconcileNumEvents());
+    assertEquals(3, dataStore.getNumEvents());
+
+    Events events = dataStore.checkoutEvents(2, 0, 60 * 1000);
+    dataStore.commitEvents(events);
+    assertEquals(1, dataStore.getNumEvents());
+    assertEquals(1, dataStore.reconcileNumEvents());
+  }
+
+  public void testEvictOldestOverMaxEvents() {
+    JSONObject event1 = buildTestEvent("event 1");
+    JSONObject event2 = buildTestEvent("event 2");
+    JSONObject event3 = buildTestEvent("event 3");
+    dataStore.setLimits(2, 0, 0, Yozio.EVICT_OLDEST);
+    dataStore.addEvents(Arrays.asList(event1, event2, event3));
+    assertEquals(2, dataStore.getNumEvents());
+    assertEventsEqual(peekEvents(10), event2, event3);
+    assertEquals(1, dataStore.getNumEvictedEvents());
+
+    dataStore.removeNumEvictedEvents(1);
+    assertEquals(0, dataStore.getNumEvictedEvents());
+  }
+
+  public void testEvictOverMaxBytes() {
+    JSONObject event1 = buildTestEvent("event 1");
+    JSONObject event2 = buildTestEvent("event 2");
+    JSONObject event3 = buildTestEvent("event 3");
+    int eventSize = event1.toString().length();
+    dataStore.setLimits(0, 2 * eventSize, 0, Yozio.EVICT_OLDEST);
+    dataStore.addEvents(Arrays.asList(event1, event2, event3));
+    assertEquals(2, dataStore.getNumEvents());
+    assertEventsEqual(peekEvents(10), event2, event3);
+    assertEquals(1, dataStore.getNumEvictedEvents());
+  }
+
+  public void testEvictLowestPriority() throws JSONException {
+    JSONObject opened = buildTestEvent("opened").put("event_type", Yozio.E_OPENED_APP);
+    JSONObject viewed = buildTestEvent("viewed").put("event_type", Yozio.E_VIEWED_LINK);
+    JSONObject shared = buildTestEvent("shared").put("event_type", Yozio.E_SHARED_LINK);
+    dataStore.setLimits(2, 0, 0, Yozio.EVICT_LOWEST_PRIORITY);
+    dataStore.addEvents(Arrays.asList(opened, viewed, shared));
+    assertEventsEqual(peekEvents(10), opened, shared);
+
+    dataStore.addEvent(viewed);
+    assertEventsEqual(peekEvents(10), opened, shared);
+    assertEquals(2, dataStore.getNumEvictedEvents());
+  }
+
+  public void testEvictSample() {
+    dataStore.setLimits(5, 0, 0, Yozio.EVICT_SAMPLE);
+    for (int i = 0; i < 20; i++) {
+      dataStore.addEvent(buildTestEvent("event " + i));
+    }
+    assertEquals(5, dataStore.getNumEvents());
+    assertEquals(5, dataStore.reconcileNumEvents());
+    assertEquals(15, dataStore.getNumEvictedEvents());
+  }
+
+  public void testEvictOverMaxAge() throws InterruptedException {
+    JSONObject event3 = buildTestEvent("event 3");
+    dataStore.addEvents(Arrays.asList(buildTestEvent("event 1"), buildTestEvent("event 2")));
+    Thread.sleep(10);
+    dataStore.setLimits(0, 0, 5, Yozio.EVICT_OLDEST);
+    dataStore.addEvent(event3);
+    assertEquals(1, dataStore.getNumEvents());
+    assertEventsEqual(peekEvents(10), event3);
+    assertEquals(2, dataStore.getNumEvictedEvents());
+  }
+
+  public void testCheckedOutEventsNotEvicted() {
+    JSONObject event1 = buildTestEvent("event 1");
+    JSONObject event2 = buildTestEvent("event 2");
+    JSONObject event3 = buildTestEvent("event 3");
+    JSONObject event4 = buildTestEvent("event 4");
+    dataStore.addEvents(Arrays.asList(event1, event2, event3));
+    Events checkedOut = dataStore.checkoutEvents(1, 0, 60 * 1000);
+
+    // The flusher still sends event 1, so the events after it are evicted.
+    dataStore.setLimits(2, 0, 0, Yozio.EVICT_OLDEST);
+    dataStore.addEvent(event4);
+    assertEquals(2, dataStore.getNumEvents());
+    assertEquals(2, dataStore.getNumEvictedEvents());
+
+    assertTrue(dataStore.commitEvents(checkedOut));
+    assertEquals(1, dataStore.getNumEvents());
+    assertEventsEqual(dataStore.checkoutEvents(10, 0, 60 * 1000).getJsonArray(), event4);
+  }
+
+  public void testCheckoutSkipsLeasedEvents() {
+    JSONObject event1 = buildTestEvent("event 1");
+    JSONObject event2 = buildTestEvent("event 2");
+    JSONObject event3 = buildTestEvent("event 3");
+    dataStore.addEvents(Arrays.asList(event1, event2, event3));
+
+    Events first = dataStore.checkoutEvents(2, 0, 60 * 1000);
+    assertEventsEqual(first.getJsonArray(), event1, event2);
+    Events second = dataStore.checkoutEvents(2, 0, 60 * 1000);
+    assertEventsEqual(second.getJsonArray(), event3);
+    assertNull(dataStore.checkoutEvents(2, 0, 60 * 1000));
+
+    // Commits may come back in any order.
+    assertTrue(dataStore.commitEvents(second));
+    assertEquals(2, dataStore.getNumEvents());
+    assertTrue(dataStore.commitEvents(first));
+    assertEquals(0, dataStore.getNumEvents());
+    assertNull(dataStore.checkoutEvents(2, 0, 60 * 1000));
+  }
+
+  public void testReleaseEvents() {
+    JSONObject event1 = buildTestEvent("event 1");
+    JSONObject event2 = buildTestEvent("event 2");
+    dataStore.addEvents(Arrays.asList(event1, event2));
+
+    Events first = dataStore.checkoutEvents(1, 0, 60 * 1000);
+    Events second = dataStore.checkoutEvents(1, 0, 60 * 1000);
+    dataStore.releaseEvents(first);
+    // The released events are checked out again, up to the next lease.
+    Events retry = dataStore.checkoutEvents(10, 0, 60 * 1000);
+    assertEventsEqual(retry.getJsonArray(), event1);
+    assertTrue(dataStore.commitEvents(retry));
+    assertTrue(dataStore.commitEvents(second));
+    assertEquals(0, dataStore.getNumEvents());
+  }
+
+  public void testLeaseExpires() throws InterruptedException {
+    JSONObject event1 = buildTestEvent("event 1");
+    dataStore.addEvent(event1);
+
+    Events first = dataStore.checkoutEvents(10, 0, 1);
+    Thread.sleep(10);
+    Events second = dataStore.checkoutEvents(10, 0, 60 * 1000);
+    assertEventsEqual(second.getJsonArray(), event1);
+    // Both commits succeed, and the events are only removed once.
+    assertTrue(dataStore.commitEvents(first));
+    assertTrue(dataStore.commitEvents(second));
+    assertEquals(0, dataStore.getNumEvents());
+  }
+
+  public void testMalformedEventDropped() {
+    JSONObject event1 = buildTestEvent("event 1");
+    JSONObject event2 = buildTestEvent("event 2");
+    dataStore.addEvent(event1);
+    databaseHelper.getWritableDatabase().execSQL(
+        "INSERT INTO " + YozioDataStoreImpl.EVENTS_TABLE + " (" + YozioDataStoreImpl.APP_KEY +
+        ", " + YozioDataStoreImpl.DATA + ") VALUES ('" + APP_KEY + "', '{\"event key\":')");
+    dataStore.addEvent(event2);
+    assertEquals(3, dataStore.reconcileNumEvents());
+
+    Events events = dataStore.checkoutEvents(10, 0, 60 * 1000);
+    assertEventsEqual(events.getJsonArray(), event1, event2);
+    assertEquals(2, dataStore.getNumEvents());
+    assertTrue(dataStore.commitEvents(events));
+    assertEquals(0, dataStore.reconcileNumEvents());
+  }
+
   public void testUpgradeDatabase() {
     JSONObject event1 = buildTestEvent("event 1");
     JSONObject event2 = buildTestEvent("event 2");
     
     dataStore.addEvent(event1);
     assertEquals(1, dataStore.getNumEvents());
-    assertEventsEqual(dataStore.getEvents(10).getJsonArray(), event1);
+    assertEventsEqual(peekEvents(10), event1);
 
     // Make sure onUpgrade clears the database.
     databaseHelper.onUpgrade(
@@ -153,12 +365,23 @@ public class YozioDataStoreImplTest extends AndroidTestCase {
     // Make sure events can still be added/removed after upgrading.
     dataStore.addEvent(event2);
     assertEquals(1, dataStore.getNumEvents());
-    assertEventsEqual(dataStore.getEvents(10).getJsonArray(), event2);
-    Events events = dataStore.getEvents(10);
-    dataStore.removeEvents(events.getLastEventId());
+    assertEventsEqual(peekEvents(10), event2);
+    Events events = dataStore.checkoutEvents(10, 0, 60 * 1000);
+    dataStore.commitEvents(events);
     assertEquals(0, dataStore.getNumEvents());
   }
   
+  // Returns the events the next checkout would return, without leaving them
+  // checked out.
+  private JSONArray peekEvents(int limit) {
+    Events events = dataStore.checkoutEvents(limit, 0, 60 * 1000);
+    if (events == null) {
+      return null;
+    }
+    dataStore.releaseEvents(events);
+    return events.getJsonArray();
+  }
+
   // Builds a JSONObject to represent an event.
   // Does not have the same structure as an actual event.
   private JSONObject buildTestEvent(String name) {
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2012 Yozio Inc.
+ *
+ * This file is part of the Yozio SDK.
+ *
+ * By using the Yozio SDK in your software, you agree to the terms of the
+ * Yozio SDK License Agreement which can be found at www.yozio.com/sdk_license.
+ */
+
+package com.yozio.android;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+import org.json.JSONObject;
+
+public class YozioEventBufferTest extends TestCase {
+
+  private YozioEventBuffer buffer;
+  private List<String> loopNames;
+  private List<Long> timestamps;
+  private YozioEventBuffer.Consumer consumer;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    buffer = new YozioEventBuffer();
+    loopNames = new ArrayList<String>();
+    timestamps = new ArrayList<Long>();
+    consumer = new YozioEventBuffer.Consumer() {
+      public void onEvent(int eventType, String viralLoopName, String channel,
+          long timeMillis, JSONObject externalProperties) {
+        loopNames.add(viralLoopName);
+        timestamps.add(timeMillis);
+      }
+    };
+  }
+
+  public void testDrain() {
+    JSONObject properties = new JSONObject();
+    assertTrue(buffer.offer(1, "loop1", "email", 1000, properties));
+    assertTrue(buffer.offer(2, "loop2", null, 2000, null));
+    final List<Object> fields = new ArrayList<Object>();
+    assertEquals(2, buffer.drain(new YozioEventBuffer.Consumer() {
+      public void onEvent(int eventType, String viralLoopName, String channel,
+          long timeMillis, JSONObject externalProperties) {
+        fields.add(eventType);
+        fields.add(viralLoopName);
+        fields.add(channel);
+        fields.add(timeMillis);
+        fields.add(externalProperties);
+      }
+    }));
+    assertEquals(10, fields.size());
+    assertEquals(1, fields.get(0));
+    assertEquals("loop1", fields.get(1));
+    assertEquals("email", fields.get(2));
+    assertEquals(1000L, fields.get(3));
+    assertSame(properties, fields.get(4));
+    assertEquals(2, fields.get(5));
+    assertEquals("loop2", fields.get(6));
+    assertNull(fields.get(7));
+    assertEquals(0, buffer.size());
+    assertEquals(2, buffer.getHighWaterMark());
+  }
+
+  public void testWrapsAround() {
+    for (int i = 0; i < YozioEventBuffer.MAX_CAPACITY * 3; i++) {
+      assertTrue(buffer.offer(1, "loop" + i, null, i, null));
+      assertEquals(1, buffer.drain(consumer));
+    }
+    assertEquals("loop" + (YozioEventBuffer.MAX_CAPACITY * 3 - 1),
+        loopNames.get(loopNames.size() - 1));
+    assertEquals(1, buffer.getHighWaterMark());
+  }
+
+  public void testCapacityIsCapped() {
+    buffer.configure(YozioEventBuffer.MAX_CAPACITY * 2, Yozio.OVERFLOW_DROP_NEWEST, 0);
+    for (int i = 0; i < YozioEventBuffer.MAX_CAPACITY; i++) {
+      assertTrue(buffer.offer(1, "loop", null, i, null));
+    }
+    assertTrue(buffer.isFull());
+    assertFalse(buffer.offer(1, "loop", null, 0, null));
+    assertEquals(YozioEventBuffer.MAX_CAPACITY, buffer.drain(consumer));
+  }
+
+  public void testDropNewest() {
+    buffer.configure(2, Yozio.OVERFLOW_DROP_NEWEST, 0);
+    assertTrue(buffer.offer(1, "loop1", null, 1, null));
+    assertTrue(buffer.offer(1, "loop2", null, 2, null));
+    assertFalse(buffer.offer(1, "loop3", null, 3, null));
+    buffer.drain(consumer);
+    assertEquals(2, loopNames.size());
+    assertEquals("loop1", loopNames.get(0));
+    assertEquals("loop2", loopNames.get(1));
+    assertEquals(1, buffer.getNumDroppedEvents());
+    assertEquals(2, buffer.getHighWaterMark());
+  }
+
+  public void testDropOldest() {
+    buffer.configure(2, Yozio.OVERFLOW_DROP_OLDEST, 0);
+    assertTrue(buffer.offer(1, "loop1", null, 1, null));
+    assertTrue(buffer.offer(1, "loop2", null, 2, null));
+    assertTrue(buffer.offer(1, "loop3", null, 3, null));
+    buffer.drain(consumer);
+    assertEquals(2, loopNames.size());
+    assertEquals("loop2", loopNames.get(0));
+    assertEquals("loop3", loopNames.get(1));
+    assertEquals(1, buffer.getNumDroppedEvents());
+  }
+
+  public void testBlockTimesOut() {
+    buffer.configure(1, Yozio.OVERFLOW_BLOCK, 50);
+    assertTrue(buffer.offer(1, "loop1", null, 1, null));
+    long start = System.currentTimeMillis();
+    assertFalse(buffer.offer(1, "loop2", null, 2, null));
+    assertTrue(System.currentTimeMillis() - start >= 40);
+    assertEquals(1, buffer.getNumDroppedEvents());
+  }
+
+  public void testBlockUntilDrained() throws InterruptedException {
+    buffer.configure(1, Yozio.OVERFLOW_BLOCK, 5000);
+    assertTrue(buffer.offer(1, "loop1", null, 1, null));
+    Thread drainer = new Thread() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(50);
+        } catch (InterruptedException e) {
+        }
+        buffer.drain(consumer);
+      }
+    };
+    drainer.start();
+    assertTrue(buffer.offer(1, "loop2", null, 2, null));
+    drainer.join();
+    assertEquals(0, buffer.getNumDroppedEvents());
+    buffer.drain(consumer);
+    assertEquals("loop2", loopNames.get(1));
+  }
+
+  public void testConcurrentProducers() throws InterruptedException {
+    final int numProducers = 4;
+    final int numEventsEach = 10000;
+    buffer.configure(YozioEventBuffer.MAX_CAPACITY, Yozio.OVERFLOW_BLOCK, 60 * 1000);
+    final CountDownLatch done = new CountDownLatch(numProducers);
+    for (int p = 0; p < numProducers; p++) {
+      final long producer = p;
+      new Thread() {
+        @Override
+        public void run() {
+          for (int i = 0; i < numEventsEach; i++) {
+            // Encodes the producer and sequence number in the timestamp.
+            buffer.offer(1, "loop", null, producer * numEventsEach + i, null);
+          }
+          done.countDown();
+        }
+      }.start();
+    }
+    while (done.getCount() > 0) {
+      buffer.drain(consumer);
+    }
+    buffer.drain(consumer);
+
+    assertEquals(numProducers * numEventsEach, timestamps.size());
+    assertEquals(0, buffer.getNumDroppedEvents());
+    // Each producer's events come out in the order they were offered.
+    long[] last = new long[numProducers];
+    for (int p = 0; p < numProducers; p++) {
+      last[p] = -1;
+    }
+    for (long timestamp : timestamps) {
+      int producer = (int) (timestamp / numEventsEach);
+      assertTrue(timestamp > last[producer]);
+      last[producer] = timestamp;
+    }
+  }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2012 Yozio Inc.
+ *
+ * This file is part of the Yozio SDK.
+ *
+ * By using the Yozio SDK in your software, you agree to the terms of the
+ * Yozio SDK License Agreement which can be found at www.yozio.com/sdk_license.
+ */
+
+package com.yozio.android;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import android.content.SharedPreferences;
+import android.test.AndroidTestCase;
+
+public class YozioEventIdGeneratorTest extends AndroidTestCase {
+
+  private static final String PREFERENCES_NAME = "yozioEventIdTest";
+  // Also used by YozioBenchmarkTest.
+  static final int NUM_THREADS = 4;
+  static final int NUM_IDS_EACH = 20000;
+
+  public void testUniqueAcrossThreads() throws InterruptedException {
+    final YozioEventIdGenerator generator = new YozioEventIdGenerator(null);
+    final Set<String> ids = Collections.synchronizedSet(new HashSet<String>());
+    run(new Yozio.EventIdGenerator() {
+      public String nextEventId() {
+        String id = generator.nextEventId();
+        ids.add(id);
+        return id;
+      }
+    });
+    assertEquals(NUM_THREADS * NUM_IDS_EACH, ids.size());
+  }
+
+  public void testPrefixDiffersWithoutPreferences() {
+    assertFalse(new YozioEventIdGenerator(null).getPrefix().equals(
+        new YozioEventIdGenerator(null).getPrefix()));
+  }
+
+  public void testPersistedAcrossRestarts() {
+    SharedPreferences preferences =
+        getContext().getSharedPreferences(PREFERENCES_NAME, 0);
+    preferences.edit().clear().commit();
+
+    YozioEventIdGenerator generator = new YozioEventIdGenerator(preferences);
+    Set<String> ids = new HashSet<String>();
+    for (int i = 0; i < YozioEventIdGenerator.COUNTER_BLOCK + 10; i++) {
+      assertTrue(ids.add(generator.nextEventId()));
+    }
+
+    // A new process keeps the prefix and starts after the reserved block.
+    YozioEventIdGenerator restarted = new YozioEventIdGenerator(preferences);
+    assertEquals(generator.getPrefix(), restarted.getPrefix());
+    for (int i = 0; i < 10; i++) {
+      assertTrue(ids.add(restarted.nextEventId()));
+    }
+    preferences.edit().clear().commit();
+  }
+
+  /**
+   * Generates NUM_IDS_EACH identifiers on each of NUM_THREADS threads.
+   *
+   * @return the elapsed time in nanoseconds.
+   */
+  static long run(final Yozio.EventIdGenerator generator) throws InterruptedException {
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(NUM_THREADS);
+    for (int t = 0; t < NUM_THREADS; t++) {
+      new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          for (int i = 0; i < NUM_IDS_EACH; i++) {
+            generator.nextEventId();
+          }
+          done.countDown();
+        }
+      }.start();
+    }
+    long startNanos = System.nanoTime();
+    start.countDown();
+    done.await();
+    return System.nanoTime() - startNanos;
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2012 Yozio Inc.
+ *
+ * This file is part of the Yozio SDK.
+ *
+ * By using the Yozio SDK in your software, you agree to the terms of the
+ * Yozio SDK License Agreement which can be found at www.yozio.com/sdk_license.
+ */
+
+package com.yozio.android;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class YozioFlushSchedulerTest extends TestCase {
+
+  private static final int BATCH_SIZE = 50;
+
+  private AtomicInteger numFlushes;
+  private YozioFlushScheduler scheduler;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    numFlushes = new AtomicInteger();
+    scheduler = new YozioFlushScheduler(new Runnable() {
+      public void run() {
+        numFlushes.incrementAndGet();
+      }
+    });
+    scheduler.configure(100, 1000, 0);
+  }
+
+  public void testDebounce() throws InterruptedException {
+    for (int i = 1; i <= 5; i++) {
+      scheduler.onEventsStored(i, 1, BATCH_SIZE);
+      Thread.sleep(20);
+    }
+    assertEquals(0, numFlushes.get());
+    Thread.sleep(300);
+    assertEquals(1, numFlushes.get());
+    assertEquals(0, scheduler.getScheduledMillis());
+  }
+
+  public void testFullBatchFlushesRightAway() {
+    scheduler.onEventsStored(1, 1, BATCH_SIZE);
+    scheduler.onEventsStored(BATCH_SIZE, 1, BATCH_SIZE);
+    assertEquals(1, numFlushes.get());
+    assertEquals(0, scheduler.getScheduledMillis());
+  }
+
+  public void testSizeTrigger() {
+    scheduler.configure(100, 1000, 3);
+    scheduler.onEventsStored(2, 1, BATCH_SIZE);
+    assertEquals(0, numFlushes.get());
+    scheduler.onEventsStored(3, 1, BATCH_SIZE);
+    assertEquals(1, numFlushes.get());
+  }
+
+  public void testFullBatchWaitsForRetry() throws InterruptedException {
+    scheduler.flushLater(200);
+    // Like events collected during an outage.
+    scheduler.onEventsStored(BATCH_SIZE, 1, BATCH_SIZE);
+    scheduler.onEventsStored(BATCH_SIZE + 1, 1, BATCH_SIZE);
+    assertEquals(0, numFlushes.get());
+    Thread.sleep(400);
+    assertEquals(1, numFlushes.get());
+
+    scheduler.onEventsStored(BATCH_SIZE, 1, BATCH_SIZE);
+    assertEquals(2, numFlushes.get());
+  }
+
+  public void testMaxLatency() throws InterruptedException {
+    scheduler.configure(100, 250, 0);
+    long start = System.currentTimeMillis();
+    // Events keep arriving within the debounce interval.
+    for (int i = 1; numFlushes.get() == 0 && i < 20; i++) {
+      scheduler.onEventsStored(i, 1, BATCH_SIZE);
+      Thread.sleep(50);
+    }
+    assertEquals(1, numFlushes.get());
+    assertTrue(System.currentTimeMillis() - start < 500);
+  }
+
+  public void testBelowThresholdWaitsForMaxLatency() throws InterruptedException {
+    scheduler.configure(50, 300, 0);
+    long start = System.currentTimeMillis();
+    scheduler.onEventsStored(1, 5, BATCH_SIZE);
+    assertEquals(start + 300, scheduler.getScheduledMillis(), 20);
+    Thread.sleep(150);
+    assertEquals(0, numFlushes.get());
+    Thread.sleep(300);
+    assertEquals(1, numFlushes.get());
+  }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2012 Yozio Inc.
+ *
+ * This file is part of the Yozio SDK.
+ *
+ * By using the Yozio SDK in your software, you agree to the terms of the
+ * Yozio SDK License Agreement which can be found at www.yozio.com/sdk_license.
+ */
+
+package com.yozio.android;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLDecoder;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import junit.framework.TestCase;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Also sends realistic batches to a stand-in server, which decompresses them.
+ */
+public class YozioGzipEntityTest extends TestCase {
+
+  private FakeHttpClient fakeHttpClient;
+  private YozioApiServiceImpl apiService;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    fakeHttpClient = new FakeHttpClient();
+    fakeHttpClient.setHttpResonse(createHttpResponse(new StringEntity("")));
+    apiService = new YozioApiServiceImpl(fakeHttpClient);
+    apiService.setCompressionThreshold(0);
+  }
+
+  public void testRoundTrip() throws IOException {
+    YozioFormEntity form = new YozioFormEntity().add("data", repeat("{\"event_type\":11}", 100));
+    YozioGzipEntity entity = new YozioGzipEntity(form);
+    assertEquals("gzip", entity.getContentEncoding());
+    assertEquals(form.getContentType(), entity.getContentType());
+    assertEquals(-1, entity.getContentLength());
+    // Repeatable.
+    for (int i = 0; i < 2; i++) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      entity.writeTo(out);
+      assertEquals(form.toString(), gunzip(new ByteArrayInputStream(out.toByteArray())));
+    }
+  }
+
+  public void testReadGzippedResponse() throws IOException, JSONException {
+    JSONObject configs = new JSONObject().put("key", "value");
+    String body = new JSONObject().put("experiment_configs", configs).toString();
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+    gzip.write(body.getBytes("UTF-8"));
+    gzip.close();
+    ByteArrayEntity entity = new ByteArrayEntity(compressed.toByteArray());
+    entity.setContentEncoding("gzip");
+    fakeHttpClient.setHttpResonse(createHttpResponse(entity));
+    assertEquals(configs.toString(),
+        apiService.getExperimentInfo("app key", "udid").getConfigs().toString());
+
+    fakeHttpClient.setHttpResonse(createHttpResponse(new StringEntity(body)));
+    assertEquals(configs.toString(),
+        apiService.getExperimentInfo("app key", "udid").getConfigs().toString());
+  }
+
+  public void testCompressionRatio() throws IOException, JSONException {
+    int[] batchSizes = { 1, 10, 50, 200 };
+    for (int batchSize : batchSizes) {
+      YozioBatchPayload payload = buildBatch(batchSize);
+      assertTrue(apiService.batchEvents(payload));
+
+      // The stand-in server decompresses and decodes the request.
+      HttpEntity entity = fakeHttpClient.getLastRequest().getEntity();
+      assertEquals("gzip", entity.getContentEncoding().getValue());
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+      entity.writeTo(compressed);
+      String form = gunzip(new ByteArrayInputStream(compressed.toByteArray()));
+      assertTrue(form.startsWith("data="));
+      String received = URLDecoder.decode(form.substring("data=".length()), "UTF-8");
+      assertEquals(payload.toString(), received);
+      assertEquals(batchSize, new JSONObject(received).getJSONArray("payload").length());
+
+      double ratio = (double) form.length() / compressed.size();
+      if (batchSize >= 10) {
+        assertTrue(ratio > 3);
+      }
+    }
+  }
+
+  public void testBelowThresholdNotCompressed() throws IOException {
+    apiService.setCompressionThreshold(100 * 1000);
+    assertTrue(apiService.batchEvents(buildBatch(1)));
+    HttpEntity entity = fakeHttpClient.getLastRequest().getEntity();
+    assertNull(entity.getContentEncoding());
+    assertTrue(entity.getContentLength() > 0);
+  }
+
+  /**
+   * Builds a batch of events like the ones the SDK collects.
+   */
+  private static YozioBatchPayload buildBatch(int numEvents) {
+    String header = "{\"app_key\":\"3f2504e0-4f89-11d3\",\"device_type\":\"android\","
+        + "\"yozio_udid\":\"3b5d5c3712955042212316173ccf37be\",\"app_version\":\"1.2.3\","
+        + "\"country_code\":\"US\",\"hardware\":\"Nexus S\",\"language_code\":\"en\","
+        + "\"mac_address\":\"00:11:22:33:44:55\",\"open_udid\":\"a1b2c3d4e5f6a1b2c3d4e5f6\","
+        + "\"os_version\":\"4.1.1\",\"android_id\":\"9774d56d682e549c\","
+        + "\"device_id\":\"353918050162436\",\"device_manufacturer\":\"samsung\","
+        + "\"carrier_name\":\"T-Mobile\",\"connection_type\":\"wifi\"}";
+    String[] loopNames = { "invite friends", "share photo", "post score" };
+    String[] channels = { "facebook", "twitter", "email", "sms" };
+    StringBuilder events = new StringBuilder();
+    for (int i = 0; i < numEvents; i++) {
+      if (i > 0) {
+        events.append(',');
+      }
+      events.append("{\"event_type\":").append(i % 3 == 0 ? 12 : 11)
+          .append(",\"link_name\":\"").append(loopNames[i % loopNames.length])
+          .append("\",\"channel\":\"").append(channels[i % channels.length])
+          .append("\",\"timestamp\":\"2012-10-11 12:").append(10 + i / 60 % 50).append(':')
+          .append(10 + i % 50)
+          .append("\",\"event_identifier\":\"8f14e45fceea167a5a36dedd4bea2543-")
+          .append(Integer.toHexString(1000 + i)).append("\"}");
+    }
+    return new YozioBatchPayload(header, events.toString());
+  }
+
+  private static BasicHttpResponse createHttpResponse(HttpEntity entity) {
+    BasicHttpResponse httpResponse =
+        new BasicHttpResponse(new BasicStatusLine(HttpVersion.HTTP_1_1, 200, ""));
+    httpResponse.setEntity(entity);
+    return httpResponse;
+  }
+
+  private static String gunzip(InputStream compressed) throws IOException {
+    InputStream in = new GZIPInputStream(compressed);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1024];
+    int length;
+    while ((length = in.read(buffer)) != -1) {
+      out.write(buffer, 0, length);
+    }
+    return out.toString("UTF-8");
+  }
+
+  private static String repeat(String s, int times) {
+    StringBuilder out = new StringBuilder();
+    for (int i = 0; i < times; i++) {
+      out.append(s);
+    }
+    return out.toString();
+  }
+}
@@ -9,8 +9,14 @@
 
 package com.yozio.android;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -20,7 +26,9 @@ import android.content.Context;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.test.InstrumentationTestCase;
 
+import com.yozio.android.Yozio.GetYozioLinkCallback;
 import com.yozio.android.Yozio.InitializeExperimentsCallback;
+import com.yozio.android.YozioDataStore.Events;
 
 public class YozioHelperTest extends InstrumentationTestCase {
 
@@ -253,6 +261,87 @@ public class YozioHelperTest extends InstrumentationTestCase {
     }
   }
 
+  public void testPayloadHeaderRebuiltWhenUserNameChanges() throws JSONException {
+    helper.collect(123, "loop name", FB_CHANNEL);
+    TestHelper.waitUntilEventSent(dataStore);
+    assertFalse(fakeApiService.getPayload().has("external_user_id"));
+
+    helper.setUserName("spaceman");
+    helper.collect(123, "loop name", FB_CHANNEL);
+    TestHelper.waitUntilEventSent(dataStore);
+    assertEquals("spaceman", fakeApiService.getPayload().getString("external_user_id"));
+  }
+
+  public void testGetYozioLinkCached() throws JSONException {
+    helper.setLinkCache(10, 60 * 1000);
+    try {
+      fakeApiService.setYozioLink("http://yoz.io/abc");
+      assertEquals("http://yoz.io/abc",
+          helper.getYozioLink("loop name", FB_CHANNEL, "www.ooga.booga", null));
+      assertEquals("http://yoz.io/abc",
+          helper.getYozioLink("loop name", FB_CHANNEL, "www.ooga.booga", null));
+      assertEquals(1, fakeApiService.getNumYozioLinkRequests());
+
+      helper.getYozioLink("loop name", "twitter", "www.ooga.booga", null);
+      assertEquals(2, fakeApiService.getNumYozioLinkRequests());
+
+      // A new experiment variation needs a new link.
+      fakeApiService.setExperimentVariationSids(new JSONObject().put("123", "456"));
+      helper.initializeExperiments();
+      helper.getYozioLink("loop name", FB_CHANNEL, "www.ooga.booga", null);
+      assertEquals(3, fakeApiService.getNumYozioLinkRequests());
+    } finally {
+      helper.setLinkCache(0, 0);
+    }
+  }
+
+  public void testPrefetchYozioLinks() throws InterruptedException {
+    fakeApiService.setYozioLink("http://yoz.io/abc");
+    List<YozioLinkPrefetcher.Link> links = new ArrayList<YozioLinkPrefetcher.Link>();
+    links.add(new YozioLinkPrefetcher.Link("loop name", FB_CHANNEL, "www.ooga.booga"));
+    links.add(new YozioLinkPrefetcher.Link("loop name", "twitter", "www.ooga.booga"));
+    try {
+      helper.prefetchYozioLinks(links);
+      for (int i = 0; i < 50 && helper.getNumPrefetchedLinks() < 2; i++) {
+        Thread.sleep(100);
+      }
+      assertEquals(2, helper.getNumPrefetchedLinks());
+      assertEquals(2, fakeApiService.getNumYozioLinkRequests());
+
+      // Served from the prefetched links.
+      assertEquals("http://yoz.io/abc",
+          helper.getYozioLink("loop name", FB_CHANNEL, "www.ooga.booga", null));
+      assertEquals(2, fakeApiService.getNumYozioLinkRequests());
+    } finally {
+      helper.setLinkCache(0, 0);
+    }
+  }
+
+  public void testGetYozioLinkAsyncCoalesced() throws Throwable {
+    fakeApiService.setYozioLink("http://yoz.io/abc");
+    final List<String> links = Collections.synchronizedList(new ArrayList<String>());
+    final CountDownLatch signal = new CountDownLatch(3);
+    final GetYozioLinkCallback callback = new GetYozioLinkCallback() {
+      public void handleResponse(String yozioLink) {
+        links.add(yozioLink);
+        signal.countDown();
+      }
+    };
+    runTestOnUiThread(new Runnable() {
+      public void run() {
+        // The first request can't complete until this returns.
+        for (int i = 0; i < 3; i++) {
+          helper.getYozioLinkAsync("loop name", FB_CHANNEL, "www.ooga.booga", null, callback);
+        }
+      }
+    });
+    assertTrue(signal.await(10, TimeUnit.SECONDS));
+    assertEquals(Arrays.asList("http://yoz.io/abc", "http://yoz.io/abc", "http://yoz.io/abc"),
+        links);
+    assertEquals(1, fakeApiService.getNumYozioLinkRequests());
+    assertEquals(2, helper.getNumCoalescedLinkRequests());
+  }
+
   public void testCollectWithInitializeExperiments() {
     try {
       fakeApiService.setExperimentVariationSids(new JSONObject().put("experiment1", "variation1"));
@@ -267,6 +356,125 @@ public class YozioHelperTest extends InstrumentationTestCase {
     }
   }
 
+  public void testFlushDrainsBacklog() throws JSONException, InterruptedException {
+    List<JSONObject> backlog = new ArrayList<JSONObject>();
+    for (int i = 0; i < 120; i++) {
+      backlog.add(new JSONObject().put("event_type", 11));
+    }
+    dataStore.addEvents(backlog);
+    helper.collect(11, "loop name", FB_CHANNEL);
+    // A single flush sends the whole backlog, at least 50 events at a time.
+    for (int i = 0; i < 50 && dataStore.getNumEvents() > 0; i++) {
+      Thread.sleep(100);
+    }
+    assertEquals(0, dataStore.getNumEvents());
+    assertTrue(fakeApiService.getNumBatches() <= 3);
+  }
+
+  public void testFailedFlushBacksOff() throws InterruptedException {
+    fakeApiService.setBatchEventsResult(false, 60 * 1000);
+    helper.collect(11, "loop name", FB_CHANNEL);
+    for (int i = 0; i < 50 && fakeApiService.getNumBatches() == 0; i++) {
+      Thread.sleep(100);
+    }
+    assertEquals(1, fakeApiService.getNumBatches());
+
+    // Events collected while backing off are stored but not sent.
+    helper.collect(11, "loop name", FB_CHANNEL);
+    Thread.sleep(2000);
+    assertEquals(1, fakeApiService.getNumBatches());
+    assertEquals(2, dataStore.getNumEvents());
+    assertEquals(1, helper.getRetryPolicy().getConsecutiveFailures());
+  }
+
+  public void testNoCheckoutWhileBackingOff() throws InterruptedException {
+    final AtomicInteger numCheckouts = new AtomicInteger();
+    YozioDataStoreImpl countingDataStore = new YozioDataStoreImpl(
+        new YozioDataStoreImpl.DatabaseHelper(context), APP_KEY) {
+      @Override
+      public Events checkoutEvents(int limit, long maxBytes, long leaseMillis) {
+        numCheckouts.incrementAndGet();
+        return super.checkoutEvents(limit, maxBytes, leaseMillis);
+      }
+    };
+    YozioHelper countingHelper = new YozioHelper(countingDataStore, fakeApiService);
+    countingHelper.configure(context, APP_KEY, TEST_SECRET_KEY);
+    fakeApiService.setBatchEventsResult(false, 60 * 1000);
+    countingHelper.collect(11, "loop name", FB_CHANNEL);
+    for (int i = 0; i < 50 && fakeApiService.getNumBatches() == 0; i++) {
+      Thread.sleep(100);
+    }
+    Thread.sleep(500);
+    int checkoutsBeforeBackoff = numCheckouts.get();
+
+    // Flush requests while backing off don't touch the data store.
+    for (int i = 0; i < 10; i++) {
+      countingHelper.doFlush();
+    }
+    Thread.sleep(500);
+    assertEquals(checkoutsBeforeBackoff, numCheckouts.get());
+    assertEquals(1, fakeApiService.getNumBatches());
+  }
+
+  public void testThrowingProbeReopensCircuit() throws InterruptedException {
+    YozioRetryPolicy retryPolicy = new YozioRetryPolicy(new Random(), 10, 200);
+    helper.setRetryPolicy(retryPolicy);
+    for (int i = 0; i < YozioRetryPolicy.FAILURE_THRESHOLD; i++) {
+      retryPolicy.onFailure(0);
+    }
+    assertEquals(Yozio.CIRCUIT_OPEN, retryPolicy.getState());
+    Thread.sleep(300);
+
+    // The probe throws.
+    fakeApiService.setBatchEventsException(new IllegalStateException());
+    dataStore.addEvent(new JSONObject());
+    helper.doFlush();
+    for (int i = 0; i < 50 && fakeApiService.getNumBatches() == 0; i++) {
+      Thread.sleep(100);
+    }
+    Thread.sleep(100);
+    assertEquals(1, fakeApiService.getNumBatches());
+    assertEquals(Yozio.CIRCUIT_OPEN, retryPolicy.getState());
+    // The events were released rather than left leased.
+    Events released = dataStore.checkoutEvents(10, 0, 60 * 1000);
+    assertEquals(1, released.getNumEvents());
+    dataStore.releaseEvents(released);
+
+    // The next probe is allowed once the circuit has been open long enough.
+    fakeApiService.setBatchEventsException(null);
+    Thread.sleep(300);
+    helper.doFlush();
+    for (int i = 0; i < 50 && dataStore.getNumEvents() > 0; i++) {
+      Thread.sleep(100);
+    }
+    assertEquals(0, dataStore.getNumEvents());
+    assertEquals(Yozio.CIRCUIT_CLOSED, retryPolicy.getState());
+  }
+
+  public void testFlushRequestsCoalesced() throws InterruptedException {
+    CountDownLatch sending = new CountDownLatch(1);
+    fakeApiService.setBatchEventsLatch(sending);
+    dataStore.addEvent(new JSONObject());
+    helper.doFlush();
+    for (int i = 0; i < 50 && fakeApiService.getNumBatches() == 0; i++) {
+      Thread.sleep(100);
+    }
+    // Requests made while the flush is running don't queue more flushes.
+    for (int i = 0; i < 200; i++) {
+      helper.doFlush();
+    }
+    assertEquals(1, helper.getNumFlushTasksSubmitted());
+    dataStore.addEvent(new JSONObject());
+    sending.countDown();
+    // The running flush makes another pass for the new event.
+    for (int i = 0; i < 50 && dataStore.getNumEvents() > 0; i++) {
+      Thread.sleep(100);
+    }
+    assertEquals(0, dataStore.getNumEvents());
+    assertEquals(2, fakeApiService.getNumBatches());
+    assertEquals(1, helper.getNumFlushTasksSubmitted());
+  }
+
   /**
    * YozioHelper test cases - Only 1 flush event should happen - Flush fail,
    * next flush should try to batch the data - Data being added while flushing
@@ -0,0 +1,358 @@
+/*
+ * Copyright (C) 2012 Yozio Inc.
+ *
+ * This file is part of the Yozio SDK.
+ *
+ * By using the Yozio SDK in your software, you agree to the terms of the
+ * Yozio SDK License Agreement which can be found at www.yozio.com/sdk_license.
+ */
+
+package com.yozio.android;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Also sends batches through an in-process transport from several threads.
+ */
+public class YozioHttpTransportTest extends TestCase {
+
+  private static final YozioHttpTransport.Timeouts TIMEOUTS =
+      new YozioHttpTransport.Timeouts(1000, 1000);
+
+  private StandInServer server;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    server = new StandInServer();
+    server.start();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    server.close();
+    super.tearDown();
+  }
+
+  public void testUrlConnectionFixedLength() throws IOException {
+    server.respond(200, "{\"url\":\"http://yoz.io/abc\"}");
+    YozioFormEntity form = new YozioFormEntity().add("app_key", "key").add("link_name", "a b");
+    Map<String, String> headers = new HashMap<String, String>();
+    headers.put("x-yozio-sdk-version", "test");
+
+    YozioHttpTransport.Response response =
+        new YozioUrlConnectionHttpTransport().post(server.url(), headers, form, TIMEOUTS);
+    try {
+      assertEquals(200, response.getStatus());
+      assertEquals("{\"url\":\"http://yoz.io/abc\"}", read(response.getContent()));
+    } finally {
+      response.close();
+    }
+    assertEquals("app_key=key&link_name=a+b", new String(server.requestBody, "UTF-8"));
+    assertEquals("test", server.requestHeaders.get("x-yozio-sdk-version"));
+    assertEquals(form.getContentType(), server.requestHeaders.get("content-type"));
+  }
+
+  public void testUrlConnectionChunkedGzip() throws IOException {
+    server.respond(200, "");
+    YozioFormEntity form = new YozioFormEntity().add("data", "{\"payload\":[]}");
+    YozioHttpTransport.Response response = new YozioUrlConnectionHttpTransport().post(
+        server.url(), new HashMap<String, String>(), new YozioGzipEntity(form), TIMEOUTS);
+    response.close();
+    assertEquals("gzip", server.requestHeaders.get("content-encoding"));
+    assertEquals("chunked", server.requestHeaders.get("transfer-encoding"));
+    assertEquals(form.toString(),
+        read(new GZIPInputStream(new ByteArrayInputStream(server.requestBody))));
+  }
+
+  public void testUrlConnectionErrorResponse() throws IOException {
+    server.respond(400, "bad request");
+    YozioHttpTransport.Response response = new YozioUrlConnectionHttpTransport().post(
+        server.url(), new HashMap<String, String>(), new YozioFormEntity(), TIMEOUTS);
+    try {
+      assertEquals(400, response.getStatus());
+      assertEquals("bad request", read(response.getContent()));
+    } finally {
+      response.close();
+    }
+  }
+
+  public void testApiServiceOverUrlConnection() {
+    server.respond(200, "");
+    YozioApiServiceImpl apiService =
+        new YozioApiServiceImpl(new YozioUrlConnectionHttpTransport());
+    apiService.setBaseUrl(server.url());
+    assertTrue(apiService.batchEvents(new YozioBatchPayload("{}", "{\"event_type\":11}")));
+    assertTrue(server.requestLine.contains("/api/sdk/v1/batch_events"));
+  }
+
+  public void testUrlConnectionReadTimeout() throws IOException {
+    server.respond(200, "");
+    server.delayMillis = 5000;
+    long start = System.currentTimeMillis();
+    try {
+      new YozioUrlConnectionHttpTransport().post(
+          server.url(), new HashMap<String, String>(), new YozioFormEntity(), TIMEOUTS);
+      fail();
+    } catch (SocketTimeoutException e) {
+      assertTrue(System.currentTimeMillis() - start < 4000);
+    }
+  }
+
+  public void testApacheReadTimeout() throws IOException {
+    server.respond(200, "");
+    server.delayMillis = 5000;
+    YozioHttpTransport transport =
+        new YozioApacheHttpTransport(Yozio.threadSafeHttpClient(), 1000);
+    long start = System.currentTimeMillis();
+    try {
+      transport.post(server.url(), new HashMap<String, String>(), new YozioFormEntity(), TIMEOUTS);
+      fail();
+    } catch (SocketTimeoutException e) {
+      assertTrue(System.currentTimeMillis() - start < 4000);
+    }
+  }
+
+  public void testLinkAndFlushBudgets() {
+    server.respond(200, "{\"url\":\"http://yoz.io/abc\"}");
+    server.delayMillis = 2000;
+    RecordingTransport transport = new RecordingTransport(new YozioUrlConnectionHttpTransport());
+    YozioApiServiceImpl apiService = new YozioApiServiceImpl(transport);
+    apiService.setBaseUrl(server.url());
+    apiService.setLinkTimeouts(new YozioHttpTransport.Timeouts(1000, 500));
+    apiService.setFlushTimeouts(new YozioHttpTransport.Timeouts(1000, 4000));
+
+    // The link request gives up, the flush request waits for the response.
+    assertNull(apiService.getExperimentInfo("app key", "udid").getConfigs());
+    assertEquals(500, transport.lastTimeouts.readMillis);
+    assertTrue(apiService.batchEvents(new YozioBatchPayload("{}", "{\"event_type\":11}")));
+    assertEquals(4000, transport.lastTimeouts.readMillis);
+  }
+
+  public void testReplacedTransportShutDown() {
+    RecordingTransport transport = new RecordingTransport(new InProcessTransport());
+    YozioApiServiceImpl apiService = new YozioApiServiceImpl(transport);
+    apiService.setTransport(new InProcessTransport());
+    assertTrue(transport.shutdown);
+  }
+
+  public void testInProcessTransportConcurrent() throws InterruptedException {
+    final int numThreads = 4;
+    final int batchesPerThread = 50;
+    final InProcessTransport transport = new InProcessTransport();
+    final YozioApiServiceImpl apiService = new YozioApiServiceImpl(transport);
+    final YozioBatchPayload payload = new YozioBatchPayload(
+        "{\"app_key\":\"key\",\"yozio_udid\":\"udid\"}",
+        "{\"event_type\":11,\"link_name\":\"invite friends\",\"channel\":\"email\"}");
+    final AtomicInteger failures = new AtomicInteger();
+    final CountDownLatch done = new CountDownLatch(numThreads);
+    for (int i = 0; i < numThreads; i++) {
+      new Thread() {
+        @Override
+        public void run() {
+          for (int j = 0; j < batchesPerThread; j++) {
+            if (!apiService.batchEvents(payload)) {
+              failures.incrementAndGet();
+            }
+          }
+          done.countDown();
+        }
+      }.start();
+    }
+    done.await();
+    assertEquals(0, failures.get());
+    assertEquals(numThreads * batchesPerThread, transport.numRequests.get());
+  }
+
+  /**
+   * Answers requests without a network, for load testing the layers above the
+   * transport. Also used by YozioBenchmarkTest.
+   */
+  static class InProcessTransport implements YozioHttpTransport {
+
+    final AtomicInteger numRequests = new AtomicInteger();
+    final AtomicInteger numBytes = new AtomicInteger();
+
+    public Response post(String url, Map<String, String> headers, Body body,
+        Timeouts timeouts) throws IOException {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      body.writeTo(out);
+      numRequests.incrementAndGet();
+      numBytes.addAndGet(out.size());
+      return new Response() {
+        public int getStatus() {
+          return 200;
+        }
+
+        public String getHeader(String name) {
+          return null;
+        }
+
+        public InputStream getContent() {
+          return new ByteArrayInputStream(new byte[0]);
+        }
+
+        public void close() {
+        }
+      };
+    }
+
+    public void shutdown() {
+    }
+  }
+
+  /**
+   * Records the time limits of each request.
+   */
+  private static class RecordingTransport implements YozioHttpTransport {
+
+    private final YozioHttpTransport transport;
+    volatile Timeouts lastTimeouts;
+    volatile boolean shutdown;
+
+    RecordingTransport(YozioHttpTransport transport) {
+      this.transport = transport;
+    }
+
+    public Response post(String url, Map<String, String> headers, Body body,
+        Timeouts timeouts) throws IOException {
+      lastTimeouts = timeouts;
+      return transport.post(url, headers, body, timeouts);
+    }
+
+    public void shutdown() {
+      shutdown = true;
+      transport.shutdown();
+    }
+  }
+
+  /**
+   * Serves one HTTP request at a time on a local port and records it.
+   */
+  private static class StandInServer extends Thread {
+
+    private final ServerSocket serverSocket;
+    private volatile int status;
+    private volatile String responseBody;
+    // Time to wait before responding.
+    volatile long delayMillis;
+    volatile String requestLine;
+    volatile Map<String, String> requestHeaders;
+    volatile byte[] requestBody;
+
+    StandInServer() throws IOException {
+      serverSocket = new ServerSocket(0);
+      setDaemon(true);
+    }
+
+    String url() {
+      return "http://127.0.0.1:" + serverSocket.getLocalPort();
+    }
+
+    void respond(int status, String responseBody) {
+      this.status = status;
+      this.responseBody = responseBody;
+    }
+
+    void close() throws IOException {
+      serverSocket.close();
+    }
+
+    @Override
+    public void run() {
+      while (!serverSocket.isClosed()) {
+        try {
+          Socket socket = serverSocket.accept();
+          try {
+            serve(socket);
+          } finally {
+            socket.close();
+          }
+        } catch (IOException e) {
+          // Closed.
+        }
+      }
+    }
+
+    private void serve(Socket socket) throws IOException {
+      InputStream in = socket.getInputStream();
+      requestLine = readLine(in);
+      Map<String, String> headers = new HashMap<String, String>();
+      String line;
+      while ((line = readLine(in)).length() > 0) {
+        int colon = line.indexOf(':');
+        headers.put(line.substring(0, colon).trim().toLowerCase(),
+            line.substring(colon + 1).trim());
+      }
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      if ("chunked".equals(headers.get("transfer-encoding"))) {
+        int size;
+        while ((size = Integer.parseInt(readLine(in).trim(), 16)) > 0) {
+          copy(in, body, size);
+          readLine(in);
+        }
+        readLine(in);
+      } else if (headers.containsKey("content-length")) {
+        copy(in, body, Integer.parseInt(headers.get("content-length")));
+      }
+      requestHeaders = headers;
+      requestBody = body.toByteArray();
+      if (delayMillis > 0) {
+        try {
+          Thread.sleep(delayMillis);
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+
+      byte[] content = responseBody.getBytes("UTF-8");
+      OutputStream out = socket.getOutputStream();
+      out.write(("HTTP/1.1 " + status + " Status\r\nContent-Type: text/plain; charset=UTF-8\r\n"
+          + "Content-Length: " + content.length + "\r\nConnection: close\r\n\r\n")
+          .getBytes("UTF-8"));
+      out.write(content);
+      out.flush();
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+      StringBuilder line = new StringBuilder();
+      int c;
+      while ((c = in.read()) != -1 && c != '\n') {
+        if (c != '\r') {
+          line.append((char) c);
+        }
+      }
+      return line.toString();
+    }
+
+    private static void copy(InputStream in, OutputStream out, int length) throws IOException {
+      for (int i = 0; i < length; i++) {
+        out.write(in.read());
+      }
+    }
+  }
+
+  private static String read(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1024];
+    int length;
+    while ((length = in.read(buffer)) != -1) {
+      out.write(buffer, 0, length);
+    }
+    return out.toString("UTF-8");
+  }
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) 2012 Yozio Inc.
+ *
+ * This file is part of the Yozio SDK.
+ *
+ * By using the Yozio SDK in your software, you agree to the terms of the
+ * Yozio SDK License Agreement which can be found at www.yozio.com/sdk_license.
+ */
+
+package com.yozio.android;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.yozio.android.YozioDataStore.Events;
+
+public class YozioJournalDataStoreTest extends AndroidTestCase {
+
+  private static final String LOGTAG = "YozioJournalDataStoreTest";
+  private static final String APP_KEY = "test app key";
+  private static final String EVENT_KEY = "event key";
+  // Small enough that a handful of test events span several segments.
+  private static final int SEGMENT_SIZE = 64;
+
+  private File dir;
+  private YozioJournalDataStore dataStore;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    dir = YozioJournalDataStore.journalDir(getContext(), APP_KEY);
+    deleteDir(dir);
+    dataStore = new YozioJournalDataStore(dir, SEGMENT_SIZE);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    dataStore.close();
+    deleteDir(dir);
+    super.tearDown();
+  }
+
+  public void testAddEvent() {
+    JSONObject event1 = buildTestEvent("event 1");
+    JSONObject event2 = buildTestEvent("event 2");
+
+    dataStore.addEvent(event1);
+    assertEquals(1, dataStore.getNumEvents());
+    assertEventsEqual(peekEvents(10), event1);
+
+    dataStore.addEvent(event2);
+    assertEquals(2, dataStore.getNumEvents());
+    assertEventsEqual(peekEvents(10), event1, event2);
+  }
+
+  public void testCheckoutEventsWithLimit() {
+    JSONObject event1 = buildTestEvent("event 1");
+    JSONObject event2 = buildTestEvent("event 2");
+    JSONObject event3 = buildTestEvent("event 3");
+    dataStore.addEvents(Arrays.asList(event1, event2, event3));
+    assertNull(peekEvents(0));
+    assertEventsEqual(peekEvents(1), event1);
+    assertEventsEqual(peekEvents(2), event1, event2);
+    assertEventsEqual(peekEvents(4), event1, event2, event3);
+  }
+
+  public void testCheckoutEventsWithNoEvents() {
+    assertEquals(0, dataStore.getNumEvents());
+    assertNull(peekEvents(10));
+  }
+
+  public void testCommitEvents() {
+    JSONObject event1 = buildTestEvent("event 1");
+    JSONObject event2 = buildTestEvent("event 2");
+    JSONObject event3 = buildTestEvent("event 3");
+    JSONObject event4 = buildTestEvent("event 4");
+    dataStore.addEvents(Arrays.asList(event1, event2, event3));
+
+    Events events = dataStore.checkoutEvents(2, 0, 60 * 1000);
+    assertTrue(dataStore.commitEvents(events));
+    assertEquals(1, dataStore.getNumEvents());
+    assertEventsEqual(peekEvents(10), event3);
+
+    dataStore.addEvent(event4);
+    events = dataStore.checkoutEvents(10, 0, 60 * 1000);
+    assertTrue(dataStore.commitEvents(events));
+    assertEquals(0, dataStore.getNumEvents());
+    assertNull(peekEvents(10));
+  }
+
+  public void testAcknowledgedSegmentsDeleted() {
+    for (int i = 0; i < 10; i++) {
+      dataStore.addEvent(buildTestEvent("event " + i));
+    }
+    long fullSize = dataStore.getDiskSize();
+    Events events = dataStore.checkoutEvents(8, 0, 60 * 1000);
+    dataStore.commitEvents(events);
+    assertEquals(2, dataStore.getNumEvents());
+    assertTrue(dataStore.getDiskSize() < fullSize);
+  }
+
+  public void testEvictOverLimits() {
+    JSONObject event1 = buildTestEvent("event 1");
+    JSONObject event2 = buildTestEvent("event 2");
+    JSONObject event3 = buildTestEvent("event 3");
+    JSONObject event4 = buildTestEvent("event 4");
+    dataStore.setLimits(2, 0, 0, Yozio.EVICT_OLDEST);
+    dataStore.addEvents(Arrays.asList(event1, event2, event3));
+    assertEquals(2, dataStore.getNumEvents());
+    assertEventsEqual(peekEvents(10), event2, event3);
+    assertEquals(1, dataStore.getNumEvictedEvents());
+
+    // Each record is the event plus a 4 byte length.
+    dataStore.setLimits(0, event4.toString().length() + 4, 0, Yozio.EVICT_OLDEST);
+    dataStore.addEvent(event4);
+    assertEquals(1, dataStore.getNumEvents());
+    assertEventsEqual(peekEvents(10), event4);
+    assertEquals(3, dataStore.getNumEvictedEvents());
+  }
+
+  public void testCheckedOutEventsNotEvicted() {
+    JSONObject event1 = buildTestEvent("event 1");
+    JSONObject event2 = buildTestEvent("event 2");
+    JSONObject event3 = buildTestEvent("event 3");
+    JSONObject event4 = buildTestEvent("event 4");
+    dataStore.addEvents(Arrays.asList(event1, event2, event3));
+    Events checkedOut = dataStore.checkoutEvents(1, 0, 60 * 1000);
+
+    // The flusher still sends event 1, so the events after it are evicted.
+    dataStore.setLimits(2, 0, 0, Yozio.EVICT_OLDEST);
+    dataStore.addEvent(event4);
+    assertEquals(2, dataStore.getNumEvents());
+    assertEquals(2, dataStore.getNumEvictedEvents());
+
+    assertTrue(dataStore.commitEvents(checkedOut));
+    assertEquals(1, dataStore.getNumEvents());
+    assertEventsEqual(dataStore.checkoutEvents(10, 0, 60 * 1000).getJsonArray(), event4);
+  }
+
+  public void testCheckoutSkipsLeasedEvents() {
+    JSONObject event1 = buildTestEvent("event 1");
+    JSONObject event2 = buildTestEvent("event 2");
+    JSONObject event3 = buildTestEvent("event 3");
+    dataStore.addEvents(Arrays.asList(event1, event2, event3));
+
+    Events first = dataStore.checkoutEvents(2, 0, 60 * 1000);
+    assertEventsEqual(first.getJsonArray(), event1, event2);
+    Events second = dataStore.checkoutEvents(2, 0, 60 * 1000);
+    assertEventsEqual(second.getJsonArray(), event3);
+    assertNull(dataStore.checkoutEvents(2, 0, 60 * 1000));
+
+    // Commits may come back in any order.
+    assertTrue(dataStore.commitEvents(second));
+    assertEquals(2, dataStore.getNumEvents());
+    assertTrue(dataStore.commitEvents(first));
+    assertEquals(0, dataStore.getNumEvents());
+    assertNull(dataStore.checkoutEvents(2, 0, 60 * 1000));
+  }
+
+  public void testReleaseEvents() {
+    JSONObject event1 = buildTestEvent("event 1");
+    JSONObject event2 = buildTestEvent("event 2");
+    dataStore.addEvents(Arrays.asList(event1, event2));
+
+    Events first = dataStore.checkoutEvents(1, 0, 60 * 1000);
+    Events second = dataStore.checkoutEvents(1, 0, 60 * 1000);
+    dataStore.releaseEvents(first);
+    // The released events are checked out again, up to the next lease.
+    Events retry = dataStore.checkoutEvents(10, 0, 60 * 1000);
+    assertEventsEqual(retry.getJsonArray(), event1);
+    assertTrue(dataStore.commitEvents(retry));
+    assertTrue(dataStore.commitEvents(second));
+    assertEquals(0, dataStore.getNumEvents());
+  }
+
+  public void testLeaseExpires() throws InterruptedException {
+    JSONObject event1 = buildTestEvent("event 1");
+    dataStore.addEvent(event1);
+
+    Events first = dataStore.checkoutEvents(10, 0, 1);
+    Thread.sleep(10);
+    Events second = dataStore.checkoutEvents(10, 0, 60 * 1000);
+    assertEventsEqual(second.getJsonArray(), event1);
+    // Both commits succeed, and the events are only removed once.
+    assertTrue(dataStore.commitEvents(first));
+    assertTrue(dataStore.commitEvents(second));
+    assertEquals(0, dataStore.getNumEvents());
+  }
+
+  public void testReopen() {
+    JSONObject event1 = buildTestEvent("event 1");
+    JSONObject event2 = buildTestEvent("event 2");
+    JSONObject event3 = buildTestEvent("event 3");
+    dataStore.addEvents(Arrays.asList(event1, event2, event3));
+    dataStore.commitEvents(dataStore.checkoutEvents(1, 0, 60 * 1000));
+    dataStore.close();
+
+    // A new data store picks up the events and the checkpoint.
+    dataStore = new YozioJournalDataStore(dir, SEGMENT_SIZE);
+    assertEquals(2, dataStore.getNumEvents());
+    assertEventsEqual(peekEvents(10), event2, event3);
+  }
+
+  public void testReopenAfterLocaleChange() {
+    Locale defaultLocale = Locale.getDefault();
+    try {
+      // Formats numbers with Arabic-Indic digits.
+      Locale.setDefault(new Locale("ar", "EG"));
+      dataStore.close();
+      dataStore = new YozioJournalDataStore(dir, SEGMENT_SIZE);
+      JSONObject event1 = buildTestEvent("event 1");
+      JSONObject event2 = buildTestEvent("event 2");
+      dataStore.addEvents(Arrays.asList(event1, event2));
+      dataStore.close();
+
+      Locale.setDefault(Locale.US);
+      dataStore = new YozioJournalDataStore(dir, SEGMENT_SIZE);
+      assertEquals(2, dataStore.getNumEvents());
+      assertEventsEqual(peekEvents(10), event1, event2);
+    } finally {
+      Locale.setDefault(defaultLocale);
+    }
+  }
+
+  public void testPartialRecordDropped() throws IOException {
+    JSONObject event1 = buildTestEvent("event 1");
+    JSONObject event2 = buildTestEvent("event 2");
+    dataStore.addEvent(event1);
+    dataStore.close();
+
+    // Simulate a crash in the middle of appending a record.
+    File[] segments = dir.listFiles();
+    Arrays.sort(segments);
+    FileOutputStream out = new FileOutputStream(segments[segments.length - 1], true);
+    out.write(new byte[] { 0, 0, 0, 100, 1, 2, 3 });
+    out.close();
+
+    dataStore = new YozioJournalDataStore(dir, SEGMENT_SIZE);
+    assertEquals(1, dataStore.getNumEvents());
+    dataStore.addEvent(event2);
+    assertEventsEqual(peekEvents(10), event1, event2);
+  }
+
+  public void testMalformedEventDropped() throws IOException {
+    JSONObject event1 = buildTestEvent("event 1");
+    JSONObject event2 = buildTestEvent("event 2");
+    dataStore.addEvent(event1);
+    dataStore.close();
+
+    // A complete record that isn't a JSON object.
+    File[] segments = dir.listFiles();
+    Arrays.sort(segments);
+    FileOutputStream out = new FileOutputStream(segments[segments.length - 1], true);
+    out.write(new byte[] { 0, 0, 0, 3, 'b', 'a', 'd' });
+    out.close();
+
+    dataStore = new YozioJournalDataStore(dir, SEGMENT_SIZE);
+    dataStore.addEvent(event2);
+    assertEquals(3, dataStore.getNumEvents());
+    Events events = dataStore.checkoutEvents(10, 0, 60 * 1000);
+    assertEventsEqual(events.getJsonArray(), event1, event2);
+    assertEquals(2, dataStore.getNumEvents());
+    assertTrue(dataStore.commitEvents(events));
+    assertEquals(0, dataStore.getNumEvents());
+  }
+
+  private static void deleteDir(File dir) {
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    dir.delete();
+  }
+
+  // Returns the events the next checkout would return, without leaving them
+  // checked out.
+  private JSONArray peekEvents(int limit) {
+    Events events = dataStore.checkoutEvents(limit, 0, 60 * 1000);
+    if (events == null) {
+      return null;
+    }
+    dataStore.releaseEvents(events);
+    return events.getJsonArray();
+  }
+
+  // Builds a JSONObject to represent an event.
+  // Does not have the same structure as an actual event.
+  private JSONObject buildTestEvent(String name) {
+    try {
+      JSONObject eventObject = new JSONObject();
+      eventObject.put(EVENT_KEY, name);
+      return eventObject;
+    } catch (JSONException e) {
+      Log.e(LOGTAG, "buildTestEvent", e);
+      fail("Faiure building test event");
+      return null;
+    }
+  }
+
+  // Asserts that the JSONArray is equivalent to eventsArr.
+  private void assertEventsEqual(JSONArray eventsJsonArr, JSONObject... expectedEventsArr) {
+    assertEquals(eventsJsonArr.length(), expectedEventsArr.length);
+    for (int i = 0; i < expectedEventsArr.length; i++) {
+      try {
+        JSONObject event = (JSONObject) eventsJsonArr.get(i);
+        JSONObject expectedEvent = expectedEventsArr[i];
+        assertEquals(event.toString(), expectedEvent.toString());
+      } catch (JSONException e) {
+        Log.e(LOGTAG, "assertEventsEqual", e);
+        fail("Faiure comparing JSON objects");
+      }
+    }
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2012 Yozio Inc.
+ *
+ * This file is part of the Yozio SDK.
+ *
+ * By using the Yozio SDK in your software, you agree to the terms of the
+ * Yozio SDK License Agreement which can be found at www.yozio.com/sdk_license.
+ */
+
+package com.yozio.android;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.SharedPreferences;
+import android.test.AndroidTestCase;
+
+public class YozioLinkCacheTest extends AndroidTestCase {
+
+  private static final String PREFERENCES_NAME = "yozioLinkCacheTest";
+
+  public void testGetCachedLink() {
+    YozioLinkCache cache = new YozioLinkCache(null, 10, 60 * 1000);
+    assertNull(cache.get("a"));
+    cache.put("a", "http://yoz.io/a");
+    assertEquals("http://yoz.io/a", cache.get("a"));
+    assertNull(cache.get("b"));
+  }
+
+  public void testExpired() throws InterruptedException {
+    YozioLinkCache cache = new YozioLinkCache(null, 10, 50);
+    cache.put("a", "http://yoz.io/a");
+    Thread.sleep(100);
+    assertNull(cache.get("a"));
+    assertEquals(0, cache.size());
+  }
+
+  public void testLeastRecentlyUsedEvicted() {
+    YozioLinkCache cache = new YozioLinkCache(null, 2, 60 * 1000);
+    cache.put("a", "http://yoz.io/a");
+    cache.put("b", "http://yoz.io/b");
+    cache.get("a");
+    cache.put("c", "http://yoz.io/c");
+    assertEquals(2, cache.size());
+    assertEquals("http://yoz.io/a", cache.get("a"));
+    assertNull(cache.get("b"));
+    assertEquals("http://yoz.io/c", cache.get("c"));
+  }
+
+  public void testKeyIncludesAllArguments() throws JSONException {
+    JSONObject properties = new JSONObject().put("channel", "facebook");
+    JSONObject withVariation = new JSONObject().put("channel", "facebook")
+        .put("experiment_variation_sids", new JSONObject().put("123", "456"));
+    String key = YozioLinkCache.key("app", "udid", "loop", "www.a.com", null, properties, null);
+    assertEquals(key,
+        YozioLinkCache.key("app", "udid", "loop", "www.a.com", null, properties, null));
+    assertFalse(key.equals(
+        YozioLinkCache.key("app", "udid", "loop", "www.a.com", null, withVariation, null)));
+    assertFalse(key.equals(
+        YozioLinkCache.key("app", "udid", "loop", null, "www.a.com", properties, null)));
+    assertFalse(key.equals(
+        YozioLinkCache.key("app", "udid", "loop", "www.a.com", "null", properties, null)));
+  }
+
+  public void testPersistedAcrossRestarts() throws InterruptedException {
+    SharedPreferences preferences = getContext().getSharedPreferences(PREFERENCES_NAME, 0);
+    preferences.edit().clear().commit();
+
+    YozioLinkCache cache = new YozioLinkCache(preferences, 2, 60 * 1000);
+    cache.put("a", "http://yoz.io/a");
+    cache.put("b", "http://yoz.io/b");
+    cache.get("a");
+    cache.put("c", "http://yoz.io/c");
+    YozioLinkCache.awaitWrites();
+
+    YozioLinkCache restarted = new YozioLinkCache(preferences, 2, 60 * 1000);
+    assertEquals("http://yoz.io/a", restarted.get("a"));
+    assertNull(restarted.get("b"));
+    assertEquals("http://yoz.io/c", restarted.get("c"));
+
+    YozioLinkCache.clear(preferences);
+    YozioLinkCache.awaitWrites();
+    assertEquals(0, new YozioLinkCache(preferences, 2, 60 * 1000).size());
+  }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2012 Yozio Inc.
+ *
+ * This file is part of the Yozio SDK.
+ *
+ * By using the Yozio SDK in your software, you agree to the terms of the
+ * Yozio SDK License Agreement which can be found at www.yozio.com/sdk_license.
+ */
+
+package com.yozio.android;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class YozioLinkPrefetcherTest extends TestCase {
+
+  private static final String[] CHANNELS = { "facebook", "twitter", "sms", "email" };
+
+  private YozioLinkCache cache;
+  private FakeLoader loader;
+  private YozioLinkPrefetcher prefetcher;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    cache = new YozioLinkCache(null, 10, 60 * 1000);
+    loader = new FakeLoader();
+    prefetcher = new YozioLinkPrefetcher(loader);
+  }
+
+  public void testLoadsDeclaredLinks() throws InterruptedException {
+    prefetcher.add(links("www.ooga.booga"));
+    waitForLoads(CHANNELS.length);
+    for (String channel : CHANNELS) {
+      assertEquals("http://yoz.io/" + channel, cache.get(key(channel)));
+    }
+    Thread.sleep(200);
+    assertEquals(CHANNELS.length, loader.numLoads.get());
+  }
+
+  public void testRefreshedBeforeExpiry() throws InterruptedException {
+    cache = new YozioLinkCache(null, 10, 2000);
+    prefetcher.add(links("www.ooga.booga"));
+    waitForLoads(CHANNELS.length);
+    // Past the TTL of the first links, they were replaced in time.
+    for (int i = 0; i < 30; i++) {
+      for (String channel : CHANNELS) {
+        assertNotNull(cache.get(key(channel)));
+      }
+      Thread.sleep(100);
+    }
+    assertTrue(loader.numLoads.get() >= 2 * CHANNELS.length);
+  }
+
+  public void testFailedLoadRetriedLater() throws InterruptedException {
+    loader.fail = true;
+    prefetcher.add(links("www.ooga.booga"));
+    waitForLoads(CHANNELS.length);
+    Thread.sleep(1500);
+    assertEquals(CHANNELS.length, loader.numLoads.get());
+    assertEquals(0, prefetcher.getNumLoaded());
+  }
+
+  public void testFailuresResetOnSuccess() throws InterruptedException {
+    loader.fail = true;
+    prefetcher.add(links("www.ooga.booga"));
+    waitForLoads(CHANNELS.length);
+    prefetcher.refresh();
+    waitForLoads(2 * CHANNELS.length);
+    Thread.sleep(200);
+    // Once per run, not once per link.
+    assertEquals(2, prefetcher.getConsecutiveFailures());
+
+    loader.fail = false;
+    prefetcher.refresh();
+    waitForLoads(3 * CHANNELS.length);
+    Thread.sleep(200);
+    assertEquals(0, prefetcher.getConsecutiveFailures());
+    assertEquals(CHANNELS.length, prefetcher.getNumLoaded());
+  }
+
+  public void testNothingLoadedWithoutCache() throws InterruptedException {
+    cache = null;
+    prefetcher.add(links("www.ooga.booga"));
+    Thread.sleep(200);
+    assertEquals(0, loader.numLoads.get());
+  }
+
+  public void testRefreshLoadsChangedKeys() throws InterruptedException {
+    prefetcher.add(links("www.ooga.booga"));
+    waitForLoads(CHANNELS.length);
+    // Like a new experiment variation, which changes every cache key.
+    loader.variation = "b";
+    prefetcher.refresh();
+    waitForLoads(2 * CHANNELS.length);
+    for (String channel : CHANNELS) {
+      assertNotNull(cache.get(key(channel)));
+    }
+  }
+
+  private static List<YozioLinkPrefetcher.Link> links(String destinationUrl) {
+    List<YozioLinkPrefetcher.Link> links = new ArrayList<YozioLinkPrefetcher.Link>();
+    for (String channel : CHANNELS) {
+      links.add(new YozioLinkPrefetcher.Link("loop name", channel, destinationUrl));
+    }
+    return links;
+  }
+
+  private String key(String channel) {
+    return YozioLinkCache.key("loop name", channel, loader.variation);
+  }
+
+  private void waitForLoads(int numLoads) throws InterruptedException {
+    for (int i = 0; i < 50 && loader.numLoads.get() < numLoads; i++) {
+      Thread.sleep(100);
+    }
+    assertTrue(loader.numLoads.get() >= numLoads);
+  }
+
+  private class FakeLoader implements YozioLinkPrefetcher.Loader {
+
+    final AtomicInteger numLoads = new AtomicInteger();
+    volatile boolean fail;
+    volatile String variation = "a";
+
+    public long getRefreshAtMillis(YozioLinkPrefetcher.Link link) {
+      return cache != null ? cache.getRefreshAtMillis(key(link.channel)) : -1;
+    }
+
+    public boolean load(YozioLinkPrefetcher.Link link) {
+      numLoads.incrementAndGet();
+      if (fail) {
+        return false;
+      }
+      cache.put(key(link.channel), "http://yoz.io/" + link.channel);
+      return true;
+    }
+  }
+}
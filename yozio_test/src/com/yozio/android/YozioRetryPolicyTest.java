@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2012 Yozio Inc.
+ *
+ * This file is part of the Yozio SDK.
+ *
+ * By using the Yozio SDK in your software, you agree to the terms of the
+ * Yozio SDK License Agreement which can be found at www.yozio.com/sdk_license.
+ */
+
+package com.yozio.android;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class YozioRetryPolicyTest extends TestCase {
+
+  private static final long BASE_BACKOFF_MS = 10;
+  private static final long OPEN_MS = 200;
+
+  private YozioRetryPolicy policy;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    policy = new YozioRetryPolicy(new Random(0), BASE_BACKOFF_MS, OPEN_MS);
+  }
+
+  public void testAllowsRequestsWhenClosed() {
+    assertTrue(policy.allowRequest());
+    policy.onSuccess();
+    assertTrue(policy.allowRequest());
+    assertEquals(Yozio.CIRCUIT_CLOSED, policy.getState());
+    assertEquals(0, policy.getNumRetries());
+  }
+
+  public void testBackoffGrowsWithJitter() {
+    long previousMax = 0;
+    for (int failures = 1; failures < YozioRetryPolicy.FAILURE_THRESHOLD; failures++) {
+      policy.onFailure(0);
+      long backoff = BASE_BACKOFF_MS << (failures - 1);
+      long delay = policy.getDelayMillis();
+      assertTrue(delay <= backoff);
+      assertTrue(delay >= backoff / 2 - 5);
+      assertTrue(backoff > previousMax);
+      previousMax = backoff;
+      assertFalse(policy.allowRequest());
+    }
+    assertEquals(Yozio.CIRCUIT_CLOSED, policy.getState());
+  }
+
+  public void testRetryAfter() {
+    policy.onFailure(60 * 1000);
+    assertTrue(policy.getDelayMillis() > 59 * 1000);
+    assertFalse(policy.allowRequest());
+  }
+
+  public void testRetryCount() throws InterruptedException {
+    policy.onFailure(0);
+    Thread.sleep(policy.getDelayMillis() + 10);
+    assertTrue(policy.allowRequest());
+    assertEquals(1, policy.getNumRetries());
+    policy.onSuccess();
+    assertEquals(0, policy.getDelayMillis());
+    assertTrue(policy.allowRequest());
+    assertEquals(1, policy.getNumRetries());
+  }
+
+  public void testCircuitOpensAndProbes() throws InterruptedException {
+    for (int i = 0; i < YozioRetryPolicy.FAILURE_THRESHOLD; i++) {
+      policy.onFailure(0);
+    }
+    assertEquals(Yozio.CIRCUIT_OPEN, policy.getState());
+    assertFalse(policy.allowRequest());
+
+    Thread.sleep(OPEN_MS + 10);
+    // Only one probe is allowed.
+    assertTrue(policy.allowRequest());
+    assertEquals(Yozio.CIRCUIT_HALF_OPEN, policy.getState());
+    assertFalse(policy.allowRequest());
+
+    // A failed probe opens the circuit again.
+    policy.onFailure(0);
+    assertEquals(Yozio.CIRCUIT_OPEN, policy.getState());
+    assertFalse(policy.allowRequest());
+
+    Thread.sleep(OPEN_MS + 10);
+    assertTrue(policy.allowRequest());
+    policy.onSuccess();
+    assertEquals(Yozio.CIRCUIT_CLOSED, policy.getState());
+    assertEquals(0, policy.getConsecutiveFailures());
+    assertTrue(policy.allowRequest());
+  }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2012 Yozio Inc.
+ *
+ * This file is part of the Yozio SDK.
+ *
+ * By using the Yozio SDK in your software, you agree to the terms of the
+ * Yozio SDK License Agreement which can be found at www.yozio.com/sdk_license.
+ */
+
+package com.yozio.android;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Sends session scoped headers to a stand-in server that resolves them the
+ * way the Yozio server would.
+ */
+public class YozioSessionHeaderTest extends TestCase {
+
+  private static final String EVENT =
+      "{\"event_type\":11,\"link_name\":\"loop name\",\"channel\":\"facebook\","
+      + "\"timestamp\":\"2012-10-11 12:13:14\",\"event_identifier\":"
+      + "\"8f14e45fceea167a5a36dedd4bea2543-3e8\"}";
+
+  private YozioSessionHeader session;
+  private StandInServer server;
+  private JSONObject fullHeader;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    session = new YozioSessionHeader("prefix", "app_key", "device_type", "yozio_udid");
+    server = new StandInServer();
+    fullHeader = new JSONObject()
+        .put("app_key", "app key")
+        .put("device_type", "android")
+        .put("yozio_udid", "3b5d5c3712955042212316173ccf37be")
+        .put("app_version", "1.2.3")
+        .put("country_code", "US")
+        .put("hardware", "Nexus S")
+        .put("language_code", "en")
+        .put("mac_address", "00:11:22:33:44:55")
+        .put("open_udid", "a1b2c3d4e5f6a1b2c3d4e5f6a1b2c3d4e5f6a1b2")
+        .put("os_version", "4.1.1")
+        .put("android_id", "9774d56d682e549c")
+        .put("device_id", "353918050162436")
+        .put("device_manufacturer", "samsung")
+        .put("serial_id", "3933E6A4D46D00EC")
+        .put("device_screen_density", "240")
+        .put("device_screen_layout_size", "2")
+        .put("carrier_name", "T-Mobile")
+        .put("carrier_country_code", "us")
+        .put("mobile_country_code", "310")
+        .put("mobile_network_code", "260")
+        .put("connection_type", "wifi");
+  }
+
+  public void testFullHeaderUntilStored() throws JSONException {
+    YozioSessionHeader.Header header = send(fullHeader, false);
+    assertTrue(header.isFull());
+    header = send(fullHeader, true);
+    assertTrue(header.isFull());
+    header = send(fullHeader, true);
+    assertFalse(header.isFull());
+    assertTrue(new JSONObject(header.getSerialized()).has("app_key"));
+    assertFalse(new JSONObject(header.getSerialized()).has("mac_address"));
+  }
+
+  public void testChangedFields() throws JSONException {
+    send(fullHeader, true);
+    JSONObject changed = new JSONObject(fullHeader.toString());
+    changed.put("connection_type", "mobile");
+    changed.remove("carrier_name");
+    changed.put("external_user_id", "spaceman");
+    YozioSessionHeader.Header header = send(changed, true);
+    assertFalse(header.isFull());
+    JSONObject delta = new JSONObject(header.getSerialized());
+    assertEquals("mobile", delta.getString("connection_type"));
+    assertEquals("spaceman", delta.getString("external_user_id"));
+    assertTrue(delta.has("carrier_name"));
+    assertTrue(delta.isNull("carrier_name"));
+  }
+
+  public void testFailureSendsFullHeaderWithNewKey() throws JSONException {
+    YozioSessionHeader.Header stored = send(fullHeader, true);
+    YozioSessionHeader.Header header = session.next(fullHeader, fullHeader.toString());
+    assertFalse(header.isFull());
+    session.onFailure(header);
+    header = send(fullHeader, true);
+    assertTrue(header.isFull());
+    assertFalse(new JSONObject(stored.getSerialized()).getString("session_key").equals(
+        new JSONObject(header.getSerialized()).getString("session_key")));
+  }
+
+  public void testParallelFullHeaders() throws JSONException {
+    // Two batches with full headers are in flight; the second one is built
+    // from a different user name and stored second.
+    YozioSessionHeader.Header first = session.next(fullHeader, fullHeader.toString());
+    JSONObject changed = new JSONObject(fullHeader.toString()).put("external_user_id", "b");
+    YozioSessionHeader.Header second = session.next(changed, changed.toString());
+    server.receive(second.getSerialized(), changed);
+    server.receive(first.getSerialized(), fullHeader);
+    session.onSuccess(second);
+    session.onSuccess(first);
+    // Later batches resolve against the header they were built from.
+    send(changed, true);
+    send(fullHeader, true);
+  }
+
+  public void testBytesSavedPerEvent() throws JSONException {
+    int numBatches = 100;
+    long fullBytes = 0;
+    long sessionBytes = 0;
+    for (int i = 0; i < numBatches; i++) {
+      YozioSessionHeader.Header header = send(fullHeader, true);
+      // One event per batch, the common case.
+      fullBytes += new YozioBatchPayload(fullHeader.toString(), EVENT).length();
+      sessionBytes += new YozioBatchPayload(header.getSerialized(), EVENT).length();
+    }
+    long savedPerEvent = (fullBytes - sessionBytes) / numBatches;
+    assertTrue(savedPerEvent > fullHeader.toString().length() / 2);
+  }
+
+  /**
+   * Builds the header for fullHeader, sends it to the server, and records the
+   * result.
+   */
+  private YozioSessionHeader.Header send(JSONObject fullHeader, boolean success)
+      throws JSONException {
+    YozioSessionHeader.Header header = session.next(fullHeader, fullHeader.toString());
+    if (success) {
+      server.receive(header.getSerialized(), fullHeader);
+      session.onSuccess(header);
+    } else {
+      session.onFailure(header);
+    }
+    return header;
+  }
+
+  /**
+   * Stores full headers by session key, and resolves later headers against
+   * them.
+   */
+  private static class StandInServer {
+
+    private final Map<String, JSONObject> sessions = new HashMap<String, JSONObject>();
+
+    /**
+     * Resolves a header and checks it matches the expected fields.
+     */
+    void receive(String serialized, JSONObject expected) throws JSONException {
+      JSONObject header = new JSONObject(serialized);
+      String sessionKey = header.getString(YozioSessionHeader.P_SESSION_KEY);
+      header.remove(YozioSessionHeader.P_SESSION_KEY);
+      JSONObject resolved;
+      if (sessions.containsKey(sessionKey)) {
+        resolved = new JSONObject(sessions.get(sessionKey).toString());
+        Iterator<?> keys = header.keys();
+        while (keys.hasNext()) {
+          String key = (String) keys.next();
+          if (header.isNull(key)) {
+            resolved.remove(key);
+          } else {
+            resolved.put(key, header.get(key));
+          }
+        }
+      } else {
+        // A full header. It is stored once and never replaced.
+        resolved = header;
+        sessions.put(sessionKey, header);
+      }
+      assertEquals(expected.length(), resolved.length());
+      Iterator<?> keys = expected.keys();
+      while (keys.hasNext()) {
+        String key = (String) keys.next();
+        assertEquals(expected.get(key).toString(), resolved.get(key).toString());
+      }
+    }
+  }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2012 Yozio Inc.
+ *
+ * This file is part of the Yozio SDK.
+ *
+ * By using the Yozio SDK in your software, you agree to the terms of the
+ * Yozio SDK License Agreement which can be found at www.yozio.com/sdk_license.
+ */
+
+package com.yozio.android;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class YozioSingleFlightTest extends TestCase {
+
+  private YozioSingleFlight<String> singleFlight;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    singleFlight = new YozioSingleFlight<String>();
+  }
+
+  public void testIdenticalCallsJoin() {
+    assertTrue(singleFlight.join("a", "first"));
+    assertFalse(singleFlight.join("a", "second"));
+    assertFalse(singleFlight.join("a", "third"));
+    assertEquals(Arrays.asList("first", "second", "third"), singleFlight.complete("a"));
+    assertEquals(2, singleFlight.getNumSaved());
+  }
+
+  public void testDifferentKeysDontJoin() {
+    assertTrue(singleFlight.join("a", "first"));
+    assertTrue(singleFlight.join("b", "second"));
+    assertEquals(Arrays.asList("first"), singleFlight.complete("a"));
+    assertEquals(Arrays.asList("second"), singleFlight.complete("b"));
+    assertEquals(0, singleFlight.getNumSaved());
+  }
+
+  public void testNewCallAfterComplete() {
+    assertTrue(singleFlight.join("a", "first"));
+    singleFlight.complete("a");
+    assertTrue(singleFlight.join("a", "second"));
+    assertEquals(Arrays.asList("second"), singleFlight.complete("a"));
+    assertTrue(singleFlight.complete("a").isEmpty());
+  }
+
+  public void testConcurrentJoins() throws InterruptedException {
+    final int numThreads = 8;
+    final AtomicInteger numCalls = new AtomicInteger();
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(numThreads);
+    for (int i = 0; i < numThreads; i++) {
+      final String waiter = "waiter" + i;
+      new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            if (singleFlight.join("a", waiter)) {
+              numCalls.incrementAndGet();
+            }
+          } catch (InterruptedException e) {
+            // Counted as missing below.
+          }
+          done.countDown();
+        }
+      }.start();
+    }
+    start.countDown();
+    done.await();
+    assertEquals(1, numCalls.get());
+    assertEquals(numThreads, singleFlight.complete("a").size());
+    assertEquals(numThreads - 1, singleFlight.getNumSaved());
+  }
+}
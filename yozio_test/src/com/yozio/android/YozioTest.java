@@ -75,6 +75,16 @@ public class YozioTest extends AndroidTestCase {
     Yozio.userLoggedIn(null, null);
   }
 
+  public void testDatabaseOpensAndCloses() {
+    dataStore.getNumEvents();
+    dataStore.getNumEvents();
+    // The database is kept open between operations.
+    assertEquals(1, Yozio.getNumDatabaseOpens());
+    assertEquals(0, Yozio.getNumDatabaseCloses());
+    dataStore.close();
+    assertEquals(1, Yozio.getNumDatabaseCloses());
+  }
+
   public void testEnteredViralLoopWithoutExternalProperties() {
     try {
       Yozio.configure(getContext(), APP_KEY, TEST_SECRET_KEY);
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2012 Yozio Inc.
+ *
+ * This file is part of the Yozio SDK.
+ *
+ * By using the Yozio SDK in your software, you agree to the terms of the
+ * Yozio SDK License Agreement which can be found at www.yozio.com/sdk_license.
+ */
+
+package com.yozio.android;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class YozioTimestampEncoderTest extends TestCase {
+
+  private YozioTimestampEncoder encoder;
+  private SimpleDateFormat dateFormat;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    encoder = new YozioTimestampEncoder();
+    dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
+    dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+  }
+
+  public void testEncode() {
+    assertEquals("1970-01-01 00:00:00", encoder.encode(0));
+    assertEquals("2012-02-29 23:59:59", encoder.encode(1330559999999L));
+    assertEquals("2012-03-01 00:00:00", encoder.encode(1330560000000L));
+    assertEquals("1969-12-31 23:59:59", encoder.encode(-1));
+  }
+
+  public void testMatchesSimpleDateFormat() {
+    Random random = new Random(42);
+    for (int i = 0; i < 100000; i++) {
+      // Between 1900 and 2100.
+      long timeMillis = -2208988800000L + (long) (random.nextDouble() * 6311433600000L);
+      assertEquals(dateFormat.format(new Date(timeMillis)), encoder.encode(timeMillis));
+    }
+  }
+
+  public void testConsecutiveSeconds() {
+    long start = 1349999990000L;
+    for (long timeMillis = start; timeMillis < start + 120 * 1000; timeMillis += 250) {
+      assertEquals(dateFormat.format(new Date(timeMillis)), encoder.encode(timeMillis));
+    }
+  }
+
+  public void testConcurrentEncode() throws InterruptedException {
+    final int numThreads = 4;
+    final AtomicInteger numMismatches = new AtomicInteger();
+    final CountDownLatch done = new CountDownLatch(numThreads);
+    for (int t = 0; t < numThreads; t++) {
+      final long offset = t * 7919;
+      new Thread() {
+        @Override
+        public void run() {
+          SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
+          format.setTimeZone(TimeZone.getTimeZone("UTC"));
+          long start = 1349999990000L + offset;
+          for (long timeMillis = start; timeMillis < start + 600 * 1000; timeMillis += 100) {
+            if (!format.format(new Date(timeMillis)).equals(encoder.encode(timeMillis))) {
+              numMismatches.incrementAndGet();
+            }
+          }
+          done.countDown();
+        }
+      }.start();
+    }
+    done.await();
+    assertEquals(0, numMismatches.get());
+  }
+}